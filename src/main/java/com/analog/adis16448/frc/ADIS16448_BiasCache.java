@@ -0,0 +1,108 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Small file cache of calibrated gyro offsets, keyed by IMU identity and a
+ * temperature bucket, so a rebooted robot can use its last offsets at once.
+ *
+ * <p>Entries are stored as {@code <lot1>-<lot2>-<serial>.<bucket>=x,y,z}.
+ */
+final class ADIS16448_BiasCache {
+  static final String kDefaultPath = "/home/lvuser/adis16448_bias.properties";
+
+  // Width of a temperature bucket in degrees C
+  private static final double kBucketWidth = 5.0;
+
+  private final Path m_path;
+  private final String m_device_id;
+  private final Properties m_entries = new Properties();
+
+  ADIS16448_BiasCache(String path, int lot_id1, int lot_id2, int serial_num) {
+    m_path = Paths.get(path);
+    m_device_id = String.format("%04x-%04x-%04x", lot_id1, lot_id2, serial_num);
+    try (InputStream in = Files.newInputStream(m_path)) {
+      m_entries.load(in);
+    } catch (NoSuchFileException e) {
+      // Nothing cached yet
+    } catch (IOException | IllegalArgumentException e) {
+      DriverStation.reportWarning("ADIS16448: could not read bias cache " + m_path + ": " + e, false);
+    }
+  }
+
+  /**
+   * Find the offsets stored for this IMU at (or next to) a temperature.
+   *
+   * @return {x, y, z} in degrees/second, or null if nothing usable is cached
+   */
+  synchronized double[] lookup(double temp) {
+    int bucket = bucket(temp);
+    double[] offsets = parse(m_entries.getProperty(key(bucket)));
+    if (offsets == null) {
+      offsets = parse(m_entries.getProperty(key(bucket - 1)));
+    }
+    if (offsets == null) {
+      offsets = parse(m_entries.getProperty(key(bucket + 1)));
+    }
+    return offsets;
+  }
+
+  /**
+   * Save offsets for a temperature. Writes the whole file, so don't call this
+   * from a time-critical thread.
+   */
+  synchronized void store(double temp, double x, double y, double z) {
+    m_entries.setProperty(key(bucket(temp)), x + "," + y + "," + z);
+    Path tmp = m_path.resolveSibling(m_path.getFileName() + ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        m_entries.store(out, "ADIS16448 gyro offsets (deg/s) by IMU and temperature bucket");
+      }
+      Files.move(tmp, m_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      DriverStation.reportWarning("ADIS16448: could not write bias cache " + m_path + ": " + e, false);
+    }
+  }
+
+  private String key(int bucket) {
+    return m_device_id + "." + bucket;
+  }
+
+  private static int bucket(double temp) {
+    return (int) Math.floor(temp / kBucketWidth);
+  }
+
+  private static double[] parse(String value) {
+    if (value == null) {
+      return null;
+    }
+    String[] parts = value.split(",");
+    if (parts.length != 3) {
+      return null;
+    }
+    try {
+      return new double[] {
+        Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2])
+      };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * Tracks the gyro zero-rate offsets while the IMU is running.
+ *
+ * <p>Samples are grouped into fixed windows.  Each window keeps running
+ * (Welford) means and variances of the gyro and accelerometer axes, so a
+ * sample costs O(1) and nothing is allocated.  A window where every variance
+ * is below its threshold, and the mean rates are close to the current
+ * offsets, counts as stationary: its mean rates and temperature are added to
+ * an exponentially weighted linear fit of offset against temperature, which
+ * gives the offsets used until the next stationary window.
+ *
+ * <p>Used by the acquire thread only.
+ */
+final class ADIS16448_BiasTracker {
+  // Stationary thresholds
+  private static final double kGyroVariance = 0.1;     // (deg/s)^2
+  private static final double kAccelVariance = 1e-4;   // g^2
+  private static final double kMaxBiasStep = 0.5;      // deg/s
+  // Forgetting factor applied to the fit for each stationary window
+  private static final double kForgetting = 0.98;
+  // Weight of the seed point, in windows
+  private static final double kSeedWeight = 10.0;
+  // Temperature spread (variance, degC^2) needed before fitting a slope
+  private static final double kMinTempVariance = 0.25;
+
+  private final int m_window;
+
+  // Current window statistics (gyro x/y/z, accel x/y/z)
+  private int m_count = 0;
+  private final double[] m_mean = new double[6];
+  private final double[] m_m2 = new double[6];
+  private double m_temp_sum = 0.0;
+
+  // Weighted fit of offset = b + k * (temp - mean temp), per gyro axis
+  private double m_w;
+  private double m_wt;
+  private double m_wtt;
+  private final double[] m_wb = new double[3];
+  private final double[] m_wtb = new double[3];
+
+  // Offsets currently in use
+  private final double[] m_bias = new double[3];
+  private volatile boolean m_stationary = false;
+  private volatile long m_updates = 0;
+
+  /**
+   * @param window Samples per stationary window
+   */
+  ADIS16448_BiasTracker(int window) {
+    m_window = Math.max(2, window);
+  }
+
+  /**
+   * Restart from freshly calibrated offsets measured at {@code temp}.
+   */
+  void reset(double x, double y, double z, double temp) {
+    m_count = 0;
+    m_temp_sum = 0.0;
+    for (int i = 0; i < m_mean.length; i++) {
+      m_mean[i] = 0.0;
+      m_m2[i] = 0.0;
+    }
+    m_bias[0] = x;
+    m_bias[1] = y;
+    m_bias[2] = z;
+    m_w = kSeedWeight;
+    m_wt = kSeedWeight * temp;
+    m_wtt = kSeedWeight * temp * temp;
+    for (int i = 0; i < 3; i++) {
+      m_wb[i] = kSeedWeight * m_bias[i];
+      m_wtb[i] = kSeedWeight * m_bias[i] * temp;
+    }
+  }
+
+  /**
+   * Add one raw sample.
+   *
+   * @return true if the offsets were updated
+   */
+  boolean update(double gyro_x, double gyro_y, double gyro_z,
+                 double accel_x, double accel_y, double accel_z, double temp) {
+    ++m_count;
+    accumulate(0, gyro_x);
+    accumulate(1, gyro_y);
+    accumulate(2, gyro_z);
+    accumulate(3, accel_x);
+    accumulate(4, accel_y);
+    accumulate(5, accel_z);
+    m_temp_sum += temp;
+    if (m_count < m_window) {
+      return false;
+    }
+
+    double mean_temp = m_temp_sum / m_count;
+    boolean stationary = true;
+    for (int i = 0; i < 6; i++) {
+      double variance = m_m2[i] / (m_count - 1);
+      stationary &= variance < (i < 3 ? kGyroVariance : kAccelVariance);
+    }
+    for (int i = 0; i < 3; i++) {
+      stationary &= Math.abs(m_mean[i] - m_bias[i]) < kMaxBiasStep;
+    }
+    m_stationary = stationary;
+    if (stationary) {
+      fit(mean_temp);
+    }
+
+    m_count = 0;
+    m_temp_sum = 0.0;
+    for (int i = 0; i < m_mean.length; i++) {
+      m_mean[i] = 0.0;
+      m_m2[i] = 0.0;
+    }
+    return stationary;
+  }
+
+  // Welford running mean/variance
+  private void accumulate(int i, double value) {
+    double delta = value - m_mean[i];
+    m_mean[i] += delta / m_count;
+    m_m2[i] += delta * (value - m_mean[i]);
+  }
+
+  // Add the window means to the fit and re-evaluate the offsets at temp
+  private void fit(double temp) {
+    m_w = kForgetting * m_w + 1.0;
+    m_wt = kForgetting * m_wt + temp;
+    m_wtt = kForgetting * m_wtt + temp * temp;
+    double t_mean = m_wt / m_w;
+    double t_var = m_wtt / m_w - t_mean * t_mean;
+    for (int i = 0; i < 3; i++) {
+      m_wb[i] = kForgetting * m_wb[i] + m_mean[i];
+      m_wtb[i] = kForgetting * m_wtb[i] + temp * m_mean[i];
+      double b_mean = m_wb[i] / m_w;
+      double slope = 0.0;
+      if (t_var > kMinTempVariance) {
+        slope = (m_wtb[i] / m_w - t_mean * b_mean) / t_var;
+      }
+      m_bias[i] = b_mean + slope * (temp - t_mean);
+    }
+    ++m_updates;
+  }
+
+  double getBiasX() {
+    return m_bias[0];
+  }
+
+  double getBiasY() {
+    return m_bias[1];
+  }
+
+  double getBiasZ() {
+    return m_bias[2];
+  }
+
+  boolean isStationary() {
+    return m_stationary;
+  }
+
+  long getUpdateCount() {
+    return m_updates;
+  }
+}
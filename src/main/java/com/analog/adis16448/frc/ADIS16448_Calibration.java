@@ -0,0 +1,145 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One gyro offset calibration run.
+ *
+ * <p>The acquire thread feeds every good sample to {@link #accumulate}; the
+ * run finishes once it has averaged {@code duration} seconds of samples,
+ * measured with the packet timestamps.  Completion is signalled through
+ * {@link #future()}.
+ *
+ * <p>A run can be given reference offsets (from the bias cache) to refine.
+ * If the measured offsets differ from them by more than the tolerance the
+ * run is rejected, since that usually means the robot was moving.
+ */
+final class ADIS16448_Calibration {
+  // Samples in this window after the first one are ignored (settling)
+  private static final double kSettleTime = 0.1;
+
+  private final long m_duration_us;
+  private final double[] m_reference;
+  private final double m_tolerance;
+  private final CompletableFuture<Void> m_future = new CompletableFuture<>();
+
+  private long m_start = -1;
+  private int m_count = 0;
+  private double m_sum_x = 0.0;
+  private double m_sum_y = 0.0;
+  private double m_sum_z = 0.0;
+  private double m_sum_temp = 0.0;
+  private volatile double m_progress = 0.0;
+  private volatile boolean m_done = false;
+  private volatile boolean m_rejected = false;
+
+  // Results, valid once done
+  double offset_x;
+  double offset_y;
+  double offset_z;
+  double temp;
+
+  /**
+   * @param duration Averaging time in seconds
+   */
+  ADIS16448_Calibration(double duration) {
+    this(duration, null, 0.0);
+  }
+
+  /**
+   * @param duration Averaging time in seconds
+   * @param reference Expected {x, y, z} offsets in degrees/second, or null
+   * @param tolerance Largest accepted difference from the reference in
+   *                  degrees/second
+   */
+  ADIS16448_Calibration(double duration, double[] reference, double tolerance) {
+    m_duration_us = (long) (duration * 1000000.0);
+    m_reference = reference;
+    m_tolerance = tolerance;
+  }
+
+  /**
+   * Add one sample (acquire thread only).
+   *
+   * @param timestamp FPGA timestamp of the sample in microseconds
+   * @return true if this sample completed the calibration
+   */
+  boolean accumulate(long timestamp, double gyro_x, double gyro_y, double gyro_z, double temp) {
+    if (m_done) {
+      return false;
+    }
+    if (m_start < 0) {
+      m_start = timestamp + (long) (kSettleTime * 1000000.0);
+    }
+    long elapsed = timestamp - m_start;
+    if (elapsed < 0) {
+      return false;
+    }
+
+    ++m_count;
+    m_sum_x += gyro_x;
+    m_sum_y += gyro_y;
+    m_sum_z += gyro_z;
+    m_sum_temp += temp;
+
+    if (elapsed < m_duration_us) {
+      m_progress = (double) elapsed / m_duration_us;
+      return false;
+    }
+
+    offset_x = m_sum_x / m_count;
+    offset_y = m_sum_y / m_count;
+    offset_z = m_sum_z / m_count;
+    this.temp = m_sum_temp / m_count;
+    m_rejected = m_reference != null
+        && !agreesWith(m_reference[0], m_reference[1], m_reference[2], m_tolerance);
+    m_progress = 1.0;
+    m_done = true;
+    return true;
+  }
+
+  /**
+   * True if the measured offsets are all within {@code tolerance} deg/s of
+   * the given ones.
+   */
+  private boolean agreesWith(double x, double y, double z, double tolerance) {
+    return Math.abs(offset_x - x) <= tolerance
+        && Math.abs(offset_y - y) <= tolerance
+        && Math.abs(offset_z - z) <= tolerance;
+  }
+
+  /**
+   * Complete the future off the calling thread, so dependent actions never
+   * run on the acquire thread.
+   */
+  void complete() {
+    m_future.completeAsync(() -> null);
+  }
+
+  CompletableFuture<Void> future() {
+    return m_future;
+  }
+
+  boolean isDone() {
+    return m_done;
+  }
+
+  /**
+   * True if the run finished but disagreed with its reference offsets, in
+   * which case its results should not be used.
+   */
+  boolean isRejected() {
+    return m_rejected;
+  }
+
+  double getProgress() {
+    return m_progress;
+  }
+}
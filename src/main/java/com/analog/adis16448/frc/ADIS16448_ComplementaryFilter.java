@@ -0,0 +1,318 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * Complementary filter AHRS: gyro angles corrected towards the accelerometer
+ * (pitch and roll) and magnetometer (yaw).
+ */
+final class ADIS16448_ComplementaryFilter implements FusionFilter {
+  static final double kDefaultTauAcc = 0.95;
+  static final double kDefaultTauMag = 0.04;
+
+  private final ADIS16448_IMU.Axis m_yaw_axis;
+
+  private volatile double m_tau_acc = kDefaultTauAcc;
+  private volatile double m_tau_mag = kDefaultTauMag;
+
+  private boolean m_first = true;
+  private double m_gyro_x_prev;
+  private double m_gyro_y_prev;
+  private double m_gyro_z_prev;
+  private double m_mag_angle_prev = 0.0;
+  private volatile boolean m_tilt_comp_yaw = true;
+
+  // AHRS outputs
+  private double m_yaw = 0.0;
+  private double m_roll = 0.0;
+  private double m_pitch = 0.0;
+
+  ADIS16448_ComplementaryFilter(ADIS16448_IMU.Axis yaw_axis) {
+    m_yaw_axis = yaw_axis;
+  }
+
+  void setTiltCompYaw(boolean enabled) {
+    m_tilt_comp_yaw = enabled;
+  }
+
+  /**
+   * @param tau_acc Time constant in seconds for roll and pitch
+   * @param tau_mag Time constant in seconds for yaw
+   */
+  void setTau(double tau_acc, double tau_mag) {
+    m_tau_acc = tau_acc;
+    m_tau_mag = tau_mag;
+  }
+
+  /**
+   * Forget all state, as if newly created (keeps the settings).
+   */
+  void reset() {
+    m_first = true;
+    m_mag_angle_prev = 0.0;
+    m_yaw = 0.0;
+    m_roll = 0.0;
+    m_pitch = 0.0;
+  }
+
+  // Thank you to the RoboBees for providing this elegant AHRS implementation
+  // to the FIRST community!
+  @Override
+  public void update(ADIS16448_IMU.Sample sample) {
+    // Description:
+    // Accepts calibrated Rate Gyro, Accelerometer, and Magnetometer sensor
+    // readings and applies a Complementary Filter to fuse them into a single
+    // composite sensor which provides accurate and stable rotation indications
+    // (Pitch, Roll, and Yaw).  This sensor fusion approach effectively
+    // combines the individual sensor's best respective properties while
+    // mitigating their shortfalls.
+    // 
+    // Design:
+    // The Complementary Filter is an algorithm that allows a pair of sensors
+    // to contribute differently to a common, composite measurement result.
+    // It effectively applies a low pass filter to one sensor, and a high pass
+    // filter to the other, then proportionally recombines them in such a way
+    // to maintain the original unit of measurement.  It is computationally
+    // inexpensive when compared to alternative estimation techniques such as
+    // the Kalman filter.  The algorithm is given by:
+    // 
+    // angle(n) = (alpha)*(angle(n-1) + gyrorate * dt) + (1-alpha)*(accel or mag);
+    // 
+    // where : 
+    // 
+    // alpha = tau / (tau + dt)
+    // 
+    // This implementation uses the average Gyro rate across the dt period, so
+    // above gyrorate = [(gyrorate(n)-gyrorate(n-1)]/2
+    // 
+    // Essentially, for Pitch and Roll, the slow moving (lower frequency) part
+    // of the rotation estimate is taken from the Accelerometer - ignoring the
+    // high noise level, and the faster moving (higher frequency) part is taken
+    // from the Rate Gyro - ignoring the slow Gyro drift.  Same for Yaw, except
+    // that the Magnetometer replaces the Accelerometer to source the slower
+    // moving component.  This is because Pitch and Roll can be referenced to
+    // the Accelerometer's sense of the Earth's gravity vector.  Yaw cannot be
+    // referenced to this vector since this rotation does not cause any
+    // relative angular change, but it can be referenced to magnetic North.
+    // The parameter 'tau' is the time constant that defines the boundary
+    // between the low and high pass filters.  Both tau and the sample time,
+    // dt, affect the parameter 'alpha', which sets the balance point for how
+    // much of which sensor is 'trusted' to contribute to the rotation estimate.
+    // 
+    // The Complementary Filter algorithm is applied to each X/Y/Z rotation
+    // axis to compute R/P/Y outputs, respectively.
+    // 
+    // Magnetometer readings are tilt-compensated when Tilt-Comp-(Yaw) is
+    // asserted (True), by the IMU TILT subVI.  This creates what is known as a
+    // tilt-compensated compass, which allows Yaw to be insensitive to the
+    // effects of a non-level sensor, but generates error in Yaw during
+    // movement (coordinate acceleration).
+    // 
+    // The Yaw "South" crossing detector is necessary to allow a smooth
+    // transition across the +/- 180 deg discontinuity (inherent in the ATAN
+    // function).  Since -180 deg is congruent with +180 deg, Yaw needs to jump
+    // between these values when crossing South (North is 0 deg).  The design
+    // depends upon comparison of successive Yaw readings to detect a
+    // cross-over event.  The cross-over detector monitors the current reading
+    // and evaluates how far it is from the previous reading.  If it is greater
+    // than the previous reading by the Discriminant (= 180 deg), then Yaw just
+    // crossed South.
+    // 
+    // By choosing 180 as the Discriminant, the only way the detector can
+    // produce a false positive, assuming a loop iteration of 70 msec, is for
+    // it to rotate >2,571 dps ... (2,571=180/.07).  This is faster than the ST
+    // L3GD20 Gyro can register.  The detector produces a Boolean True upon
+    // detecting a South crossing.  This is used to alter the (n-1) Yaw which
+    // was previously stored, either adding or subtracting 360 degrees as
+    // required to place the previous Yaw in the correct quadrant whenever
+    // crossing occurs.  The Modulus function cannot be used here as the
+    // Complementary Filter algorithm has 'state' (needs to remember previous
+    // Yaw).
+    // 
+    // We are in effect stitching together two ends of a ruler for 'modular
+    // arithmetic' (clock math).
+    // 
+    // Inputs:
+    // GYRO - Gyro rate and sample time measurements.
+    // ACCEL - Acceleration measurements.
+    // MAG - Magnetic measurements.
+    // TAU ACC - tau parameter used to set sensor balance between Accel and
+    //           Gyro for Roll and Pitch.
+    // TAU MAG - tau parameter used to set sensor balance between Mag and Gyro
+    //           for Yaw.
+    // TILT COMP (Yaw) - Enables Yaw tilt-compensation if True.
+    // 
+    // Outputs:
+    // ROLL - Filtered Roll about sensor X-axis.
+    // PITCH - Filtered Pitch about sensor Y-axis.
+    // YAW - Filtered Yaw about sensor Z-axis.
+    // 
+    // Implementation:
+    // It's best to establish the optimum loop sample time first.  See IMU READ
+    // implementation notes for guidance.  Each tau parameter should then be
+    // adjusted to achieve optimum sensor fusion.  tau acc affects Roll and
+    // Pitch, tau mag affects Yaw.  Start at value 1 or 2 and decrease by half
+    // each time until the result doesn't drift, but not so far that the result
+    // gets noisy.  An optimum tau for this IMU is likely in the range of 1.0
+    // to 0.01, for a loop sample time between 10 and 100 ms.
+    // 
+    // Note that both sample timing (dt) and tau both affect the balance
+    // parameter, 'alpha'.  Adjusting either dt or tau will require the other
+    // to be readjusted to maintain a particular filter performance.
+    // 
+    // It is likely best to set Yaw tilt-compensation to off (False) if the Yaw
+    // value is to be used as feedback in a closed loop control application.
+    // The tradeoff is that Yaw will only be accurate while the robot is level.
+    // 
+    // Since a Yaw of -180 degrees is congruent with +180 degrees (they
+    // represent the same direction), it is possible that the Yaw output will
+    // oscillate between these two values when the sensor happens to be
+    // pointing due South, as sensor noise causes slight variation.  You will
+    // need to account for this possibility if you are using the Yaw value for
+    // decision-making in code.
+    // 
+    // ----- The RoboBees FRC Team 836! -----
+    // Complement your passion to solve problems with a STEM Education!
+
+    // Compensate for PCB-Up Mounting Config.
+    sample.gyro_y = -sample.gyro_y;
+    sample.gyro_z = -sample.gyro_z;
+    sample.accel_y = -sample.accel_y;
+    sample.accel_z = -sample.accel_z;
+    sample.mag_y = -sample.mag_y;
+    sample.mag_z = -sample.mag_z;
+
+    // Swap axis as appropriate for yaw axis selection
+    sample.adjustYawAxis(m_yaw_axis);
+
+    final double tau_acc = m_tau_acc;
+    final double tau_mag = m_tau_mag;
+
+    double roll = m_roll;
+    double pitch = m_pitch;
+    double yaw = m_yaw;
+    boolean tilt_comp_yaw = m_tilt_comp_yaw;
+
+    // Calculate mag angle in degrees
+    double mag_angle = Math.atan2(sample.mag_y, sample.mag_x) / Math.PI * 180.0;
+
+    // Tilt compensation:
+    // see http://www.freescale.com/files/sensors/doc/app_note/AN3461.pdf
+    // for derivation of Pitch and Roll equations.  Used eqs 37 & 38 as Rxyz.
+    // Eqs 42 & 43, as Ryxz, produce same values within Pitch & Roll
+    // constraints.
+    // 
+    // Freescale's Pitch/Roll derivation is preferred over ST's as it does not
+    // degrade due to the Sine function linearity assumption.
+    // 
+    // Pitch is accurate over +/- 90 degree range, and Roll is accurate within
+    // +/- 180 degree range - as long as accelerometer is only sensing
+    // acceleration due to gravity.  Movement (coordinate acceleration) will
+    // add error to Pitch and Roll indications.
+    // 
+    // Yaw is not obtainable from an accelerometer due to its geometric 
+    // relationship with the Earth's gravity vector.  (Would have same problem
+    // on Mars.)
+    // 
+    // see http://www.pololu.com/file/0J434/LSM303DLH-compass-app-note.pdf
+    // for derivation of Yaw equation.  Used eq 12 in Appendix A (eq 13 is
+    // replaced by ATAN2 function).  Yaw is obtainable from the magnetometer,
+    // but is sensitive to any tilt from horizontal.  This uses Pitch and Roll
+    // values from above for tilt compensation of Yaw, resulting in a
+    // tilt-compensated compass.
+    // 
+    // As with Pitch/Roll, movement (coordinate acceleration) will add error to
+    // Yaw indication.
+
+    // Accel
+    double tilt_pitch_rad = Math.atan2(-sample.accel_x, Math.sqrt(sample.accel_y * sample.accel_y + sample.accel_z * sample.accel_z));
+    double tilt_pitch = tilt_pitch_rad / Math.PI * 180.0;
+
+    double tilt_roll_rad = Math.atan2(sample.accel_y, Math.sqrt(sample.accel_x * sample.accel_x * 0.01 + sample.accel_z * sample.accel_z) * Math.signum(sample.accel_z));
+    double tilt_roll = tilt_roll_rad / Math.PI * 180.0;
+
+    // Mag
+    double tilt_yaw;
+    if (tilt_comp_yaw) {
+      double sin_pitch = Math.sin(tilt_pitch_rad);
+      double cos_pitch = Math.cos(tilt_pitch_rad);
+      double sin_roll = Math.sin(tilt_roll_rad);
+      double cos_roll = Math.cos(tilt_roll_rad);
+      double mx2 = sample.mag_x * cos_pitch + sample.mag_z * sin_pitch;
+      double my2 = sample.mag_x * sin_roll * sin_pitch + sample.mag_y * cos_roll - sample.mag_z * sin_roll * cos_pitch;
+      //double mz2 = -sample.mag_x * cos_roll * sin_pitch + sample.mag_y * sin_roll + sample.mag_z * cos_roll * cos_pitch;
+      tilt_yaw = Math.atan2(my2, mx2) / Math.PI * 180.0;
+    } else {
+      tilt_yaw = mag_angle;
+    }
+
+    // Positive rotation of Magnetometer is clockwise when looking in + Z
+    // direction.  This is subtracted from 0 deg to reverse rotation
+    // direction, as it needs to be aligned with the definition of positive
+    // Gyroscope rotation, (which is CCW looking in + Z direction), to enable
+    // sensor fusion.
+    //
+    // 0 degrees is due magnetic North.
+    tilt_yaw = -tilt_yaw;
+
+    // "South" crossing Detector
+    if (Math.abs(mag_angle - m_mag_angle_prev) >= 180) {
+      if (m_mag_angle_prev < 0) {
+        yaw += -360;
+      } else if (m_mag_angle_prev > 0) {
+        yaw += 360;
+      }
+    }
+    m_mag_angle_prev = mag_angle;
+
+    // alpha = tau / (tau + dt)
+    double alpha_acc = tau_acc / (tau_acc + sample.dt);
+    double alpha_mag = tau_mag / (tau_mag + sample.dt);
+
+    // gyrorate = [(gyrorate(n)-gyrorate(n-1)]/2
+    // angle(n) = (alpha)*(angle(n-1) + gyrorate * dt) + (1-alpha)*(accel or mag);
+    if (m_first) {
+      m_gyro_x_prev = sample.gyro_x;
+      m_gyro_y_prev = sample.gyro_y;
+      m_gyro_z_prev = sample.gyro_z;
+      m_first = false;
+    }
+    roll =
+        alpha_acc * (roll + sample.dt * (sample.gyro_x + m_gyro_x_prev) / 2.0) +
+        (1 - alpha_acc) * tilt_roll;
+    pitch =
+        alpha_acc * (pitch + sample.dt * (sample.gyro_y + m_gyro_y_prev) / 2.0) +
+        (1 - alpha_acc) * tilt_pitch;
+    yaw =
+        alpha_mag * (yaw + sample.dt * (sample.gyro_z + m_gyro_z_prev) / 2.0) +
+        (1 - alpha_mag) * tilt_yaw;
+    m_gyro_x_prev = sample.gyro_x;
+    m_gyro_y_prev = sample.gyro_y;
+    m_gyro_z_prev = sample.gyro_z;
+    
+    // Update AHRS state
+    m_roll = roll;
+    m_pitch = pitch;
+    m_yaw = yaw;
+  }
+
+  @Override
+  public double getYaw() {
+    return m_yaw;
+  }
+
+  @Override
+  public double getPitch() {
+    return m_pitch;
+  }
+
+  @Override
+  public double getRoll() {
+    return m_roll;
+  }
+}
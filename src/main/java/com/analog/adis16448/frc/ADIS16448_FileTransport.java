@@ -0,0 +1,122 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Packets from a file written by {@link ADIS16448_Recorder}, expanded back
+ * to the DMA layout.  Reads as fast as the caller asks.
+ */
+final class ADIS16448_FileTransport implements ADIS16448_Transport, AutoCloseable {
+  // Frames read from the file at a time
+  private static final int kReadFrames = 1024;
+
+  private final FileChannel m_channel;
+  private final ByteBuffer m_frames;
+  private final int m_smpl_prd;
+  private final int m_sens_avg;
+  private boolean m_ended = false;
+
+  ADIS16448_FileTransport(String path) throws IOException {
+    m_channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    ByteBuffer header = ByteBuffer.allocate(ADIS16448_Recorder.kHeaderBytes).order(ByteOrder.LITTLE_ENDIAN);
+    while (header.hasRemaining()) {
+      if (m_channel.read(header) < 0) {
+        m_channel.close();
+        throw new IOException(path + ": truncated header");
+      }
+    }
+    header.flip();
+    int magic = header.getInt();
+    int version = header.getInt();
+    int frame_bytes = header.getInt();
+    if (magic != ADIS16448_Recorder.kMagic || version != ADIS16448_Recorder.kVersion
+        || frame_bytes != ADIS16448_Recorder.kFrameBytes) {
+      m_channel.close();
+      throw new IOException(path + ": not an ADIS16448 recording (version " + ADIS16448_Recorder.kVersion + ")");
+    }
+    m_smpl_prd = header.getInt();
+    m_sens_avg = header.getInt();
+
+    m_frames = ByteBuffer.allocate(kReadFrames * ADIS16448_Recorder.kFrameBytes).order(ByteOrder.LITTLE_ENDIAN);
+    m_frames.flip();
+  }
+
+  /**
+   * SMPL_PRD register value the recording was made with.
+   */
+  int getSmplPrd() {
+    return m_smpl_prd;
+  }
+
+  /**
+   * SENS_AVG register value the recording was made with.
+   */
+  int getSensAvg() {
+    return m_sens_avg;
+  }
+
+  /**
+   * Nominal sample period of the recording in seconds.
+   */
+  double getSamplePeriod() {
+    return (1 << ((m_smpl_prd >> 8) & 0x1F)) / 819.2;
+  }
+
+  @Override
+  public int read(ByteBuffer buf, int max_packets) {
+    int packets = 0;
+    while (packets < max_packets) {
+      if (m_frames.remaining() < ADIS16448_Recorder.kFrameBytes && !fill()) {
+        break;
+      }
+      int dst = packets * ADIS16448_PacketDecoder.kPacketBytes;
+      buf.putInt(dst, m_frames.getInt());
+      for (int i = 1; i <= ADIS16448_Recorder.kFrameData; i++) {
+        buf.putInt(dst + 4 * i, m_frames.get() & 0xFF);
+      }
+      ++packets;
+    }
+    return packets == 0 && m_ended ? -1 : packets;
+  }
+
+  // Read more frames; false at the end of the file
+  private boolean fill() {
+    if (m_ended) {
+      return false;
+    }
+    m_frames.compact();
+    try {
+      if (m_channel.read(m_frames) < 0) {
+        // A partial frame at the end (recording cut off) is dropped
+        m_ended = true;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    m_frames.flip();
+    return m_frames.remaining() >= ADIS16448_Recorder.kFrameBytes;
+  }
+
+  @Override
+  public long getDroppedCount() {
+    return 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_channel.close();
+  }
+}
@@ -0,0 +1,260 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timestamped history of IMU outputs covering the last few seconds.
+ *
+ * <p>Stored as one primitive array per value (struct of arrays) in a ring
+ * that the calculate thread overwrites, so adding a sample never allocates.
+ * Any thread can query it without locking: a lookup reads the samples it
+ * needs and then checks the write position again, retrying if the writer
+ * lapped them in the meantime.
+ */
+final class ADIS16448_History {
+  // Value layout
+  static final int kRateX = 0;
+  static final int kRateY = 1;
+  static final int kRateZ = 2;
+  static final int kAngleX = 3;
+  static final int kAngleY = 4;
+  static final int kAngleZ = 5;
+  static final int kYaw = 6;
+  static final int kPitch = 7;
+  static final int kRoll = 8;
+  static final int kQuaternionW = 9;
+  static final int kQuaternionX = 10;
+  static final int kQuaternionY = 11;
+  static final int kQuaternionZ = 12;
+  static final int kValues = 13;
+
+  private final int m_capacity;
+  private final int m_mask;
+  private final double[] m_timestamps;
+  private final double[][] m_values;
+
+  // Number of samples ever added; only written by the calculate thread
+  private final AtomicLong m_head = new AtomicLong();
+
+  /**
+   * @param depth Minimum number of samples to keep. Rounded up to a power
+   *              of two.
+   */
+  ADIS16448_History(int depth) {
+    int capacity = Integer.highestOneBit(Math.max(2, depth));
+    if (capacity < depth) {
+      capacity <<= 1;
+    }
+    m_capacity = capacity;
+    m_mask = capacity - 1;
+    m_timestamps = new double[capacity];
+    m_values = new double[kValues][capacity];
+  }
+
+  int capacity() {
+    return m_capacity;
+  }
+
+  /**
+   * Add a sample (calculate thread only).
+   *
+   * @param state Published IMU state, laid out as in {@link ImuSnapshot}
+   */
+  void add(double[] state) {
+    long head = m_head.get();
+    int i = (int) (head & m_mask);
+    m_timestamps[i] = state[ImuSnapshot.kTimestamp];
+    m_values[kRateX][i] = state[ImuSnapshot.kRateX];
+    m_values[kRateY][i] = state[ImuSnapshot.kRateY];
+    m_values[kRateZ][i] = state[ImuSnapshot.kRateZ];
+    m_values[kAngleX][i] = state[ImuSnapshot.kAngleX];
+    m_values[kAngleY][i] = state[ImuSnapshot.kAngleY];
+    m_values[kAngleZ][i] = state[ImuSnapshot.kAngleZ];
+    m_values[kYaw][i] = state[ImuSnapshot.kYaw];
+    m_values[kPitch][i] = state[ImuSnapshot.kPitch];
+    m_values[kRoll][i] = state[ImuSnapshot.kRoll];
+    m_values[kQuaternionW][i] = state[ImuSnapshot.kQuaternionW];
+    m_values[kQuaternionX][i] = state[ImuSnapshot.kQuaternionX];
+    m_values[kQuaternionY][i] = state[ImuSnapshot.kQuaternionY];
+    m_values[kQuaternionZ][i] = state[ImuSnapshot.kQuaternionZ];
+    // Volatile store orders the slot writes before the new head
+    m_head.set(head + 1);
+  }
+
+  /**
+   * Linearly interpolate a value at {@code timestamp}, clamped to the
+   * stored time range.
+   *
+   * @param wrap_degrees Interpolate along the shortest way around a circle
+   *                     (for angles in degrees that wrap at +/-180)
+   * @return the value, or 0 if the history is empty
+   */
+  double get(int value, double timestamp, boolean wrap_degrees) {
+    final double[] values = m_values[value];
+    while (true) {
+      long head = m_head.get();
+      if (head == 0) {
+        return 0.0;
+      }
+      long lower = search(head, timestamp);
+      int i0 = (int) (lower & m_mask);
+      int i1 = (int) ((lower + 1) & m_mask);
+      double t0 = m_timestamps[i0];
+      double v0 = values[i0];
+      double t1 = t0;
+      double v1 = v0;
+      if (lower + 1 < head) {
+        t1 = m_timestamps[i1];
+        v1 = values[i1];
+      }
+      if (!isValid(lower)) {
+        continue;
+      }
+
+      double frac = fraction(t0, t1, timestamp);
+      if (!wrap_degrees) {
+        return v0 + frac * (v1 - v0);
+      }
+      double delta = v1 - v0;
+      delta -= 360.0 * Math.floor((delta + 180.0) / 360.0);
+      double angle = v0 + frac * delta;
+      // Keep the result in the same range as the stored angles
+      if (angle > 180.0) {
+        angle -= 360.0;
+      } else if (angle <= -180.0) {
+        angle += 360.0;
+      }
+      return angle;
+    }
+  }
+
+  /**
+   * Spherical linear interpolation of the orientation at {@code timestamp},
+   * clamped to the stored time range.
+   *
+   * @param out Set to {w, x, y, z}; identity if the history is empty
+   */
+  void getQuaternion(double timestamp, double[] out) {
+    while (true) {
+      long head = m_head.get();
+      if (head == 0) {
+        out[0] = 1.0;
+        out[1] = 0.0;
+        out[2] = 0.0;
+        out[3] = 0.0;
+        return;
+      }
+      long lower = search(head, timestamp);
+      int i0 = (int) (lower & m_mask);
+      int i1 = lower + 1 < head ? (int) ((lower + 1) & m_mask) : i0;
+      double t0 = m_timestamps[i0];
+      double t1 = m_timestamps[i1];
+      double aw = m_values[kQuaternionW][i0];
+      double ax = m_values[kQuaternionX][i0];
+      double ay = m_values[kQuaternionY][i0];
+      double az = m_values[kQuaternionZ][i0];
+      double bw = m_values[kQuaternionW][i1];
+      double bx = m_values[kQuaternionX][i1];
+      double by = m_values[kQuaternionY][i1];
+      double bz = m_values[kQuaternionZ][i1];
+      if (!isValid(lower)) {
+        continue;
+      }
+
+      double frac = fraction(t0, t1, timestamp);
+      double dot = aw * bw + ax * bx + ay * by + az * bz;
+      // Take the short way around
+      if (dot < 0.0) {
+        dot = -dot;
+        bw = -bw;
+        bx = -bx;
+        by = -by;
+        bz = -bz;
+      }
+      double s0;
+      double s1;
+      if (dot > 0.9995) {
+        // Nearly parallel, linear interpolation is accurate and stable
+        s0 = 1.0 - frac;
+        s1 = frac;
+      } else {
+        double theta = Math.acos(dot);
+        double sin_theta = Math.sin(theta);
+        s0 = Math.sin((1.0 - frac) * theta) / sin_theta;
+        s1 = Math.sin(frac * theta) / sin_theta;
+      }
+      double w = s0 * aw + s1 * bw;
+      double x = s0 * ax + s1 * bx;
+      double y = s0 * ay + s1 * by;
+      double z = s0 * az + s1 * bz;
+      double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+      if (norm > 0.0) {
+        norm = 1.0 / norm;
+      }
+      out[0] = w * norm;
+      out[1] = x * norm;
+      out[2] = y * norm;
+      out[3] = z * norm;
+      return;
+    }
+  }
+
+  /**
+   * Timestamp of the oldest stored sample, or 0 if empty.
+   */
+  double getOldestTimestamp() {
+    while (true) {
+      long head = m_head.get();
+      if (head == 0) {
+        return 0.0;
+      }
+      long oldest = Math.max(0, head - m_capacity + 1);
+      double timestamp = m_timestamps[(int) (oldest & m_mask)];
+      if (isValid(oldest)) {
+        return timestamp;
+      }
+    }
+  }
+
+  // Binary search for the last sample at or before timestamp (or the oldest
+  // one if all are later).  One slot is left for the writer to fill.
+  private long search(long head, double timestamp) {
+    long lo = Math.max(0, head - m_capacity + 1);
+    long hi = head - 1;
+    if (m_timestamps[(int) (lo & m_mask)] >= timestamp) {
+      return lo;
+    }
+    while (lo < hi) {
+      long mid = (lo + hi + 1) >>> 1;
+      if (m_timestamps[(int) (mid & m_mask)] <= timestamp) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  // True if sample 'index' (and the one after it) weren't overwritten while
+  // being read
+  private boolean isValid(long index) {
+    VarHandle.loadLoadFence();
+    return index > m_head.get() - m_capacity;
+  }
+
+  private static double fraction(double t0, double t1, double timestamp) {
+    if (t1 <= t0) {
+      return 0.0;
+    }
+    double frac = (timestamp - t0) / (t1 - t0);
+    return Math.min(1.0, Math.max(0.0, frac));
+  }
+}
@@ -7,12 +7,20 @@
 
 package com.analog.adis16448.frc;
 
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import edu.wpi.first.hal.HAL;
 import edu.wpi.first.hal.FRCNetComm.tResourceType;
@@ -21,6 +29,7 @@ import edu.wpi.first.wpilibj.DigitalOutput;
 import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.GyroBase;
 import edu.wpi.first.wpilibj.PIDSource;
+import edu.wpi.first.wpilibj.RobotController;
 import edu.wpi.first.wpilibj.SPI;
 import edu.wpi.first.wpilibj.Sendable;
 import edu.wpi.first.wpilibj.Timer;
@@ -32,135 +41,283 @@ import edu.wpi.first.wpilibj.smartdashboard.SendableBuilder;
  */
 @SuppressWarnings("unused")
 public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable {
-	private static final double kCalibrationSampleTime = 5.0; // Calibration time in seconds
-	private static final double kDegreePerSecondPerLSB = 1.0/25.0;
-	private static final double kGPerLSB = 1.0/1200.0;
-	private static final double kMilligaussPerLSB = 1.0/7.0;
-	private static final double kMillibarPerLSB = 0.02;
-	private static final double kDegCPerLSB = 0.07386;
-	private static final double kDegCOffset = 31;
+	static final double kCalibrationSampleTime = 5.0; // Calibration time in seconds
+  // Check of cached offsets at startup
+  private static final double kRefineSampleTime = 1.0;
+  private static final double kRefineTolerance = 0.1; // deg/s
 
   private static final int kGLOB_CMD = 0x3E;
-  private static final int kRegSMPL_PRD = 0x36;
-  private static final int kRegSENS_AVG = 0x38;
-  private static final int kRegMSC_CTRL = 0x34;
-  private static final int kRegPROD_ID = 0x56;
-  //private static final int kRegLOT_ID2 = 0x54;
-  //private static final int kRegLOT_ID1 = 0x52;
-  //private static final int kRegSERIAL_NUM = 0x58;
+  private static final int kRegSMPL_PRD = ADIS16448_Registers.kRegSMPL_PRD;
+  private static final int kRegSENS_AVG = ADIS16448_Registers.kRegSENS_AVG;
+  private static final int kRegMSC_CTRL = ADIS16448_Registers.kRegMSC_CTRL;
+  private static final int kRegLOT_ID2 = 0x54;
+  private static final int kRegLOT_ID1 = 0x52;
+  private static final int kRegSERIAL_NUM = 0x58;
+  private static final int kRegTEMP_OUT = 0x18;
   //private static final int kRegZGYRO_OFF = 0x1E;
   //private static final int kRegYGYRO_OFF = 0x1C;
   private static final int kRegXGYRO_OFF = 0x1A;
 
-  public enum AHRSAlgorithm { kComplementary, kMadgwick }
+  /**
+   * Built-in AHRS engines. kMahony adds integral (gyro bias) feedback;
+   * kKalman is an EKF that estimates the gyro bias as part of its state.
+   */
+  public enum AHRSAlgorithm { kComplementary, kMadgwick, kMahony, kKalman }
   public enum Axis { kX, kY, kZ }
 
+  /**
+   * Slowly changing outputs.  They are passed through the pipeline as raw
+   * register values and only scaled when read.
+   */
+  public enum LowRateChannel { kBaro, kTemp }
+
+  /**
+   * How the acquire thread waits for new packets in the DMA buffer.
+   *
+   * <p>kPolling is the original fixed 20ms sleep. kInterrupt blocks on the
+   * data ready line. kAdaptivePoll sleeps until the next packet is expected
+   * based on the sample period.
+   */
+  public enum DrainMode { kPolling, kInterrupt, kAdaptivePoll }
+
+  /**
+   * IMU output data rate, set through the SMPL_PRD decimation (819.2 SPS / 2^D).
+   */
+  public enum SampleRate {
+    k819_2SPS(0), k409_6SPS(1), k204_8SPS(2), k102_4SPS(3);
+
+    private final int m_decimation;
+
+    SampleRate(int decimation) {
+      m_decimation = decimation;
+    }
+
+    public double getSamplesPerSecond() {
+      return 819.2 / (1 << m_decimation);
+    }
+  }
+
+  /**
+   * Options for constructing an {@link ADIS16448_IMU}. Unset options keep the
+   * defaults of the plain constructors.
+   */
+  public static class Builder {
+    private Axis m_yaw_axis = Axis.kZ;
+    private AHRSAlgorithm m_algorithm = AHRSAlgorithm.kComplementary;
+    private SampleRate m_sample_rate = SampleRate.k102_4SPS;
+    private int m_filter_taps = 4;
+    private int m_fifo_depth = 0;
+    private FusionFilter m_filter = null;
+    private String m_bias_cache_file = ADIS16448_BiasCache.kDefaultPath;
+    private double m_history_length = 2.0;
+    private boolean m_ahrs_baro = false;
+    private boolean m_ahrs_temp = false;
+    private int m_low_rate_decimation = 1;
+
+    public Builder yawAxis(Axis yaw_axis) {
+      m_yaw_axis = yaw_axis;
+      return this;
+    }
+
+    public Builder algorithm(AHRSAlgorithm algorithm) {
+      m_algorithm = algorithm;
+      return this;
+    }
+
+    /**
+     * Use a custom AHRS engine instead of one of the {@link AHRSAlgorithm}s.
+     */
+    public Builder filter(FusionFilter filter) {
+      m_filter = filter;
+      return this;
+    }
+
+    public Builder sampleRate(SampleRate sample_rate) {
+      m_sample_rate = sample_rate;
+      return this;
+    }
+
+    /**
+     * @param taps Number of taps of the IMU internal Bartlett window filter,
+     *             a power of two from 1 (filter off) to 64.
+     */
+    public Builder filterTaps(int taps) {
+      if (taps < 1 || taps > 64 || Integer.bitCount(taps) != 1) {
+        throw new IllegalArgumentException("Filter taps must be a power of two from 1 to 64");
+      }
+      m_filter_taps = taps;
+      return this;
+    }
+
+    /**
+     * @param depth Number of samples buffered between acquisition and the
+     *              AHRS calculation. 0 sizes the FIFO for the sample rate.
+     */
+    public Builder fifoDepth(int depth) {
+      if (depth < 0) {
+        throw new IllegalArgumentException("FIFO depth must not be negative");
+      }
+      m_fifo_depth = depth;
+      return this;
+    }
+
+    /**
+     * @param path File the calibrated gyro offsets are saved to and loaded
+     *             from at startup, or null to always calibrate from scratch.
+     */
+    public Builder biasCacheFile(String path) {
+      m_bias_cache_file = path;
+      return this;
+    }
+
+    /**
+     * @param seconds How far back {@link #getYawAt} and the other history
+     *                lookups can go.
+     */
+    public Builder historyLength(double seconds) {
+      if (!(seconds > 0.0)) {
+        throw new IllegalArgumentException("History length must be positive");
+      }
+      m_history_length = seconds;
+      return this;
+    }
+
+    /**
+     * @param channels Low rate channels that a custom {@link FusionFilter}
+     *                 needs in every {@link Sample}. Channels not listed are
+     *                 left at 0 in the Sample (the built-in AHRS engines use
+     *                 neither). The IMU getters always return them scaled.
+     */
+    public Builder ahrsChannels(LowRateChannel... channels) {
+      m_ahrs_baro = false;
+      m_ahrs_temp = false;
+      for (LowRateChannel channel : channels) {
+        if (channel == LowRateChannel.kBaro) {
+          m_ahrs_baro = true;
+        } else if (channel == LowRateChannel.kTemp) {
+          m_ahrs_temp = true;
+        }
+      }
+      return this;
+    }
+
+    /**
+     * @param decimation Only read the barometer and temperature from every
+     *                   {@code decimation}th sample, holding the value in
+     *                   between. 1 reads them from every sample.
+     */
+    public Builder lowRateDecimation(int decimation) {
+      if (decimation < 1) {
+        throw new IllegalArgumentException("Low rate decimation must be at least 1");
+      }
+      m_low_rate_decimation = decimation;
+      return this;
+    }
+
+    public ADIS16448_IMU build() {
+      return new ADIS16448_IMU(this);
+    }
+  }
+
+  // DMA buffering, in seconds of packets at the configured rate
+  private static final double kDmaBufferTime = 0.5;
+  private static final int kMinDmaBufferWords = 8200;
+  // Raw packet recording: default directory and buffering in seconds
+  private static final String kRecordingDirectory = "/home/lvuser";
+  private static final double kRecordingBufferTime = 2.0;
+  // Length of a bias tracking stationary window in seconds
+  static final double kBiasWindowTime = 0.5;
+  // Auto-sized FIFO, in seconds of samples at the configured rate
+  private static final double kSamplesBufferTime = 0.1;
+  // Minimum time between error reports to the driver station
+  private static final double kErrorReportInterval = 1.0;
+  // Longest wait for the IMU to answer after a reset
+  private static final double kStartupTimeout = 1.0;
+  // Data Ready (LOW = Good Data) on DIO1 (PWM0 on MXP) & PoP
+  private static final int kMscCtrl = 0x0056;
+
+  // Nominal IMU sample period in seconds
+  private final double m_sample_period;
+  // Low rate channels scaled into the AHRS Sample
+  private final boolean m_ahrs_baro;
+  private final boolean m_ahrs_temp;
+  // Configuration register values
+  private final int m_smpl_prd;
+  private final int m_sens_avg;
+  // DMA buffer size in 32-bit words
+  private final int m_dma_buffer_words;
+  // Time for the DMA engine to clock in a 28 byte burst after data ready
+  private static final long kBurstTransferNanos = 300000;
+  // Shortest sleep used by the adaptive poll when a packet is late
+  private static final long kMinPollNanos = 250000;
+  // Periods without a packet after which the adaptive poll stops retrying
+  // quickly
+  private static final long kStalledPeriods = 4;
+  // Fixed sleep used by the polling drain mode
+  private static final long kPollingSleepMs = 20;
+
+  // Acquire drain mode
+  private volatile DrainMode m_drain_mode = DrainMode.kInterrupt;
+
+  // Filtered delay between a packet's FPGA timestamp and it being decoded
+  private volatile double m_acquire_latency = 0.0;
+
   // AHRS algorithm
   private AHRSAlgorithm m_algorithm;
 
   // AHRS yaw axis
   private Axis m_yaw_axis;
 
-	//CRC-16 Look-Up Table
-	int adiscrc[] = new int[]{
-	0x0000, 0x17CE, 0x0FDF, 0x1811, 0x1FBE, 0x0870, 0x1061, 0x07AF,
-	0x1F3F, 0x08F1, 0x10E0, 0x072E, 0x0081, 0x174F, 0x0F5E, 0x1890,
-	0x1E3D, 0x09F3, 0x11E2, 0x062C, 0x0183, 0x164D, 0x0E5C, 0x1992,
-	0x0102, 0x16CC, 0x0EDD, 0x1913, 0x1EBC, 0x0972, 0x1163, 0x06AD,
-	0x1C39, 0x0BF7, 0x13E6, 0x0428, 0x0387, 0x1449, 0x0C58, 0x1B96,
-	0x0306, 0x14C8, 0x0CD9, 0x1B17, 0x1CB8, 0x0B76, 0x1367, 0x04A9,
-	0x0204, 0x15CA, 0x0DDB, 0x1A15, 0x1DBA, 0x0A74, 0x1265, 0x05AB,
-	0x1D3B, 0x0AF5, 0x12E4, 0x052A, 0x0285, 0x154B, 0x0D5A, 0x1A94,
-	0x1831, 0x0FFF, 0x17EE, 0x0020, 0x078F, 0x1041, 0x0850, 0x1F9E,
-	0x070E, 0x10C0, 0x08D1, 0x1F1F, 0x18B0, 0x0F7E, 0x176F, 0x00A1,
-	0x060C, 0x11C2, 0x09D3, 0x1E1D, 0x19B2, 0x0E7C, 0x166D, 0x01A3,
-	0x1933, 0x0EFD, 0x16EC, 0x0122, 0x068D, 0x1143, 0x0952, 0x1E9C,
-	0x0408, 0x13C6, 0x0BD7, 0x1C19, 0x1BB6, 0x0C78, 0x1469, 0x03A7,
-	0x1B37, 0x0CF9, 0x14E8, 0x0326, 0x0489, 0x1347, 0x0B56, 0x1C98,
-	0x1A35, 0x0DFB, 0x15EA, 0x0224, 0x058B, 0x1245, 0x0A54, 0x1D9A,
-	0x050A, 0x12C4, 0x0AD5, 0x1D1B, 0x1AB4, 0x0D7A, 0x156B, 0x02A5,
-	0x1021, 0x07EF, 0x1FFE, 0x0830, 0x0F9F, 0x1851, 0x0040, 0x178E,
-	0x0F1E, 0x18D0, 0x00C1, 0x170F, 0x10A0, 0x076E, 0x1F7F, 0x08B1,
-	0x0E1C, 0x19D2, 0x01C3, 0x160D, 0x11A2, 0x066C, 0x1E7D, 0x09B3,
-	0x1123, 0x06ED, 0x1EFC, 0x0932, 0x0E9D, 0x1953, 0x0142, 0x168C,
-	0x0C18, 0x1BD6, 0x03C7, 0x1409, 0x13A6, 0x0468, 0x1C79, 0x0BB7,
-	0x1327, 0x04E9, 0x1CF8, 0x0B36, 0x0C99, 0x1B57, 0x0346, 0x1488,
-	0x1225, 0x05EB, 0x1DFA, 0x0A34, 0x0D9B, 0x1A55, 0x0244, 0x158A,
-	0x0D1A, 0x1AD4, 0x02C5, 0x150B, 0x12A4, 0x056A, 0x1D7B, 0x0AB5,
-	0x0810, 0x1FDE, 0x07CF, 0x1001, 0x17AE, 0x0060, 0x1871, 0x0FBF,
-	0x172F, 0x00E1, 0x18F0, 0x0F3E, 0x0891, 0x1F5F, 0x074E, 0x1080,
-	0x162D, 0x01E3, 0x19F2, 0x0E3C, 0x0993, 0x1E5D, 0x064C, 0x1182,
-	0x0912, 0x1EDC, 0x06CD, 0x1103, 0x16AC, 0x0162, 0x1973, 0x0EBD,
-	0x1429, 0x03E7, 0x1BF6, 0x0C38, 0x0B97, 0x1C59, 0x0448, 0x1386,
-	0x0B16, 0x1CD8, 0x04C9, 0x1307, 0x14A8, 0x0366, 0x1B77, 0x0CB9,
-	0x0A14, 0x1DDA, 0x05CB, 0x1205, 0x15AA, 0x0264, 0x1A75, 0x0DBB,
-	0x152B, 0x02E5, 0x1AF4, 0x0D3A, 0x0A95, 0x1D5B, 0x054A, 0x1284
-	};
   
   // serial number and lot id
-  //private int m_serial_num;
-  //private int m_lot_id1;
-  //private int m_lot_id2;
-
-  // gyro offset
-  private double m_gyro_offset_x = 0.0;
-  private double m_gyro_offset_y = 0.0;
-  private double m_gyro_offset_z = 0.0;
-
-  // last read values (post-scaling)
-  private double m_gyro_x = 0.0;
-  private double m_gyro_y = 0.0;
-  private double m_gyro_z = 0.0;
-  private double m_accel_x = 0.0;
-  private double m_accel_y = 0.0;
-  private double m_accel_z = 0.0;
-  private double m_mag_x = 0.0;
-  private double m_mag_y = 0.0;
-  private double m_mag_z = 0.0;
-  private double m_baro = 0.0;
-  private double m_temp = 0.0;
-
-  // accumulated gyro values (for offset calculation)
-  private int m_accum_count = 0;
-  private double m_accum_gyro_x = 0.0;
-  private double m_accum_gyro_y = 0.0;
-  private double m_accum_gyro_z = 0.0;
-
-  // integrated gyro values
-  private double m_integ_gyro_x = 0.0;
-  private double m_integ_gyro_y = 0.0;
-  private double m_integ_gyro_z = 0.0;
-
-  // last sample time
-  private double m_last_sample_time = 0.0;
-
-  // Kalman (AHRS)
-  private static final double kGyroScale = 0.0174533;   // rad/sec
-  private static final double kAccelScale = 9.80665;    // mg/sec/sec
-  private static final double kMagScale = 0.1;          // uTesla
-  private static final double kBeta = 1;
-  private double m_ahrs_q1 = 1, m_ahrs_q2 = 0, m_ahrs_q3 = 0, m_ahrs_q4 = 0;
-
-  // Complementary AHRS
-  private boolean m_first = true;
-  private double m_gyro_x_prev;
-  private double m_gyro_y_prev;
-  private double m_gyro_z_prev;
-  private double m_mag_angle_prev = 0.0;
-  private boolean m_tilt_comp_yaw = true;
-
-  // AHRS outputs
-  private double m_yaw = 0.0;
-  private double m_roll = 0.0;
-  private double m_pitch = 0.0;
+  private int m_serial_num;
+  private int m_lot_id1;
+  private int m_lot_id2;
+
+  // Saved gyro offsets, or null if disabled
+  private ADIS16448_BiasCache m_bias_cache;
+
+  // Calibration run, accumulated by the acquire thread. Replaced (under the
+  // monitor) by calibrateAsync() once the previous run is done.
+  private volatile ADIS16448_Calibration m_calibration;
+  private volatile boolean m_calibrated = false;
+
+  // Online offset tracking while stationary (acquire thread only, once the
+  // calibration is done)
+  private final ADIS16448_BiasTracker m_bias_tracker;
+  private volatile boolean m_bias_tracking = false;
+
+  // Gyro offsets, dt and integrated angles (acquire thread only)
+  private final ADIS16448_Integrator m_integrator;
+  private final AtomicBoolean m_reset_requested = new AtomicBoolean(false);
+
+  // Published state (see ImuSnapshot for the layout). Written only by the
+  // calculate thread, once per sample, under a sequence lock: the sequence
+  // is odd while an update is in progress.
+  private final double[] m_published = new ImuSnapshot().m_values;
+  private final AtomicInteger m_published_seq = new AtomicInteger();
+
+  // Recent published states, for lookups by timestamp
+  private final ADIS16448_History m_history;
+
+  // Sample listeners and waitForNextSample() callers
+  private final ADIS16448_SampleListeners m_listeners = new ADIS16448_SampleListeners();
+
+  // AHRS engine (calculate thread only)
+  private final FusionFilter m_filter;
 
   private AtomicBoolean m_freed = new AtomicBoolean(false);
 
   private SPI m_spi;
+  private ADIS16448_Transport m_transport;
   private DigitalInput m_interrupt;
 
-  // Sample from the IMU
-  private static class Sample {
+  /**
+   * Sample from the IMU, as passed to a {@link FusionFilter}. Rates are in
+   * degrees/second, accelerations in g, the field in milligauss and dt in
+   * seconds.
+   */
+  public static final class Sample {
     public double gyro_x;
     public double gyro_y;
     public double gyro_z;
@@ -213,18 +370,23 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
     }
   }
 
-  // Sample FIFO
-  private static final int kSamplesDepth = 10;
-  private final Sample[] m_samples;
-  private final Lock m_samples_mutex;
-  private final Condition m_samples_not_empty;
-  private int m_samples_count = 0;
-  private int m_samples_take_index = 0;
-  private int m_samples_put_index = 0;
-  private boolean m_calculate_started = false;
+  // Sample FIFO between the acquire and calculate threads.  Never smaller
+  // than a full 20ms drain at the fastest IMU decimation (819.2 SPS) with
+  // plenty of margin.
+  private static final int kMinSamplesDepth = 64;
+  private final ADIS16448_SampleRing m_samples;
+
+  // Raw packet recorder, or null when not recording
+  private volatile ADIS16448_Recorder m_recorder;
+
+  // Pipeline health counters and histograms
+  private final ADIS16448_Metrics m_metrics = new ADIS16448_Metrics();
 
-  // Previous timestamp
-  long timestamp_old = 0;
+  // Longest time the calculate thread parks before re-checking m_freed
+  private static final long kCalculateParkNanos = 50000000;
+
+  // Packet decoder used by the acquire thread
+  private final ADIS16448_PacketDecoder m_decoder = new ADIS16448_PacketDecoder();
 
   private static class AcquireTask implements Runnable {
     private ADIS16448_IMU imu;
@@ -253,18 +415,50 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
 
   /**
    * @param yaw_axis Which axis is Yaw
-   * @param algorithm Use {@link #calculateComplementary} or {@link #calculateMadgwick} algorithm
+   * @param algorithm AHRS engine to use
    */
   public ADIS16448_IMU(Axis yaw_axis, AHRSAlgorithm algorithm) {
-    m_yaw_axis = yaw_axis;
-    m_algorithm = algorithm;
+    this(new Builder().yawAxis(yaw_axis).algorithm(algorithm));
+  }
+
+  /**
+   * @param yaw_axis Which axis is Yaw
+   * @param algorithm AHRS engine to use
+   * @param fifo_depth Number of samples buffered between acquisition and the AHRS calculation
+   */
+  public ADIS16448_IMU(Axis yaw_axis, AHRSAlgorithm algorithm, int fifo_depth) {
+    this(new Builder().yawAxis(yaw_axis).algorithm(algorithm).fifoDepth(fifo_depth));
+  }
+
+  private ADIS16448_IMU(Builder config) {
+    m_yaw_axis = config.m_yaw_axis;
+    m_algorithm = config.m_algorithm;
+    m_filter = config.m_filter != null ? config.m_filter : createFilter(m_algorithm, m_yaw_axis);
+
+    // Size buffers for the sample rate.  The read buffer holds the whole DMA
+    // buffer so one drain can always empty it.
+    double rate = config.m_sample_rate.getSamplesPerSecond();
+    m_sample_period = 1.0 / rate;
+    m_dma_buffer_words = Math.max(kMinDmaBufferWords,
+        (int) Math.ceil(rate * kDmaBufferTime) * ADIS16448_PacketDecoder.kPacketWords);
+    m_bias_tracker = new ADIS16448_BiasTracker((int) Math.ceil(rate * kBiasWindowTime));
+    m_integrator = new ADIS16448_Integrator(m_sample_period, m_bias_tracker);
+    m_history = new ADIS16448_History((int) Math.ceil(rate * config.m_history_length) + 1);
+    m_smpl_prd = (config.m_sample_rate.m_decimation << 8) | 0x0001;
+    m_ahrs_baro = config.m_ahrs_baro;
+    m_ahrs_temp = config.m_ahrs_temp;
+    m_decoder.setLowRateDecimation(config.m_low_rate_decimation);
+    m_sens_avg = 0x0400 | Integer.numberOfTrailingZeros(config.m_filter_taps);
+    int fifo_depth = config.m_fifo_depth;
+    if (fifo_depth == 0) {
+      fifo_depth = defaultFifoDepth(config.m_sample_rate);
+    }
 
     // Force the IMU reset pin to toggle on startup (doesn't require DS enable)
     DigitalOutput m_reset_out = new DigitalOutput(18);  // Drive MXP DIO8 low
     Timer.delay(0.01);  // Wait 10ms
     m_reset_out.close();
     DigitalInput m_reset_in = new DigitalInput(18);  // Set MXP DIO8 high
-    Timer.delay(0.5);  // Wait 500ms
 
     m_spi = new SPI(SPI.Port.kMXP);
     m_spi.setClockRate(1000000);
@@ -272,51 +466,71 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
     m_spi.setSampleDataOnFalling();
     m_spi.setClockActiveLow();
     m_spi.setChipSelectActiveLow();
-    
-    readRegister(kRegPROD_ID); // dummy read
-    
-    // Validate the product ID
-    if (readRegister(kRegPROD_ID) != 16448) {
+    ADIS16448_Registers registers = new ADIS16448_Registers(m_spi);
+
+    // Poll the product ID until the IMU is out of reset, rather than always
+    // waiting 500ms. This also validates the product ID.
+    if (!registers.waitReady(kStartupTimeout)) {
       m_spi.free();
       m_spi = null;
       m_samples = null;
-      m_samples_mutex = null;
-      m_samples_not_empty = null;
       DriverStation.reportError("could not find ADIS16448", false);
       return;
     }
 
-    // Set IMU internal decimation to 102.4 SPS
-    writeRegister(kRegSMPL_PRD, 0x0301);
-
-    // Enable Data Ready (LOW = Good Data) on DIO1 (PWM0 on MXP) & PoP
-    writeRegister(kRegMSC_CTRL, 0x0056);
-
-    // Configure IMU internal Bartlett filter
-    writeRegister(kRegSENS_AVG, 0x0402);
+    // The reset loaded the factory defaults, so only the bytes that differ
+    // from them are written: IMU internal decimation (internal sample
+    // clock), data ready & PoP, and the internal Bartlett filter
+    // (+/-1000 dps, 2^B taps)
+    registers.assumeResetDefaults();
+    int[] config_regs = {kRegSMPL_PRD, kRegMSC_CTRL, kRegSENS_AVG};
+    int[] config_values = {m_smpl_prd, kMscCtrl, m_sens_avg};
+    registers.write(config_regs, config_values);
+
+    // Read the configuration back along with the serial number, lot ID and
+    // temperature in one pipelined sequence
+    int[] regs = {kRegSMPL_PRD, kRegMSC_CTRL, kRegSENS_AVG, kRegSERIAL_NUM, kRegLOT_ID2, kRegLOT_ID1, kRegTEMP_OUT};
+    int[] values = new int[regs.length];
+    registers.read(regs, values);
+    if (values[0] != config_values[0] || values[1] != config_values[1] || values[2] != config_values[2]) {
+      // Not at the defaults (e.g. saved to flash); write everything
+      registers.invalidate();
+      registers.write(config_regs, config_values);
+      if (!registers.verify(config_regs, config_values, values)) {
+        DriverStation.reportError("ADIS16448: configuration registers did not verify", false);
+      }
+    }
+    m_serial_num = values[3];
+    m_lot_id2 = values[4];
+    m_lot_id1 = values[5];
+
+    // Start from the saved offsets for this IMU and temperature, if any, so
+    // the very first samples are already usable
+    double[] cached_offsets = null;
+    if (config.m_bias_cache_file != null) {
+      m_bias_cache = new ADIS16448_BiasCache(config.m_bias_cache_file, m_lot_id1, m_lot_id2, m_serial_num);
+      double temp = (short) values[6] * ADIS16448_PacketDecoder.kDegCPerLSB
+          + ADIS16448_PacketDecoder.kDegCOffset;
+      cached_offsets = m_bias_cache.lookup(temp);
+    }
+    if (cached_offsets != null) {
+      m_integrator.setOffsets(cached_offsets[0], cached_offsets[1], cached_offsets[2]);
+      m_calibrated = true;
+    }
 
-    // Read serial number and lot ID
-    //m_serial_num = readRegister(kRegSERIAL_NUM);
-    //m_lot_id2 = readRegister(kRegLOT_ID2);
-    //m_lot_id1 = readRegister(kRegLOT_ID1);
+    // Create data acq FIFO
+    m_samples = new ADIS16448_SampleRing(fifo_depth);
 
-    // Create data acq FIFO.  We make the FIFO 2 longer than it needs
-    // to be so the input and output never overlap (we hold a reference
-    // to the output while the lock is released).
-    m_samples_mutex = new ReentrantLock();
-    m_samples_not_empty = m_samples_mutex.newCondition();
-    
-    m_samples = new Sample[kSamplesDepth + 2];
-    for (int i=0; i<kSamplesDepth + 2; i++) {
-      m_samples[i] = new Sample();
-    }
-    
     // Configure interrupt on MXP DIO0
     m_interrupt = new DigitalInput(10);
+    // Synchronous interrupts so the acquire thread can block on data ready
+    m_interrupt.requestInterrupts();
+    m_interrupt.setUpSourceEdge(true, false);
     // Configure SPI bus for DMA read
-    m_spi.initAuto(8200);
+    m_spi.initAuto(m_dma_buffer_words);
     m_spi.setAutoTransmitData(new byte[] {kGLOB_CMD},27);
     m_spi.startAutoTrigger(m_interrupt, true, false);
+    m_transport = new ADIS16448_SpiTransport(m_spi);
     
     m_freed.set(false);
     m_acquire_task = new Thread(new AcquireTask(this));
@@ -328,7 +542,13 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
     m_calculate_task.setDaemon(true);
     m_calculate_task.start();
     
-    calibrate();
+    // Measure gyro offsets in the background. Cached offsets only need a
+    // short check.
+    if (cached_offsets != null) {
+      startCalibration(new ADIS16448_Calibration(kRefineSampleTime, cached_offsets, kRefineTolerance));
+    } else {
+      calibrateAsync();
+    }
     
     // Report usage and post data to DS
 
@@ -352,75 +572,122 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
 
   /**
    * {@inheritDoc}
+   *
+   * <p>Blocks until the calibration started by {@link #calibrateAsync} is done.
    */
   @Override
   public void calibrate() {
     if (m_spi == null) return;
 
-    Timer.delay(0.1);
-
-    synchronized (this) {
-      m_accum_count = 0;
-      m_accum_gyro_x = 0.0;
-      m_accum_gyro_y = 0.0;
-      m_accum_gyro_z = 0.0;
+    try {
+      calibrateAsync().get((long) ((kCalibrationSampleTime + 1.0) * 1000), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      DriverStation.reportError("ADIS16448 calibration did not complete", false);
     }
+  }
 
-    Timer.delay(kCalibrationSampleTime);
+  /**
+   * Start measuring the gyro offsets without blocking the caller.
+   *
+   * <p>The acquire thread averages {@code kCalibrationSampleTime} seconds of
+   * samples and then applies the new offsets.  If a calibration is already
+   * running, its future is returned instead of restarting it.
+   *
+   * @return future that completes when the new offsets are in use
+   */
+  public CompletableFuture<Void> calibrateAsync() {
+    if (m_spi == null) return CompletableFuture.completedFuture(null);
 
     synchronized (this) {
-      m_gyro_offset_x = m_accum_gyro_x / m_accum_count;
-      m_gyro_offset_y = m_accum_gyro_y / m_accum_count;
-      m_gyro_offset_z = m_accum_gyro_z / m_accum_count;
+      ADIS16448_Calibration calibration = m_calibration;
+      if (calibration != null && !calibration.isDone()) {
+        return calibration.future();
+      }
+      return startCalibration(new ADIS16448_Calibration(kCalibrationSampleTime));
     }
   }
 
+  // Hand a calibration run to the acquire thread, saving its result when done
+  private synchronized CompletableFuture<Void> startCalibration(ADIS16448_Calibration calibration) {
+    ADIS16448_BiasCache cache = m_bias_cache;
+    if (cache != null) {
+      // Runs on the common pool (see ADIS16448_Calibration.complete)
+      calibration.future().thenRun(() -> {
+        if (!calibration.isRejected()) {
+          cache.store(calibration.temp, calibration.offset_x, calibration.offset_y, calibration.offset_z);
+        }
+      });
+    }
+    m_calibration = calibration;
+    return calibration.future();
+  }
+
+  /**
+   * True once a calibration has completed and the gyro offsets are valid.
+   */
+  public boolean isCalibrated() {
+    return m_calibrated;
+  }
+
+  /**
+   * True while a calibration is running.
+   */
+  public boolean isCalibrating() {
+    ADIS16448_Calibration calibration = m_calibration;
+    return calibration != null && !calibration.isDone();
+  }
+
+  /**
+   * Keep updating the gyro offsets after calibration, from periods where the
+   * IMU is stationary, with a linear temperature term.  Off by default.
+   */
+  public void setBiasTracking(boolean enabled) {
+    m_bias_tracking = enabled;
+  }
+
+  public boolean isBiasTracking() {
+    return m_bias_tracking;
+  }
+
+  /**
+   * True if the last bias tracking window found the IMU stationary.
+   */
+  public boolean isStationary() {
+    return m_bias_tracker.isStationary();
+  }
+
+  /**
+   * Number of times bias tracking has updated the gyro offsets.
+   */
+  public long getBiasUpdateCount() {
+    return m_bias_tracker.getUpdateCount();
+  }
+
+  /**
+   * Progress of the current (or last) calibration, from 0 to 1.
+   */
+  public double getCalibrationProgress() {
+    ADIS16448_Calibration calibration = m_calibration;
+    return calibration == null ? 0.0 : calibration.getProgress();
+  }
+
   static int ToUShort(ByteBuffer buf) {
 	  return (buf.getShort(0)) & 0xFFFF;
   }
-  static int ToUShort(int... data) {
-	  ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
-	  for(int d : data) {
-		  buf.put((byte)d);
-	  }
-	  return ToUShort(buf);
-  }
   
   public static long ToULong(int sint) {
 		return sint & 0x00000000FFFFFFFFL;
 	}
 
-  private static int ToShort(int... buf) {
-      return (short)(((short)buf[0]) << 8 | buf[1]);
+  private static int ToShort(int msb, int lsb) {
+      return (short)(((short)msb) << 8 | lsb);
   }
   static int ToShort(ByteBuffer buf) {
 	  return ToShort(buf.get(0), buf.get(1));
   }
   
-  private int readRegister(int reg) {
-    ByteBuffer buf = ByteBuffer.allocateDirect(2);
-    buf.order(ByteOrder.BIG_ENDIAN);
-    buf.put(0, (byte) (reg & 0x7f));
-    buf.put(1, (byte) 0);
-
-    m_spi.write(buf, 2);
-    m_spi.read(false, buf, 2);
-
-    return ToUShort(buf);
-  }
-
-  private void writeRegister(int reg, int val) {
-    ByteBuffer buf = ByteBuffer.allocateDirect(2);
-    // low byte
-    buf.put(0, (byte)((0x80 | reg) | 0x10));
-    buf.put(1, (byte) (val & 0xff));
-    m_spi.write(buf, 2);
-    // high byte
-    buf.put(0, (byte) (0x81 | reg));
-    buf.put(1, (byte) (val >> 8));
-    m_spi.write(buf, 2);
-  }
-
   private void printBytes(int[] data) {
 		for(int i = 0; i < data.length; ++i) {
 			System.out.print(data[i] + " ");
@@ -438,11 +705,8 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
    * {@inheritDoc}
    */
   public void reset() {
-    synchronized (this) {
-      m_integ_gyro_x = 0.0;
-      m_integ_gyro_y = 0.0;
-      m_integ_gyro_z = 0.0;
-    }
+    // Applied by the acquire thread before it integrates the next sample
+    m_reset_requested.set(true);
   }
 
   /**
@@ -450,14 +714,10 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
    */
   @Override
   public void free() {
+    stopRecording();
     m_freed.set(true);
-    if (m_samples_mutex != null) {
-      m_samples_mutex.lock();
-      try {
-        m_samples_not_empty.signal();
-      } finally {
-        m_samples_mutex.unlock();
-      }
+    if (m_samples != null) {
+      m_samples.wakeConsumer();
     }
     try {
       if (m_acquire_task != null) {
@@ -469,6 +729,7 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
     } catch (InterruptedException e) {
     }
     if (m_interrupt != null) {
+      m_interrupt.cancelInterrupts();
       m_interrupt.free();
       m_interrupt = null;
     }
@@ -479,738 +740,683 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
   }
 
   private void acquire() {
-    ByteBuffer readBuf = ByteBuffer.allocateDirect(64000);
+    ByteBuffer readBuf = ByteBuffer.allocateDirect(m_dma_buffer_words * 4);
     readBuf.order(ByteOrder.LITTLE_ENDIAN);
-    double gyro_x, gyro_y, gyro_z, accel_x, accel_y, accel_z, mag_x, mag_y, mag_z, baro, temp;
-    int data_count = 0;
-    int array_offset = 0;
-    int imu_crc = 0;
-    double dt = 0; // This number must be adjusted if decimation setting is changed. Default is 1/102.4 SPS
-    int data_subset[] = new int[28];
-    long timestamp_new = 0;
-    int data_to_read = 0;
+    final ADIS16448_PacketDecoder packet = m_decoder;
+    final ADIS16448_Integrator integrator = m_integrator;
+    // Packet timestamps are extended to the 64-bit FPGA clock from here
+    packet.setTimeReference(RobotController.getFPGATime());
+    final int max_packets = readBuf.capacity() / ADIS16448_PacketDecoder.kPacketBytes;
+    final boolean[] crc_valid = new boolean[max_packets];
+    long reported_drops = 0;
+    long reported_crc_failures = 0;
+    double last_report_time = 0;
 
     while (!m_freed.get()) {
       // Waiting for the buffer to fill...
-  	  try{Thread.sleep(20);}catch(InterruptedException e){} // A delay less than 10ms could potentially overflow the local buffer
-
-  	  data_count = m_spi.readAutoReceivedData(readBuf,0,0); // Read number of bytes currently stored in the buffer
-      array_offset = data_count % 116; // Look for "extra" data This is 116 not 29 like in C++ b/c everything is 32-bits and takes up 4 bytes in the buffer
-      data_to_read = data_count - array_offset; // Discard "extra" data
-      m_spi.readAutoReceivedData(readBuf,data_to_read,0); // Read data from DMA buffer
-      for(int i = 0; i < data_to_read; i += 116) { // Process each set of 28 bytes (timestamp + 28 data) * 4 (32-bit ints)        
-        for(int j = 1; j < 29; j++) { // Split each set of 28 bytes into a sub-array for processing
-          int at  = (i + 4 * (j));
-			    data_subset[j - 1] = readBuf.getInt(at);
-        }
-        
-        // DEBUG: Print the received data
-        // printBytes(data_subset);
-
-        // DEBUG: Plot Sub-Array Data in Terminal
-        /*System.out.println(ToUShort(data_subset[0], data_subset[1]) + "," + ToUShort(data_subset[2], data_subset[3]) + "," + 
-        ToUShort(data_subset[4], data_subset[5]) + "," + ToUShort(data_subset[6], data_subset[7]) + "," + ToUShort(data_subset[8], data_subset[9]) + "," 
-        + ToUShort(data_subset[10], data_subset[11]) + "," +
-        ToUShort(data_subset[12], data_subset[13]) + "," + ToUShort(data_subset[14], data_subset[15]) + "," 
-        + ToUShort(data_subset[16], data_subset[17]) + "," +
-        ToUShort(data_subset[18], data_subset[19]) + "," + ToUShort(data_subset[20], data_subset[21]) + "," 
-        + ToUShort(data_subset[22], data_subset[23]) + "," +
-        ToUShort(data_subset[24], data_subset[25]) + "," + ToUShort(data_subset[26], data_subset[27]));*/
-
-        // Calculate CRC-16 on each data packet
-        int calc_crc = 0x0000FFFF; // Starting word
-        int read_byte = 0;
-        for(int k = 4; k < 26; k += 2 ) { // Cycle through XYZ GYRO, XYZ ACCEL, XYZ MAG, BARO, TEMP (Ignore Status & CRC)
-          read_byte = data_subset[k+1]; // Process LSB
-          calc_crc = (calc_crc >>> 8) ^ adiscrc[(calc_crc & 0x000000FF) ^ read_byte];
-          read_byte = data_subset[k]; // Process MSB
-          calc_crc = (calc_crc >>> 8) ^ adiscrc[(calc_crc & 0x000000FF) ^ read_byte];
-        }
-        
-        // Make sure to mask all but relevant 16 bits
-        calc_crc = ~calc_crc & 0xFFFF;
-        calc_crc = ((calc_crc << 8) | (calc_crc >> 8)) & 0xFFFF; 
-        //System.out.println("Calc: " + calc_crc);
-
-        // This is the data needed for CRC
-        ByteBuffer bBuf = ByteBuffer.allocateDirect(2);
-        bBuf.put((byte)readBuf.getInt((i + 26) * 4 + 4)); // (i + 26) * 4 = position (32-bit ints) + 4 to skip timestamp
-        bBuf.put((byte)readBuf.getInt((i + 27) * 4 + 4)); // (i + 27) * 4 = position (32-bit ints) + 4 to skip timestamp
-        
-        imu_crc = ToUShort(bBuf); // Extract DUT CRC from data
-        //System.out.println("IMU: " + imu_crc);
-        //System.out.println("------------");
-        
-        // Compare calculated vs read CRC. Don't update outputs if CRC-16 is bad
-        if(calc_crc == imu_crc) {
-          // Calculate delta-time (dt) using FPGA timestamps
-          timestamp_new = ToULong(readBuf.getInt(i * 4));
-          dt = (timestamp_new - timestamp_old)/1000000.0; // Calculate dt and convert us to seconds
-          timestamp_old = timestamp_new; // Store new timestamp in old variable for next cycle
-
-          gyro_x = ToShort(data_subset[4], data_subset[5]) * kDegreePerSecondPerLSB;
-          gyro_y = ToShort(data_subset[6], data_subset[7]) * kDegreePerSecondPerLSB;
-          gyro_z = ToShort(data_subset[8], data_subset[9]) * kDegreePerSecondPerLSB;
-          accel_x = ToShort(data_subset[10], data_subset[11]) * kGPerLSB;
-          accel_y = ToShort(data_subset[12], data_subset[13]) * kGPerLSB;
-          accel_z = ToShort(data_subset[14], data_subset[15]) * kGPerLSB;
-          mag_x = ToShort(data_subset[16], data_subset[17]) * kMilligaussPerLSB;
-          mag_y = ToShort(data_subset[18], data_subset[19]) * kMilligaussPerLSB;
-          mag_z = ToShort(data_subset[20], data_subset[21]) * kMilligaussPerLSB;
-          baro = ToUShort(data_subset[22], data_subset[23]) * kMillibarPerLSB;
-          temp = ToShort(data_subset[24], data_subset[25]) * kDegCPerLSB + kDegCOffset;
-                  
-          // Print scaled data to terminal
-          /*System.out.println(gyro_x + "," + gyro_y + "," + gyro_z + "," + accel_x + "," + accel_y + "," 
-          + accel_z + "," + mag_x + "," + mag_y + "," + mag_z + "," + baro + "," + temp + "," + "," 
-          + ToUShort(data_subset[26], data_subset[27]));*/
-          //System.out.println("---------------------"); // Frame divider (or else data looks like a mess)
-          
-          m_samples_mutex.lock();
-          try{
-            // If the FIFO is full, just drop it
-            if (m_calculate_started && m_samples_count < kSamplesDepth)
-            {
-              Sample sample = m_samples[m_samples_put_index];
-              sample.gyro_x = gyro_x;
-              sample.gyro_y = gyro_y;
-              sample.gyro_z = gyro_z;
-              sample.accel_x = accel_x;
-              sample.accel_y = accel_y;
-              sample.accel_z = accel_z;
-              sample.mag_x = mag_x;
-              sample.mag_y = mag_y;
-              sample.mag_z = mag_z;
-              sample.baro = baro;
-              sample.temp = temp;
-              sample.dt = dt;
-              ++m_samples_put_index;
-              if (m_samples_put_index == (kSamplesDepth + 2))
-                m_samples_put_index = 0;
-              ++m_samples_count;
-              m_samples_not_empty.signal();
+      waitForData();
+      m_metrics.recordWake(System.nanoTime());
+
+      int packets = Math.max(0, m_transport.read(readBuf, max_packets));
+      ADIS16448_Recorder recorder = m_recorder;
+      if (recorder != null) {
+        // Everything the sensor sent, bad CRCs included
+        recorder.record(readBuf, packets);
+      }
+      // Check the CRC-16 of every packet in the drain. Don't update outputs if it is bad.
+      int failures = ADIS16448_PacketDecoder.validate(readBuf, packets, crc_valid);
+
+      boolean decoded = false;
+      for (int n = 0, i = 0; n < packets; n++, i += ADIS16448_PacketDecoder.kPacketBytes) { // Process each packet (timestamp + 28 data) * 4 (32-bit ints)
+        if (crc_valid[n]) {
+          packet.extract(readBuf, i);
+          decoded = true;
+          if (m_reset_requested.getAndSet(false)) {
+            integrator.resetAngles();
+          }
+
+          // dt, calibration, bias tracking and integration, as in a replay
+          ADIS16448_Calibration calibration = m_calibration;
+          if (integrator.step(packet, calibration, m_bias_tracking)) {
+            if (calibration.isRejected()) {
+              // Most likely moved during the check; keep the cached offsets
+              DriverStation.reportWarning("ADIS16448: gyro offsets differ from the saved ones, keeping saved offsets", false);
             }
-          }catch(Exception e) {
-            break;
-          }finally {
-            m_samples_mutex.unlock();
+            m_calibrated = true;
+            calibration.complete();
           }
+          double dt = integrator.getDt();
+          if (dt == 0.0) {
+            // Not integrated over a bad gap
+            m_metrics.recordBadInterval();
+          }
+
+          // Hand the sample to the calculate thread, which publishes it.
+          // If the FIFO is full the sample is dropped and counted by the ring.
+          int slot = m_samples.claim();
+          if (slot >= 0) {
+            m_samples.set(slot, ADIS16448_SampleRing.kGyroX, packet.gyro_x);
+            m_samples.set(slot, ADIS16448_SampleRing.kGyroY, packet.gyro_y);
+            m_samples.set(slot, ADIS16448_SampleRing.kGyroZ, packet.gyro_z);
+            m_samples.set(slot, ADIS16448_SampleRing.kAccelX, packet.accel_x);
+            m_samples.set(slot, ADIS16448_SampleRing.kAccelY, packet.accel_y);
+            m_samples.set(slot, ADIS16448_SampleRing.kAccelZ, packet.accel_z);
+            m_samples.set(slot, ADIS16448_SampleRing.kMagX, packet.mag_x);
+            m_samples.set(slot, ADIS16448_SampleRing.kMagY, packet.mag_y);
+            m_samples.set(slot, ADIS16448_SampleRing.kMagZ, packet.mag_z);
+            m_samples.set(slot, ADIS16448_SampleRing.kBaro, packet.baro_raw);
+            m_samples.set(slot, ADIS16448_SampleRing.kTemp, packet.temp_raw);
+            m_samples.set(slot, ADIS16448_SampleRing.kDt, dt);
+            m_samples.set(slot, ADIS16448_SampleRing.kAngleX, integrator.getAngleX());
+            m_samples.set(slot, ADIS16448_SampleRing.kAngleY, integrator.getAngleY());
+            m_samples.set(slot, ADIS16448_SampleRing.kAngleZ, integrator.getAngleZ());
+            m_samples.set(slot, ADIS16448_SampleRing.kTimestamp, packet.timestamp / 1000000.0);
+            m_samples.publish();
+          }
+        }
+      }
 
-          // Update global state
-          synchronized(this){
-            m_gyro_x = gyro_x;
-            m_gyro_y = gyro_y;
-            m_gyro_z = gyro_z;
-            m_accel_x = accel_x;
-            m_accel_y = accel_y;
-            m_accel_z = accel_z;
-            m_mag_x = mag_x;
-            m_mag_y = mag_y;
-            m_mag_z = mag_z;
-            m_baro = baro;
-            m_temp = temp;
-
-            ++m_accum_count;
-            m_accum_gyro_x += gyro_x;
-            m_accum_gyro_y += gyro_y;
-            m_accum_gyro_z += gyro_z;
-
-            m_integ_gyro_x += (gyro_x - m_gyro_offset_x) * dt;
-            m_integ_gyro_y += (gyro_y - m_gyro_offset_y) * dt;
-            m_integ_gyro_z += (gyro_z - m_gyro_offset_z) * dt;
-            
+      if (decoded) {
+        double latency = (RobotController.getFPGATime() - integrator.getLastTimestamp()) / 1000000.0;
+        m_acquire_latency += 0.1 * (latency - m_acquire_latency);
+      }
+
+      // Report lost data (DMA buffer or sample FIFO overflow) and bad CRCs,
+      // rate limited so noise bursts don't flood the console
+      long dma_dropped = m_transport.getDroppedCount();
+      long fifo_dropped = m_samples.getOverflowCount();
+      m_metrics.recordDrain(packets, failures, dma_dropped, fifo_dropped,
+          m_samples.getHighWaterMark(), System.nanoTime());
+      long drops = dma_dropped + fifo_dropped;
+      long crc_failures = m_metrics.getCrcFailureCount();
+      if (drops != reported_drops || crc_failures != reported_crc_failures) {
+        double now = Timer.getFPGATimestamp();
+        if (now - last_report_time >= kErrorReportInterval) {
+          if (drops != reported_drops) {
+            DriverStation.reportWarning("ADIS16448: " + (drops - reported_drops)
+                + " samples lost to buffer overflow", false);
+          }
+          if (crc_failures != reported_crc_failures) {
+            DriverStation.reportWarning("ADIS16448: " + (crc_failures - reported_crc_failures)
+                + " packets with invalid CRC", false);
           }
-        }else{
-          System.out.println("Invalid CRC");
+          reported_drops = drops;
+          reported_crc_failures = crc_failures;
+          last_report_time = now;
         }
-	    }
+      }
     }
   }
 
-  private void calculate() {
-    while (!m_freed.get()) {
-      // Wait for next sample and get it
-      try{Thread.sleep(20);}catch(InterruptedException e){}
-      Sample sample;
-      m_samples_mutex.lock();
-      try {
-        m_calculate_started = true;
-        while (m_samples_count == 0) {
-          m_samples_not_empty.await();
-          if (m_freed.get()) {
-            return;
-          }
+  /**
+   * Block the acquire thread until the DMA buffer should hold new packets.
+   */
+  private void waitForData() {
+    switch (m_drain_mode) {
+      case kInterrupt:
+        // Don't ignore an edge that arrived while the last drain was running.
+        // Time out after a couple of periods so free() is never held up.
+        m_interrupt.waitForInterrupt(2 * m_sample_period, false);
+        // Data ready marks the start of the burst, let the DMA engine finish it
+        LockSupport.parkNanos(kBurstTransferNanos);
+        break;
+      case kAdaptivePoll: {
+        // Wake just after the next packet is due (one period after the last
+        // one we decoded). If it is late, retry shortly; if it is several
+        // periods late the sensor has stopped, so fall back to one period.
+        long now = RobotController.getFPGATime();
+        long last_sample_time = m_integrator.getLastTimestamp();
+        long due = last_sample_time + (long) (m_sample_period * 1000000.0) + kBurstTransferNanos / 1000;
+        long wait_nanos = (due - now) * 1000;
+        long period_nanos = (long) (m_sample_period * 1e9);
+        if (last_sample_time == 0 || wait_nanos > period_nanos || wait_nanos < -kStalledPeriods * period_nanos) {
+          wait_nanos = period_nanos;
         }
-        sample = m_samples[m_samples_take_index];
-        ++m_samples_take_index;
-        if (m_samples_take_index == (kSamplesDepth + 2))
-          m_samples_take_index = 0;
-        --m_samples_count;
-      } catch (InterruptedException e) {
+        LockSupport.parkNanos(Math.max(wait_nanos, kMinPollNanos));
         break;
-      } finally {
-        m_samples_mutex.unlock();
       }
+      case kPolling:
+      default:
+        try{Thread.sleep(kPollingSleepMs);}catch(InterruptedException e){} // A delay less than 10ms could potentially overflow the local buffer
+        break;
+    }
+  }
 
-      switch (m_algorithm) {
-        case kMadgwick:
-          calculateMadgwick(sample, 0.4);
-          break;
-        case kComplementary:
-        default:
-          calculateComplementary(sample);
-          break;
+  private void calculate() {
+    final ADIS16448_SampleRing ring = m_samples;
+    final Sample sample = new Sample();
+    final FusionFilter filter = m_filter;
+    final ImuSnapshot listener_sample = new ImuSnapshot();
+    final double[] state = new ImuSnapshot().m_values;
+    final boolean ahrs_baro = m_ahrs_baro;
+    final boolean ahrs_temp = m_ahrs_temp;
+    while (!m_freed.get()) {
+      // Wait for samples, then process every queued sample as one batch
+      int count = ring.await(kCalculateParkNanos);
+      for (int i = 0; i < count; i++) {
+        int slot = ring.peek(i);
+        sample.gyro_x = ring.get(slot, ADIS16448_SampleRing.kGyroX);
+        sample.gyro_y = ring.get(slot, ADIS16448_SampleRing.kGyroY);
+        sample.gyro_z = ring.get(slot, ADIS16448_SampleRing.kGyroZ);
+        sample.accel_x = ring.get(slot, ADIS16448_SampleRing.kAccelX);
+        sample.accel_y = ring.get(slot, ADIS16448_SampleRing.kAccelY);
+        sample.accel_z = ring.get(slot, ADIS16448_SampleRing.kAccelZ);
+        sample.mag_x = ring.get(slot, ADIS16448_SampleRing.kMagX);
+        sample.mag_y = ring.get(slot, ADIS16448_SampleRing.kMagY);
+        sample.mag_z = ring.get(slot, ADIS16448_SampleRing.kMagZ);
+        double baro_raw = ring.get(slot, ADIS16448_SampleRing.kBaro);
+        double temp_raw = ring.get(slot, ADIS16448_SampleRing.kTemp);
+        sample.baro = ahrs_baro ? ADIS16448_PacketDecoder.scaleBaro(baro_raw) : 0.0;
+        sample.temp = ahrs_temp ? ADIS16448_PacketDecoder.scaleTemp(temp_raw) : 0.0;
+        sample.dt = ring.get(slot, ADIS16448_SampleRing.kDt);
+
+        // The AHRS adjusts the sample in place, so take the raw values first
+        state[ImuSnapshot.kRateX] = sample.gyro_x;
+        state[ImuSnapshot.kRateY] = sample.gyro_y;
+        state[ImuSnapshot.kRateZ] = sample.gyro_z;
+        state[ImuSnapshot.kAccelX] = sample.accel_x;
+        state[ImuSnapshot.kAccelY] = sample.accel_y;
+        state[ImuSnapshot.kAccelZ] = sample.accel_z;
+        state[ImuSnapshot.kMagX] = sample.mag_x;
+        state[ImuSnapshot.kMagY] = sample.mag_y;
+        state[ImuSnapshot.kMagZ] = sample.mag_z;
+        state[ImuSnapshot.kBaro] = baro_raw;
+        state[ImuSnapshot.kTemp] = temp_raw;
+        state[ImuSnapshot.kAngleX] = ring.get(slot, ADIS16448_SampleRing.kAngleX);
+        state[ImuSnapshot.kAngleY] = ring.get(slot, ADIS16448_SampleRing.kAngleY);
+        state[ImuSnapshot.kAngleZ] = ring.get(slot, ADIS16448_SampleRing.kAngleZ);
+        state[ImuSnapshot.kTimestamp] = ring.get(slot, ADIS16448_SampleRing.kTimestamp);
+
+        long start = System.nanoTime();
+        filter.update(sample);
+
+        state[ImuSnapshot.kYaw] = filter.getYaw();
+        state[ImuSnapshot.kPitch] = filter.getPitch();
+        state[ImuSnapshot.kRoll] = filter.getRoll();
+        state[ImuSnapshot.kQuaternionW] = filter.getQuaternionW();
+        state[ImuSnapshot.kQuaternionX] = filter.getQuaternionX();
+        state[ImuSnapshot.kQuaternionY] = filter.getQuaternionY();
+        state[ImuSnapshot.kQuaternionZ] = filter.getQuaternionZ();
+        publish(state);
+        m_history.add(state);
+        long nanos = System.nanoTime() - start;
+        // The sample time is the extended FPGA time, so it can be compared
+        // with getFPGATime() however long the robot has been on
+        long latency = RobotController.getFPGATime() - Math.round(state[ImuSnapshot.kTimestamp] * 1000000.0);
+        m_metrics.recordSample(latency, nanos);
+        m_listeners.dispatch(state, listener_sample);
       }
+      ring.release(count);
     }
   }
 
-  private void calculateMadgwick(Sample sample, double beta) {
-    // Make local copy of quaternion and angle global state
-    double q1, q2, q3, q4;
-    synchronized (this) {
-      q1 = m_ahrs_q1;
-      q2 = m_ahrs_q2;
-      q3 = m_ahrs_q3;
-      q4 = m_ahrs_q4;
+  // FIFO depth when none is given: kSamplesBufferTime of samples at the
+  // rate, and never less than kMinSamplesDepth
+  static int defaultFifoDepth(SampleRate rate) {
+    return Math.max(kMinSamplesDepth, (int) Math.ceil(rate.getSamplesPerSecond() * kSamplesBufferTime));
+  }
+
+  static FusionFilter createFilter(AHRSAlgorithm algorithm, Axis yaw_axis) {
+    switch (algorithm) {
+      case kMadgwick:
+        return new ADIS16448_MadgwickFilter(yaw_axis);
+      case kMahony:
+        return new ADIS16448_MahonyFilter(yaw_axis);
+      case kKalman:
+        return new ADIS16448_KalmanFilter(yaw_axis);
+      case kComplementary:
+      default:
+        return new ADIS16448_ComplementaryFilter(yaw_axis);
     }
+  }
 
-    // Swap axis as appropriate for yaw axis selection
-    sample.adjustYawAxis(m_yaw_axis);
+  // Publish a new state for readers (calculate thread only)
+  private void publish(double[] state) {
+    int seq = m_published_seq.get();
+    m_published_seq.set(seq + 1);
+    // Keep the value writes after the odd sequence number
+    VarHandle.storeStoreFence();
+    System.arraycopy(state, 0, m_published, 0, ImuSnapshot.kValues);
+    m_published_seq.set(seq + 2);
+  }
 
-    // Kalman calculation
-    // Code originated from: https://decibel.ni.com/content/docs/DOC-18964
+  // Read one published value without locking
+  private double readPublished(int index) {
+    int seq;
+    double value;
     do {
-      // If true, only use gyros and magnetos for updating the filter.
-      boolean excludeAccel = false;
-
-      // Convert accelerometer units to m/sec/sec
-      double ax = sample.accel_x * kAccelScale;
-      double ay = sample.accel_y * kAccelScale;
-      double az = sample.accel_z * kAccelScale;
-      // Normalize accelerometer measurement
-      double norm = Math.sqrt(ax * ax + ay * ay + az * az);
-      if (norm > 0.3 && !excludeAccel) {
-        // normal larger than the sensor noise floor during freefall
-        norm = 1.0 / norm; 
-        ax *= norm;
-        ay *= norm;
-        az *= norm;
-      } else {
-        ax = 0;
-        ay = 0;
-        az = 0;
-      }
+      seq = m_published_seq.get();
+      value = m_published[index];
+      VarHandle.loadLoadFence();
+    } while ((seq & 1) != 0 || seq != m_published_seq.get());
+    return value;
+  }
 
-      // Convert magnetometer units to uTesla
-      double mx = sample.mag_x * kMagScale;
-      double my = sample.mag_y * kMagScale;
-      double mz = sample.mag_z * kMagScale;
-      // Normalize magnetometer measurement
-      norm = Math.sqrt(mx * mx + my * my + mz * mz);
-      if (norm > 0.0) {
-        norm = 1.0 / norm;
-        mx *= norm;
-        my *= norm;
-        mz *= norm;
-      } else {
-        break; // something is wrong with the magneto readouts
-      }
+  /**
+   * {@inheritDoc}
+   */
+  public double getAngle() {
+    if (m_spi == null) return 0.0;
+    return getYaw();
+  }
 
-      double _2q1 = 2.0 * q1;
-      double _2q2 = 2.0 * q2;
-      double _2q3 = 2.0 * q3;
-      double _2q4 = 2.0 * q4;
-      double _2q1q3 = 2.0 * q1 * q3;
-      double _2q3q4 = 2.0 * q3 * q4;
-      double q1q1 = q1 * q1;
-      double q1q2 = q1 * q2;
-      double q1q3 = q1 * q3;
-      double q1q4 = q1 * q4;
-      double q2q2 = q2 * q2;
-      double q2q3 = q2 * q3;
-      double q2q4 = q2 * q4;
-      double q3q3 = q3 * q3;
-      double q3q4 = q3 * q4;
-      double q4q4 = q4 * q4;
-
-      // Reference direction of Earth's magnetic field
-      double _2q1mx = 2 * q1 * mx;
-      double _2q1my = 2 * q1 * my;
-      double _2q1mz = 2 * q1 * mz;
-      double _2q2mx = 2 * q2 * mx;
-
-      double hx = mx * q1q1 - _2q1my * q4 + _2q1mz * q3 + mx * q2q2 + _2q2 * my * q3 + _2q2 * mz * q4 - mx * q3q3 - mx * q4q4;
-      double hy = _2q1mx * q4 + my * q1q1 - _2q1mz * q2 + _2q2mx * q3 - my * q2q2 + my * q3q3 + _2q3 * mz * q4 - my * q4q4;
-      double _2bx = Math.sqrt(hx * hx + hy * hy);
-      double _2bz = -_2q1mx * q3 + _2q1my * q2 + mz * q1q1 + _2q2mx * q4 - mz * q2q2 + _2q3 * my * q4 - mz * q3q3 + mz * q4q4;
-      double _4bx = 2.0 * _2bx;
-      double _4bz = 2.0 * _2bz;
-      double _8bx = 2.0 * _4bx;
-      double _8bz = 2.0 * _4bz;
-
-      // Gradient descent algorithm corrective step
-      double s1 =
-        - _2q3 * (2.0 * q2q4 - _2q1q3 - ax)
-        + _2q2 * (2.0 * q1q2 + _2q3q4 - ay)
-        - _4bz * q3 * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
-        + (-_4bx * q4 + _4bz * q2) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
-        + _4bx * q3 * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
-      double s2 =
-          _2q4 * (2.0 * q2q4 - _2q1q3 - ax)
-        + _2q1 * (2.0 * q1q2 + _2q3q4 - ay)
-        - 4.0 * q2 * (1.0 - 2.0 * q2q2 - 2.0 * q3q3 - az)
-        + _4bz * q4 * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
-        + (_4bx * q3 + _4bz * q1) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
-        + (_4bx * q4 - _8bz * q2) * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
-      double s3 =
-        - _2q1 * (2.0 * q2q4 - _2q1q3 - ax)
-        + _2q4 * (2.0 * q1q2 + _2q3q4 - ay)
-        - 4.0 * q3 * (1.0 - 2.0 * q2q2 - 2.0 * q3q3 - az)
-        + (-_8bx * q3 - _4bz * q1) * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
-        + (_4bx * q2 + _4bz * q4) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
-        + (_4bx * q1 - _8bz * q3) * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
-      double s4 =
-          _2q2 * (2.0 * q2q4 - _2q1q3 - ax)
-        + _2q3 * (2.0 * q1q2 + _2q3q4 - ay)
-        + (-_8bx * q4 + _4bz * q2) * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
-        + (-_4bx * q1 + _4bz * q3) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
-        + _4bx * q2 * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
-
-      norm = Math.sqrt(s1 * s1 + s2 * s2 + s3 * s3 + s4 * s4);
-      if (norm > 0.0) {
-        norm = 1.0 / norm;  //normalise gradient step
-        s1 *= norm;
-        s2 *= norm;
-        s3 *= norm;
-        s4 *= norm;
-      } else {
-        break;
-      }
+  /**
+   * {@inheritDoc}
+   */
+  public double getRate() {
+    if (m_spi == null) return 0.0;
+    return getRateZ();
+  }
 
-      // Convert gyro units to rad/sec
-      double gx = sample.gyro_x * kGyroScale;
-      double gy = sample.gyro_y * kGyroScale;
-      double gz = sample.gyro_z * kGyroScale;
-
-      // Compute rate of change of quaternion
-      double qDot1 = 0.5 * (-q2 * gx - q3 * gy - q4 * gz) - kBeta * s1;
-      double qDot2 = 0.5 * ( q1 * gx + q3 * gz - q4 * gy) - kBeta * s2;
-      double qDot3 = 0.5 * ( q1 * gy - q2 * gz + q4 * gx) - kBeta * s3;
-      double qDot4 = 0.5 * ( q1 * gz + q2 * gy - q3 * gx) - kBeta * s4;
-
-      // Integrate to yield quaternion
-      q1 += qDot1 * sample.dt;
-      q2 += qDot2 * sample.dt;
-      q3 += qDot3 * sample.dt;
-      q4 += qDot4 * sample.dt;
-
-      norm = Math.sqrt(q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4);
-      if (norm > 0.0) {
-        norm = 1.0 / norm;  // normalise quaternion
-        q1 = q1 * norm;
-        q2 = q2 * norm;
-        q3 = q3 * norm;
-        q4 = q4 * norm;
-      }
-    } while(false);
-
-    // Convert quaternion to angles of rotation
-    double xi = -Math.atan2(2*q2*q3 - 2*q1*q4, 2*(q1*q1) + 2*(q2*q2) - 1);
-    double theta = -Math.asin(2*q2*q4 + 2*q1*q3);
-    double rho = Math.atan2(2*q3*q4 - 2*q1*q2, 2*(q1*q1) + 2*(q4*q4) - 1);
-
-    // Convert angles from radians to degrees
-    xi = xi / Math.PI * 180.0;
-    theta = theta / Math.PI * 180.0;
-    rho = rho / Math.PI * 180.0;
-
-    // Adjust angles for inverted mount of MXP sensor
-    theta = -theta;
-    if (rho < 0)
-      rho = 180 - Math.abs(rho);
-    else
-      rho = Math.abs(rho) - 180;
-
-    // Update global state
-    synchronized (this) {
-      m_ahrs_q1 = q1;
-      m_ahrs_q2 = q2;
-      m_ahrs_q3 = q3;
-      m_ahrs_q4 = q4;
-      m_yaw = xi;
-      m_roll = theta;
-      m_pitch = rho;
-    }
+  /**
+   * Call {@code listener} on the IMU calculate thread for every new sample.
+   * Adding the same listener twice has no effect.  Listeners run after
+   * {@link #waitForNextSample} callers are woken, and a listener added or
+   * removed from inside a listener takes effect from the next sample.
+   */
+  public void addSampleListener(ImuSampleListener listener) {
+    m_listeners.add(listener);
   }
 
-  // Thank you to the RoboBees for providing this elegant AHRS implementation
-  // to the FIRST community!
-  private void calculateComplementary(Sample sample) {
-    // Description:
-    // Accepts calibrated Rate Gyro, Accelerometer, and Magnetometer sensor
-    // readings and applies a Complementary Filter to fuse them into a single
-    // composite sensor which provides accurate and stable rotation indications
-    // (Pitch, Roll, and Yaw).  This sensor fusion approach effectively
-    // combines the individual sensor's best respective properties while
-    // mitigating their shortfalls.
-    // 
-    // Design:
-    // The Complementary Filter is an algorithm that allows a pair of sensors
-    // to contribute differently to a common, composite measurement result.
-    // It effectively applies a low pass filter to one sensor, and a high pass
-    // filter to the other, then proportionally recombines them in such a way
-    // to maintain the original unit of measurement.  It is computationally
-    // inexpensive when compared to alternative estimation techniques such as
-    // the Kalman filter.  The algorithm is given by:
-    // 
-    // angle(n) = (alpha)*(angle(n-1) + gyrorate * dt) + (1-alpha)*(accel or mag);
-    // 
-    // where : 
-    // 
-    // alpha = tau / (tau + dt)
-    // 
-    // This implementation uses the average Gyro rate across the dt period, so
-    // above gyrorate = [(gyrorate(n)-gyrorate(n-1)]/2
-    // 
-    // Essentially, for Pitch and Roll, the slow moving (lower frequency) part
-    // of the rotation estimate is taken from the Accelerometer - ignoring the
-    // high noise level, and the faster moving (higher frequency) part is taken
-    // from the Rate Gyro - ignoring the slow Gyro drift.  Same for Yaw, except
-    // that the Magnetometer replaces the Accelerometer to source the slower
-    // moving component.  This is because Pitch and Roll can be referenced to
-    // the Accelerometer's sense of the Earth's gravity vector.  Yaw cannot be
-    // referenced to this vector since this rotation does not cause any
-    // relative angular change, but it can be referenced to magnetic North.
-    // The parameter 'tau' is the time constant that defines the boundary
-    // between the low and high pass filters.  Both tau and the sample time,
-    // dt, affect the parameter 'alpha', which sets the balance point for how
-    // much of which sensor is 'trusted' to contribute to the rotation estimate.
-    // 
-    // The Complementary Filter algorithm is applied to each X/Y/Z rotation
-    // axis to compute R/P/Y outputs, respectively.
-    // 
-    // Magnetometer readings are tilt-compensated when Tilt-Comp-(Yaw) is
-    // asserted (True), by the IMU TILT subVI.  This creates what is known as a
-    // tilt-compensated compass, which allows Yaw to be insensitive to the
-    // effects of a non-level sensor, but generates error in Yaw during
-    // movement (coordinate acceleration).
-    // 
-    // The Yaw "South" crossing detector is necessary to allow a smooth
-    // transition across the +/- 180 deg discontinuity (inherent in the ATAN
-    // function).  Since -180 deg is congruent with +180 deg, Yaw needs to jump
-    // between these values when crossing South (North is 0 deg).  The design
-    // depends upon comparison of successive Yaw readings to detect a
-    // cross-over event.  The cross-over detector monitors the current reading
-    // and evaluates how far it is from the previous reading.  If it is greater
-    // than the previous reading by the Discriminant (= 180 deg), then Yaw just
-    // crossed South.
-    // 
-    // By choosing 180 as the Discriminant, the only way the detector can
-    // produce a false positive, assuming a loop iteration of 70 msec, is for
-    // it to rotate >2,571 dps ... (2,571=180/.07).  This is faster than the ST
-    // L3GD20 Gyro can register.  The detector produces a Boolean True upon
-    // detecting a South crossing.  This is used to alter the (n-1) Yaw which
-    // was previously stored, either adding or subtracting 360 degrees as
-    // required to place the previous Yaw in the correct quadrant whenever
-    // crossing occurs.  The Modulus function cannot be used here as the
-    // Complementary Filter algorithm has 'state' (needs to remember previous
-    // Yaw).
-    // 
-    // We are in effect stitching together two ends of a ruler for 'modular
-    // arithmetic' (clock math).
-    // 
-    // Inputs:
-    // GYRO - Gyro rate and sample time measurements.
-    // ACCEL - Acceleration measurements.
-    // MAG - Magnetic measurements.
-    // TAU ACC - tau parameter used to set sensor balance between Accel and
-    //           Gyro for Roll and Pitch.
-    // TAU MAG - tau parameter used to set sensor balance between Mag and Gyro
-    //           for Yaw.
-    // TILT COMP (Yaw) - Enables Yaw tilt-compensation if True.
-    // 
-    // Outputs:
-    // ROLL - Filtered Roll about sensor X-axis.
-    // PITCH - Filtered Pitch about sensor Y-axis.
-    // YAW - Filtered Yaw about sensor Z-axis.
-    // 
-    // Implementation:
-    // It's best to establish the optimum loop sample time first.  See IMU READ
-    // implementation notes for guidance.  Each tau parameter should then be
-    // adjusted to achieve optimum sensor fusion.  tau acc affects Roll and
-    // Pitch, tau mag affects Yaw.  Start at value 1 or 2 and decrease by half
-    // each time until the result doesn't drift, but not so far that the result
-    // gets noisy.  An optimum tau for this IMU is likely in the range of 1.0
-    // to 0.01, for a loop sample time between 10 and 100 ms.
-    // 
-    // Note that both sample timing (dt) and tau both affect the balance
-    // parameter, 'alpha'.  Adjusting either dt or tau will require the other
-    // to be readjusted to maintain a particular filter performance.
-    // 
-    // It is likely best to set Yaw tilt-compensation to off (False) if the Yaw
-    // value is to be used as feedback in a closed loop control application.
-    // The tradeoff is that Yaw will only be accurate while the robot is level.
-    // 
-    // Since a Yaw of -180 degrees is congruent with +180 degrees (they
-    // represent the same direction), it is possible that the Yaw output will
-    // oscillate between these two values when the sensor happens to be
-    // pointing due South, as sensor noise causes slight variation.  You will
-    // need to account for this possibility if you are using the Yaw value for
-    // decision-making in code.
-    // 
-    // ----- The RoboBees FRC Team 836! -----
-    // Complement your passion to solve problems with a STEM Education!
-
-    // Compensate for PCB-Up Mounting Config.
-    sample.gyro_y = -sample.gyro_y;
-    sample.gyro_z = -sample.gyro_z;
-    sample.accel_y = -sample.accel_y;
-    sample.accel_z = -sample.accel_z;
-    sample.mag_y = -sample.mag_y;
-    sample.mag_z = -sample.mag_z;
+  public void removeSampleListener(ImuSampleListener listener) {
+    m_listeners.remove(listener);
+  }
 
-    // Swap axis as appropriate for yaw axis selection
-    sample.adjustYawAxis(m_yaw_axis);
+  /**
+   * Average time in seconds a listener has taken per sample, or 0 if it is
+   * not registered or hasn't run yet.
+   */
+  public double getSampleListenerTime(ImuSampleListener listener) {
+    return m_listeners.getTime(listener);
+  }
 
-    final double tau_acc = 0.95;
-    final double tau_mag = 0.04;
+  /**
+   * Longest time in seconds a listener has taken for one sample.
+   */
+  public double getSampleListenerMaxTime(ImuSampleListener listener) {
+    return m_listeners.getMaxTime(listener);
+  }
 
-    double roll, pitch, yaw;
-    boolean tilt_comp_yaw;
-    synchronized (this) {
-      roll = m_roll;
-      pitch = m_pitch;
-      yaw = m_yaw;
-      tilt_comp_yaw = m_tilt_comp_yaw;
-    }
+  /**
+   * Block until the next sample is published.
+   *
+   * @param timeout Longest time to wait in seconds
+   * @return true if a new sample arrived, false on timeout or interrupt
+   */
+  public boolean waitForNextSample(double timeout) {
+    if (m_spi == null) return false;
+    return m_listeners.awaitNext(timeout);
+  }
 
-    // Calculate mag angle in degrees
-    double mag_angle = Math.atan2(sample.mag_y, sample.mag_x) / Math.PI * 180.0;
-
-    // Tilt compensation:
-    // see http://www.freescale.com/files/sensors/doc/app_note/AN3461.pdf
-    // for derivation of Pitch and Roll equations.  Used eqs 37 & 38 as Rxyz.
-    // Eqs 42 & 43, as Ryxz, produce same values within Pitch & Roll
-    // constraints.
-    // 
-    // Freescale's Pitch/Roll derivation is preferred over ST's as it does not
-    // degrade due to the Sine function linearity assumption.
-    // 
-    // Pitch is accurate over +/- 90 degree range, and Roll is accurate within
-    // +/- 180 degree range - as long as accelerometer is only sensing
-    // acceleration due to gravity.  Movement (coordinate acceleration) will
-    // add error to Pitch and Roll indications.
-    // 
-    // Yaw is not obtainable from an accelerometer due to its geometric 
-    // relationship with the Earth's gravity vector.  (Would have same problem
-    // on Mars.)
-    // 
-    // see http://www.pololu.com/file/0J434/LSM303DLH-compass-app-note.pdf
-    // for derivation of Yaw equation.  Used eq 12 in Appendix A (eq 13 is
-    // replaced by ATAN2 function).  Yaw is obtainable from the magnetometer,
-    // but is sensitive to any tilt from horizontal.  This uses Pitch and Roll
-    // values from above for tilt compensation of Yaw, resulting in a
-    // tilt-compensated compass.
-    // 
-    // As with Pitch/Roll, movement (coordinate acceleration) will add error to
-    // Yaw indication.
-
-    // Accel
-    double tilt_pitch_rad = Math.atan2(-sample.accel_x, Math.sqrt(sample.accel_y * sample.accel_y + sample.accel_z * sample.accel_z));
-    double tilt_pitch = tilt_pitch_rad / Math.PI * 180.0;
-
-    double tilt_roll_rad = Math.atan2(sample.accel_y, Math.sqrt(sample.accel_x * sample.accel_x * 0.01 + sample.accel_z * sample.accel_z) * Math.signum(sample.accel_z));
-    double tilt_roll = tilt_roll_rad / Math.PI * 180.0;
-
-    // Mag
-    double tilt_yaw;
-    if (tilt_comp_yaw) {
-      double sin_pitch = Math.sin(tilt_pitch_rad);
-      double cos_pitch = Math.cos(tilt_pitch_rad);
-      double sin_roll = Math.sin(tilt_roll_rad);
-      double cos_roll = Math.cos(tilt_roll_rad);
-      double mx2 = sample.mag_x * cos_pitch + sample.mag_z * sin_pitch;
-      double my2 = sample.mag_x * sin_roll * sin_pitch + sample.mag_y * cos_roll - sample.mag_z * sin_roll * cos_pitch;
-      //double mz2 = -sample.mag_x * cos_roll * sin_pitch + sample.mag_y * sin_roll + sample.mag_z * cos_roll * cos_pitch;
-      tilt_yaw = Math.atan2(my2, mx2) / Math.PI * 180.0;
-    } else {
-      tilt_yaw = mag_angle;
-    }
+  /**
+   * Get all outputs from the latest sample in one call, without locking.
+   *
+   * @param snapshot Snapshot to fill in (reuse it to avoid allocating)
+   * @return {@code snapshot}
+   */
+  public ImuSnapshot getSnapshot(ImuSnapshot snapshot) {
+    int seq;
+    do {
+      seq = m_published_seq.get();
+      System.arraycopy(m_published, 0, snapshot.m_values, 0, ImuSnapshot.kValues);
+      VarHandle.loadLoadFence();
+    } while ((seq & 1) != 0 || seq != m_published_seq.get());
+    return snapshot;
+  }
 
-    // Positive rotation of Magnetometer is clockwise when looking in + Z
-    // direction.  This is subtracted from 0 deg to reverse rotation
-    // direction, as it needs to be aligned with the definition of positive
-    // Gyroscope rotation, (which is CCW looking in + Z direction), to enable
-    // sensor fusion.
-    //
-    // 0 degrees is due magnetic North.
-    tilt_yaw = -tilt_yaw;
-
-    // "South" crossing Detector
-    if (Math.abs(mag_angle - m_mag_angle_prev) >= 180) {
-      if (m_mag_angle_prev < 0) {
-        yaw += -360;
-      } else if (m_mag_angle_prev > 0) {
-        yaw += 360;
-      }
-    }
-    m_mag_angle_prev = mag_angle;
-
-    // alpha = tau / (tau + dt)
-    double alpha_acc = tau_acc / (tau_acc + sample.dt);
-    double alpha_mag = tau_mag / (tau_mag + sample.dt);
-
-    // gyrorate = [(gyrorate(n)-gyrorate(n-1)]/2
-    // angle(n) = (alpha)*(angle(n-1) + gyrorate * dt) + (1-alpha)*(accel or mag);
-    if (m_first) {
-      m_gyro_x_prev = sample.gyro_x;
-      m_gyro_y_prev = sample.gyro_y;
-      m_gyro_z_prev = sample.gyro_z;
-      m_first = false;
+  /**
+   * Get all outputs from the latest sample in a new snapshot.
+   */
+  public ImuSnapshot getSnapshot() {
+    return getSnapshot(new ImuSnapshot());
+  }
+
+  public double getAngleX() {
+    return readPublished(ImuSnapshot.kAngleX);
+  }
+
+  public double getAngleY() {
+    return readPublished(ImuSnapshot.kAngleY);
+  }
+
+  public double getAngleZ() {
+    return readPublished(ImuSnapshot.kAngleZ);
+  }
+
+  public double getRateX() {
+    return readPublished(ImuSnapshot.kRateX);
+  }
+
+  public double getRateY() {
+    return readPublished(ImuSnapshot.kRateY);
+  }
+
+  public double getRateZ() {
+    return readPublished(ImuSnapshot.kRateZ);
+  }
+
+  public double getAccelX() {
+    return readPublished(ImuSnapshot.kAccelX);
+  }
+
+  public double getAccelY() {
+    return readPublished(ImuSnapshot.kAccelY);
+  }
+
+  public double getAccelZ() {
+    return readPublished(ImuSnapshot.kAccelZ);
+  }
+
+  public double getMagX() {
+    return readPublished(ImuSnapshot.kMagX);
+  }
+
+  public double getMagY() {
+    return readPublished(ImuSnapshot.kMagY);
+  }
+
+  public double getMagZ() {
+    return readPublished(ImuSnapshot.kMagZ);
+  }
+
+  public double getPitch() {
+    return readPublished(ImuSnapshot.kPitch);
+  }
+
+  public double getRoll() {
+    return readPublished(ImuSnapshot.kRoll);
+  }
+
+  public double getYaw() {
+    return readPublished(ImuSnapshot.kYaw);
+  }
+
+  /**
+   * Start recording the raw IMU packets to a file, replacing any recording
+   * in progress.  See {@code ADIS16448_Recorder} for the file format.
+   *
+   * @param path File to write, e.g. on a USB stick under /media
+   * @return false if the file could not be created
+   */
+  public synchronized boolean startRecording(String path) {
+    if (m_spi == null) return false;
+
+    stopRecording();
+    int frames = (int) Math.ceil(kRecordingBufferTime / m_sample_period);
+    try {
+      m_recorder = new ADIS16448_Recorder(path, frames, m_smpl_prd, m_sens_avg);
+      return true;
+    } catch (IOException e) {
+      DriverStation.reportError("ADIS16448: could not start recording to " + path + ": " + e, false);
+      return false;
     }
-    roll =
-        alpha_acc * (roll + sample.dt * (sample.gyro_x + m_gyro_x_prev) / 2.0) +
-        (1 - alpha_acc) * tilt_roll;
-    pitch =
-        alpha_acc * (pitch + sample.dt * (sample.gyro_y + m_gyro_y_prev) / 2.0) +
-        (1 - alpha_acc) * tilt_pitch;
-    yaw =
-        alpha_mag * (yaw + sample.dt * (sample.gyro_z + m_gyro_z_prev) / 2.0) +
-        (1 - alpha_mag) * tilt_yaw;
-    m_gyro_x_prev = sample.gyro_x;
-    m_gyro_y_prev = sample.gyro_y;
-    m_gyro_z_prev = sample.gyro_z;
-    
-    // Update global state
-    synchronized (this) {
-      m_roll = roll;
-      m_pitch = pitch;
-      m_yaw = yaw;
+  }
+
+  /**
+   * Start recording to a new time-stamped file under /home/lvuser.
+   */
+  public boolean startRecording() {
+    String name = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    return startRecording(kRecordingDirectory + "/adis16448_" + name + ".bin");
+  }
+
+  /**
+   * Finish writing the current recording, if any, and close it.
+   */
+  public synchronized void stopRecording() {
+    ADIS16448_Recorder recorder = m_recorder;
+    if (recorder != null) {
+      m_recorder = null;
+      recorder.close();
     }
   }
 
+  public boolean isRecording() {
+    return m_recorder != null;
+  }
+
   /**
-   * {@inheritDoc}
+   * Rate the current recording is written to its file.
    */
-  public double getAngle() {
-    if (m_spi == null) return 0.0;
-    return getYaw();
+  public double getRecordingBytesPerSecond() {
+    ADIS16448_Recorder recorder = m_recorder;
+    return recorder == null ? 0.0 : recorder.getBytesPerSecond();
   }
 
   /**
-   * {@inheritDoc}
+   * Packets left out of the current recording because the file writer
+   * couldn't keep up.
    */
-  public double getRate() {
-    if (m_spi == null) return 0.0;
-    return getRateZ();
+  public long getRecordingDroppedFrames() {
+    ADIS16448_Recorder recorder = m_recorder;
+    return recorder == null ? 0 : recorder.getDroppedFrames();
   }
 
-  public synchronized double getAngleX() {
-    return m_integ_gyro_x;
+  /**
+   * Select how the acquire thread waits for new data. Takes effect on the
+   * next wakeup, so modes can be switched at runtime to compare them.
+   */
+  public void setDrainMode(DrainMode mode) {
+    m_drain_mode = mode;
   }
 
-  public synchronized double getAngleY() {
-    return m_integ_gyro_y;
+  public DrainMode getDrainMode() {
+    return m_drain_mode;
   }
 
-  public synchronized double getAngleZ() {
-    return m_integ_gyro_z;
+  /**
+   * Filtered delay in seconds between the IMU sampling a packet (its FPGA
+   * timestamp) and the acquire thread decoding it.
+   */
+  public double getAcquireLatency() {
+    return m_acquire_latency;
   }
 
-  public synchronized double getRateX() {
-    return m_gyro_x;
+  /**
+   * CPU time in seconds used by the acquire thread so far, or -1 if the JVM
+   * does not support thread CPU time.
+   */
+  public double getAcquireCpuTime() {
+    if (m_acquire_task == null) return -1;
+    long nanos = ManagementFactory.getThreadMXBean().getThreadCpuTime(m_acquire_task.getId());
+    return nanos < 0 ? -1 : nanos / 1e9;
   }
 
-  public synchronized double getRateY() {
-    return m_gyro_y;
+  /**
+   * Number of packets the SPI DMA engine dropped because its buffer was full.
+   */
+  public long getDmaDroppedCount() {
+    return m_metrics.getDmaDroppedCount();
   }
 
-  public synchronized double getRateZ() {
-    return m_gyro_z;
+  /**
+   * Number of packets discarded because their CRC did not match.
+   */
+  public long getCrcFailureCount() {
+    return m_metrics.getCrcFailureCount();
   }
 
-  public synchronized double getAccelX() {
-    return m_accel_x;
+  /**
+   * Counters and histograms of the acquisition pipeline (packet rate, lost
+   * data, DMA drain sizes, wake jitter, latency and AHRS cost).
+   */
+  public ADIS16448_Metrics getMetrics() {
+    return m_metrics;
   }
 
-  public synchronized double getAccelY() {
-    return m_accel_y;
+  /**
+   * Nominal time between IMU samples in seconds.
+   */
+  public double getSamplePeriod() {
+    return m_sample_period;
   }
 
-  public synchronized double getAccelZ() {
-    return m_accel_z;
+  /**
+   * Number of samples dropped because the AHRS calculate stage fell behind.
+   */
+  public long getDroppedSampleCount() {
+    if (m_samples == null) return 0;
+    return m_samples.getOverflowCount();
+  }
+
+  /**
+   * Largest number of samples that have been waiting in the FIFO at once.
+   */
+  public int getSampleFifoHighWaterMark() {
+    if (m_samples == null) return 0;
+    return m_samples.getHighWaterMark();
+  }
+
+  /**
+   * Number of samples the FIFO can hold.
+   */
+  public int getSampleFifoDepth() {
+    if (m_samples == null) return 0;
+    return m_samples.capacity();
+  }
+
+  /**
+   * Yaw in degrees at an earlier time, interpolated between the samples on
+   * either side.  Times outside the kept history are clamped to it.
+   *
+   * @param timestamp FPGA time in seconds (as {@link Timer#getFPGATimestamp})
+   */
+  public double getYawAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kYaw, timestamp, true);
+  }
+
+  public double getPitchAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kPitch, timestamp, true);
   }
 
-  public synchronized double getMagX() {
-    return m_mag_x;
+  public double getRollAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kRoll, timestamp, true);
   }
 
-  public synchronized double getMagY() {
-    return m_mag_y;
+  public double getAngleXAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kAngleX, timestamp, false);
   }
 
-  public synchronized double getMagZ() {
-    return m_mag_z;
+  public double getAngleYAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kAngleY, timestamp, false);
   }
 
-  public synchronized double getPitch() {
-    return m_pitch;
+  public double getAngleZAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kAngleZ, timestamp, false);
   }
 
-  public synchronized double getRoll() {
-    return m_roll;
+  public double getRateZAt(double timestamp) {
+    return m_history.get(ADIS16448_History.kRateZ, timestamp, false);
   }
 
-  public synchronized double getYaw() {
-    return m_yaw;
+  /**
+   * Orientation quaternion at an earlier time, spherically interpolated
+   * between the samples on either side.
+   *
+   * @param timestamp FPGA time in seconds
+   * @param out Array of at least 4 set to {w, x, y, z}
+   * @return {@code out}
+   */
+  public double[] getQuaternionAt(double timestamp, double[] out) {
+    m_history.getQuaternion(timestamp, out);
+    return out;
+  }
+
+  /**
+   * FPGA time in seconds of the oldest sample kept for the lookups above.
+   */
+  public double getHistoryStart() {
+    return m_history.getOldestTimestamp();
   }
 
-  public synchronized double getLastSampleTime() {
-    return m_last_sample_time;
+  public double getLastSampleTime() {
+    return readPublished(ImuSnapshot.kTimestamp);
   }
 
-  public synchronized double getBarometricPressure() {
-    return m_baro;
+  public double getBarometricPressure() {
+    return ADIS16448_PacketDecoder.scaleBaro(readPublished(ImuSnapshot.kBaro));
   }
 
-  public synchronized double getTemperature() {
-    return m_temp;
+  public double getTemperature() {
+    return ADIS16448_PacketDecoder.scaleTemp(readPublished(ImuSnapshot.kTemp));
   }
 
-  // Get quaternion W for the Kalman AHRS.
-  // Always returns 0 for the Complementary AHRS.
-  public synchronized double getQuaternionW() {
-    return m_ahrs_q1;
+  // Get quaternion W for the quaternion AHRS engines.
+  // Always returns the identity for the Complementary AHRS.
+  public double getQuaternionW() {
+    return readPublished(ImuSnapshot.kQuaternionW);
   }
 
-  // Get quaternion X for the Kalman AHRS.
-  // Always returns 0 for the Complementary AHRS.
-  public synchronized double getQuaternionX() {
-    return m_ahrs_q2;
+  // Get quaternion X for the quaternion AHRS engines.
+  // Always returns the identity for the Complementary AHRS.
+  public double getQuaternionX() {
+    return readPublished(ImuSnapshot.kQuaternionX);
   }
 
-  // Get quaternion Y for the Kalman AHRS.
-  // Always returns 0 for the Complementary AHRS.
-  public synchronized double getQuaternionY() {
-    return m_ahrs_q3;
+  // Get quaternion Y for the quaternion AHRS engines.
+  // Always returns the identity for the Complementary AHRS.
+  public double getQuaternionY() {
+    return readPublished(ImuSnapshot.kQuaternionY);
   }
 
-  // Get quaternion Z for the Kalman AHRS.
-  // Always returns 0 for the Complementary AHRS.
-  public synchronized double getQuaternionZ() {
-    return m_ahrs_q4;
+  // Get quaternion Z for the quaternion AHRS engines.
+  // Always returns the identity for the Complementary AHRS.
+  public double getQuaternionZ() {
+    return readPublished(ImuSnapshot.kQuaternionZ);
   }
 
   // Enable or disable yaw tilt-compensation for the Complementary AHRS.
-  // Has no effect on the Kalman AHRS.
+  // Has no effect on the other AHRS engines.
   //
   // It is likely best to set Yaw tilt-compensation to off (False) if the Yaw
   // value is to be used as feedback in a closed loop control application.
   // The tradeoff is that Yaw will only be accurate while the robot is level.
-  public synchronized void setTiltCompYaw(boolean enabled) {
-    m_tilt_comp_yaw = enabled;
+  public void setTiltCompYaw(boolean enabled) {
+    if (m_filter instanceof ADIS16448_ComplementaryFilter) {
+      ((ADIS16448_ComplementaryFilter) m_filter).setTiltCompYaw(enabled);
+    }
   }
   
+  /**
+   * Set the Complementary AHRS time constants in seconds (defaults 0.95 for
+   * roll and pitch, 0.04 for yaw).  Has no effect on the other AHRS engines.
+   */
+  public void setComplementaryTau(double tau_acc, double tau_mag) {
+    if (m_filter instanceof ADIS16448_ComplementaryFilter) {
+      ((ADIS16448_ComplementaryFilter) m_filter).setTau(tau_acc, tau_mag);
+    }
+  }
+
+  /**
+   * Set the gradient step gain of the Madgwick AHRS (default 0.4, where
+   * earlier versions used a fixed 1). Higher values trust the accelerometer
+   * and magnetometer more, lower values the gyro.  Has no effect on the
+   * other AHRS engines.
+   */
+  public void setMadgwickBeta(double beta) {
+    if (m_filter instanceof ADIS16448_MadgwickFilter) {
+      ((ADIS16448_MadgwickFilter) m_filter).setBeta(beta);
+    }
+  }
+
+  public double getMadgwickBeta() {
+    if (m_filter instanceof ADIS16448_MadgwickFilter) {
+      return ((ADIS16448_MadgwickFilter) m_filter).getBeta();
+    }
+    return 0.0;
+  }
+
+  /**
+   * True if the Madgwick AHRS is ignoring the magnetometer because the field
+   * looks disturbed (e.g. by drive motor currents).
+   */
+  public boolean isMagDisturbed() {
+    if (m_filter instanceof ADIS16448_MadgwickFilter) {
+      return ((ADIS16448_MadgwickFilter) m_filter).isMagDisturbed();
+    }
+    return false;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -1226,6 +1432,7 @@ public class ADIS16448_IMU extends GyroBase implements Gyro, PIDSource, Sendable
     builder.addDoubleProperty("AngleX", ()-> getAngleX(), null);
     builder.addDoubleProperty("AngleY", ()-> getAngleY(), null);
     builder.addDoubleProperty("AngleZ", ()-> getAngleZ(), null);
+    m_metrics.addProperties(builder);
   }
   
 }
@@ -0,0 +1,157 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * The per-packet gyro step of the acquire thread: the time step from the
+ * packet timestamps, gyro offset calibration, online bias tracking and
+ * integration of the corrected rates into angles.
+ *
+ * <p>{@link ADIS16448_IMU} and {@link ADIS16448_Replay} both run every good
+ * packet through {@link #step}, so a replay integrates exactly as the robot
+ * did.  Used by one thread only.
+ */
+final class ADIS16448_Integrator {
+  private final double m_sample_period;
+  private final ADIS16448_BiasTracker m_bias_tracker;
+
+  // Extended timestamp in microseconds of the last packet, 0 before the first
+  private long m_last_timestamp = 0;
+  private double m_dt = 0.0;
+  private boolean m_calibrated = false;
+
+  // Gyro offsets in degrees/second
+  private double m_offset_x = 0.0;
+  private double m_offset_y = 0.0;
+  private double m_offset_z = 0.0;
+
+  // Integrated gyro angles in degrees
+  private double m_angle_x = 0.0;
+  private double m_angle_y = 0.0;
+  private double m_angle_z = 0.0;
+
+  /**
+   * @param sample_period Nominal sample period in seconds
+   * @param bias_tracker  Used for bias tracking; others may read its status
+   */
+  ADIS16448_Integrator(double sample_period, ADIS16448_BiasTracker bias_tracker) {
+    m_sample_period = sample_period;
+    m_bias_tracker = bias_tracker;
+  }
+
+  /**
+   * Start from known (e.g. saved) offsets, counting as calibrated.
+   */
+  void setOffsets(double x, double y, double z) {
+    m_offset_x = x;
+    m_offset_y = y;
+    m_offset_z = z;
+    m_calibrated = true;
+  }
+
+  /**
+   * Process one packet that passed its CRC check.
+   *
+   * @param calibration Calibration run to feed the packet to, or null
+   * @param track_bias  Follow offset drift while stationary, once calibrated
+   *                    and no calibration is running
+   * @return true if the packet completed {@code calibration}. Its offsets are
+   *         in use unless it was rejected.
+   */
+  boolean step(ADIS16448_PacketDecoder packet, ADIS16448_Calibration calibration, boolean track_bias) {
+    // Delta-time from the extended timestamps; 0 over a bad gap, so it
+    // isn't integrated
+    if (m_last_timestamp == 0) {
+      m_dt = m_sample_period; // First packet, no previous timestamp
+    } else {
+      m_dt = ADIS16448_PacketDecoder.interval(packet.timestamp - m_last_timestamp, m_sample_period);
+    }
+    m_last_timestamp = packet.timestamp;
+
+    // Gyro offset calibration
+    boolean completed = calibration != null
+        && calibration.accumulate(packet.timestamp, packet.gyro_x, packet.gyro_y, packet.gyro_z, packet.getTemp());
+    if (completed) {
+      // A rejected run most likely moved; keep the offsets we had
+      if (!calibration.isRejected()) {
+        m_offset_x = calibration.offset_x;
+        m_offset_y = calibration.offset_y;
+        m_offset_z = calibration.offset_z;
+      }
+      m_bias_tracker.reset(m_offset_x, m_offset_y, m_offset_z, calibration.temp);
+      m_calibrated = true;
+    }
+
+    // Follow offset drift (e.g. warm-up) whenever the IMU sits still
+    if (track_bias && m_calibrated && (calibration == null || calibration.isDone())
+        && m_bias_tracker.update(packet.gyro_x, packet.gyro_y, packet.gyro_z,
+            packet.accel_x, packet.accel_y, packet.accel_z, packet.getTemp())) {
+      m_offset_x = m_bias_tracker.getBiasX();
+      m_offset_y = m_bias_tracker.getBiasY();
+      m_offset_z = m_bias_tracker.getBiasZ();
+    }
+
+    // Integrate gyro rates
+    m_angle_x += (packet.gyro_x - m_offset_x) * m_dt;
+    m_angle_y += (packet.gyro_y - m_offset_y) * m_dt;
+    m_angle_z += (packet.gyro_z - m_offset_z) * m_dt;
+    return completed;
+  }
+
+  /**
+   * Zero the integrated angles.
+   */
+  void resetAngles() {
+    m_angle_x = 0.0;
+    m_angle_y = 0.0;
+    m_angle_z = 0.0;
+  }
+
+  /**
+   * Time step of the last packet in seconds, 0 if its interval was bad.
+   */
+  double getDt() {
+    return m_dt;
+  }
+
+  /**
+   * Extended timestamp of the last packet in microseconds, 0 before the
+   * first one.
+   */
+  long getLastTimestamp() {
+    return m_last_timestamp;
+  }
+
+  boolean isCalibrated() {
+    return m_calibrated;
+  }
+
+  double getOffsetX() {
+    return m_offset_x;
+  }
+
+  double getOffsetY() {
+    return m_offset_y;
+  }
+
+  double getOffsetZ() {
+    return m_offset_z;
+  }
+
+  double getAngleX() {
+    return m_angle_x;
+  }
+
+  double getAngleY() {
+    return m_angle_y;
+  }
+
+  double getAngleZ() {
+    return m_angle_z;
+  }
+}
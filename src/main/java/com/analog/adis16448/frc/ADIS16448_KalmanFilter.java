@@ -0,0 +1,275 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.util.Arrays;
+
+/**
+ * Extended Kalman filter AHRS that also estimates the gyro bias.
+ *
+ * <p>The state is the orientation quaternion (w, x, y, z) and the gyro bias
+ * in rad/sec, 7 values in all.  The gyro drives the prediction; the
+ * normalized accelerometer (gravity direction) and the magnetometer heading
+ * are applied as sequential scalar updates, so no matrix is ever inverted.
+ * All matrices are preallocated primitive arrays.
+ */
+final class ADIS16448_KalmanFilter extends ADIS16448_QuaternionFilter {
+  private static final int kStates = 7;
+
+  // Process noise per second: quaternion (gyro noise) and bias random walk
+  private static final double kQuaternionNoise = 1e-5;
+  private static final double kBiasNoise = 1e-8;
+  // Measurement noise: gravity direction components and heading (rad^2)
+  private static final double kAccelNoise = 0.05;
+  private static final double kHeadingNoise = 0.1;
+  // Accelerometer magnitude (g) outside which it isn't trusted as gravity
+  private static final double kGravityTolerance = 0.1;
+
+  // State and covariance (row major)
+  private final double[] m_x = new double[kStates];
+  private final double[] m_p = new double[kStates * kStates];
+
+  // Scratch space
+  private final double[] m_f = new double[kStates * kStates];
+  private final double[] m_fp = new double[kStates * kStates];
+  private final double[] m_h = new double[kStates];
+  private final double[] m_ph = new double[kStates];
+
+  ADIS16448_KalmanFilter(ADIS16448_IMU.Axis yaw_axis) {
+    super(yaw_axis);
+    reset();
+  }
+
+  @Override
+  void reset() {
+    super.reset();
+    Arrays.fill(m_x, 0.0);
+    Arrays.fill(m_p, 0.0);
+    m_x[0] = 1.0;
+    for (int i = 0; i < kStates; i++) {
+      // Orientation unknown at start, bias within a few deg/sec
+      m_p[i * kStates + i] = i < 4 ? 1.0 : 1e-3;
+    }
+  }
+
+  /**
+   * Estimated gyro bias about each axis in degrees/second.
+   */
+  double getBiasX() {
+    return m_x[4] / kGyroScale;
+  }
+
+  double getBiasY() {
+    return m_x[5] / kGyroScale;
+  }
+
+  double getBiasZ() {
+    return m_x[6] / kGyroScale;
+  }
+
+  @Override
+  public void update(ADIS16448_IMU.Sample sample) {
+    // Swap axis as appropriate for yaw axis selection
+    sample.adjustYawAxis(m_yaw_axis);
+
+    predict(sample.gyro_x * kGyroScale, sample.gyro_y * kGyroScale, sample.gyro_z * kGyroScale,
+        sample.dt);
+
+    // Gravity direction, if the accelerometer is only sensing gravity
+    double ax = sample.accel_x;
+    double ay = sample.accel_y;
+    double az = sample.accel_z;
+    double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+    if (Math.abs(norm - 1.0) < kGravityTolerance) {
+      norm = 1.0 / norm;
+      updateGravity(ax * norm, ay * norm, az * norm);
+    }
+
+    // Heading from the magnetometer
+    double mx = sample.mag_x;
+    double my = sample.mag_y;
+    double mz = sample.mag_z;
+    if (mx * mx + my * my + mz * mz > 0.0) {
+      updateHeading(mx, my, mz);
+    }
+
+    normalize();
+    setQuaternion(m_x[0], m_x[1], m_x[2], m_x[3]);
+  }
+
+  // x = f(x, gyro), P = F P F' + Q
+  private void predict(double gx, double gy, double gz, double dt) {
+    double w = m_x[0];
+    double x = m_x[1];
+    double y = m_x[2];
+    double z = m_x[3];
+    double wx = gx - m_x[4];
+    double wy = gy - m_x[5];
+    double wz = gz - m_x[6];
+    double h = 0.5 * dt;
+
+    // Quaternion integration, q += 0.5 * dt * q * (0, w)
+    m_x[0] = w + h * (-x * wx - y * wy - z * wz);
+    m_x[1] = x + h * ( w * wx + y * wz - z * wy);
+    m_x[2] = y + h * ( w * wy - x * wz + z * wx);
+    m_x[3] = z + h * ( w * wz + x * wy - y * wx);
+
+    // Jacobian: d(q)/d(q) = I + 0.5 dt Omega(w), d(q)/d(b) = -0.5 dt Xi(q)
+    final double[] f = m_f;
+    Arrays.fill(f, 0.0);
+    for (int i = 0; i < kStates; i++) {
+      f[i * kStates + i] = 1.0;
+    }
+    f[0 * kStates + 1] = -h * wx;
+    f[0 * kStates + 2] = -h * wy;
+    f[0 * kStates + 3] = -h * wz;
+    f[1 * kStates + 0] = h * wx;
+    f[1 * kStates + 2] = h * wz;
+    f[1 * kStates + 3] = -h * wy;
+    f[2 * kStates + 0] = h * wy;
+    f[2 * kStates + 1] = -h * wz;
+    f[2 * kStates + 3] = h * wx;
+    f[3 * kStates + 0] = h * wz;
+    f[3 * kStates + 1] = h * wy;
+    f[3 * kStates + 2] = -h * wx;
+
+    f[0 * kStates + 4] = h * x;
+    f[0 * kStates + 5] = h * y;
+    f[0 * kStates + 6] = h * z;
+    f[1 * kStates + 4] = -h * w;
+    f[1 * kStates + 5] = h * z;
+    f[1 * kStates + 6] = -h * y;
+    f[2 * kStates + 4] = -h * z;
+    f[2 * kStates + 5] = -h * w;
+    f[2 * kStates + 6] = h * x;
+    f[3 * kStates + 4] = h * y;
+    f[3 * kStates + 5] = -h * x;
+    f[3 * kStates + 6] = -h * w;
+
+    // FP = F * P
+    final double[] p = m_p;
+    final double[] fp = m_fp;
+    for (int i = 0; i < kStates; i++) {
+      for (int j = 0; j < kStates; j++) {
+        double sum = 0.0;
+        for (int k = 0; k < kStates; k++) {
+          sum += f[i * kStates + k] * p[k * kStates + j];
+        }
+        fp[i * kStates + j] = sum;
+      }
+    }
+    // P = FP * F' + Q
+    for (int i = 0; i < kStates; i++) {
+      for (int j = 0; j < kStates; j++) {
+        double sum = 0.0;
+        for (int k = 0; k < kStates; k++) {
+          sum += fp[i * kStates + k] * f[j * kStates + k];
+        }
+        p[i * kStates + j] = sum;
+      }
+      p[i * kStates + i] += (i < 4 ? kQuaternionNoise : kBiasNoise) * dt;
+    }
+  }
+
+  // Gravity in the sensor frame is the third row of the rotation matrix
+  private void updateGravity(double ax, double ay, double az) {
+    final double[] hrow = m_h;
+    double w = m_x[0];
+    double x = m_x[1];
+    double y = m_x[2];
+    double z = m_x[3];
+
+    setRow(-2.0 * y, 2.0 * z, -2.0 * w, 2.0 * x);
+    scalarUpdate(ax - 2.0 * (x * z - w * y), kAccelNoise);
+
+    w = m_x[0];
+    x = m_x[1];
+    y = m_x[2];
+    z = m_x[3];
+    setRow(2.0 * x, 2.0 * w, 2.0 * z, 2.0 * y);
+    scalarUpdate(ay - 2.0 * (w * x + y * z), kAccelNoise);
+
+    w = m_x[0];
+    x = m_x[1];
+    y = m_x[2];
+    z = m_x[3];
+    setRow(2.0 * w, -2.0 * x, -2.0 * y, 2.0 * z);
+    scalarUpdate(az - (w * w - x * x - y * y + z * z), kAccelNoise);
+  }
+
+  // The magnetic field rotated into the earth frame should point along +x
+  private void updateHeading(double mx, double my, double mz) {
+    double w = m_x[0];
+    double x = m_x[1];
+    double y = m_x[2];
+    double z = m_x[3];
+
+    // Horizontal components of the field in the earth frame
+    double hx = mx * (1.0 - 2.0 * (y * y + z * z)) + my * 2.0 * (x * y - w * z) + mz * 2.0 * (x * z + w * y);
+    double hy = mx * 2.0 * (x * y + w * z) + my * (1.0 - 2.0 * (x * x + z * z)) + mz * 2.0 * (y * z - w * x);
+    if (hx * hx + hy * hy == 0.0) {
+      return;
+    }
+
+    // Measurement is yaw = atan2(n, d) with innovation -heading
+    double n = 2.0 * (w * z + x * y);
+    double d = 1.0 - 2.0 * (y * y + z * z);
+    double scale = 1.0 / (n * n + d * d);
+    setRow(scale * d * 2.0 * z,
+           scale * d * 2.0 * y,
+           scale * (d * 2.0 * x + n * 4.0 * y),
+           scale * (d * 2.0 * w + n * 4.0 * z));
+    scalarUpdate(-Math.atan2(hy, hx), kHeadingNoise);
+  }
+
+  private void setRow(double dw, double dx, double dy, double dz) {
+    m_h[0] = dw;
+    m_h[1] = dx;
+    m_h[2] = dy;
+    m_h[3] = dz;
+    m_h[4] = 0.0;
+    m_h[5] = 0.0;
+    m_h[6] = 0.0;
+  }
+
+  // Kalman update with one scalar measurement of row m_h
+  private void scalarUpdate(double innovation, double noise) {
+    final double[] p = m_p;
+    final double[] h = m_h;
+    final double[] ph = m_ph;
+    double s = noise;
+    for (int i = 0; i < kStates; i++) {
+      double sum = 0.0;
+      for (int k = 0; k < 4; k++) {
+        sum += p[i * kStates + k] * h[k];
+      }
+      ph[i] = sum;
+      if (i < 4) {
+        s += h[i] * sum;
+      }
+    }
+    double inv_s = 1.0 / s;
+    for (int i = 0; i < kStates; i++) {
+      double k = ph[i] * inv_s;
+      m_x[i] += k * innovation;
+      for (int j = 0; j < kStates; j++) {
+        p[i * kStates + j] -= k * ph[j];
+      }
+    }
+  }
+
+  private void normalize() {
+    double norm = Math.sqrt(m_x[0] * m_x[0] + m_x[1] * m_x[1] + m_x[2] * m_x[2] + m_x[3] * m_x[3]);
+    if (norm > 0.0) {
+      norm = 1.0 / norm;
+      for (int i = 0; i < 4; i++) {
+        m_x[i] *= norm;
+      }
+    }
+  }
+}
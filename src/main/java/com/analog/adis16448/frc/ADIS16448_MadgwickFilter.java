@@ -0,0 +1,204 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * Madgwick gradient descent AHRS, fusing gyro, accelerometer and
+ * magnetometer into an orientation quaternion.
+ *
+ * <p>When the magnetic field looks disturbed (magnitude outside the range of
+ * the Earth's field, or its angle to gravity away from the usual dip) the
+ * magnetometer is left out and the cheaper 6-DOF (gyro + accelerometer)
+ * update is used, so motor currents don't pull the heading.
+ *
+ * <p>The default beta is {@value #kDefaultBeta}.  Earlier versions applied a
+ * fixed beta of 1 (the {@code kBeta} constant), which pulled harder towards
+ * the accelerometer and magnetometer; use {@link #setBeta} to get that
+ * behaviour back.
+ */
+final class ADIS16448_MadgwickFilter extends ADIS16448_QuaternionFilter {
+  static final double kDefaultBeta = 0.4;
+
+  // Accelerometer magnitude (g) below which the sensor is in freefall
+  private static final double kMinAccel = 0.3 / kAccelScale;
+  // Plausible Earth field magnitude in milligauss
+  private static final double kMinField = 200.0;
+  private static final double kMaxField = 700.0;
+  // Largest change of cos(angle between field and gravity) from the usual
+  private static final double kDipTolerance = 0.15;
+  // Filter constant for learning the usual dip
+  private static final double kDipAlpha = 0.001;
+
+  private volatile double m_beta = kDefaultBeta;
+
+  // Usual cos(angle between field and gravity), NaN until first seen
+  private double m_dip = Double.NaN;
+  private volatile boolean m_mag_disturbed = false;
+
+  ADIS16448_MadgwickFilter(ADIS16448_IMU.Axis yaw_axis) {
+    super(yaw_axis);
+  }
+
+  /**
+   * @param beta Gradient step gain. Higher trusts the accelerometer and
+   *             magnetometer more, lower trusts the gyro more.
+   */
+  void setBeta(double beta) {
+    m_beta = beta;
+  }
+
+  double getBeta() {
+    return m_beta;
+  }
+
+  @Override
+  void reset() {
+    super.reset();
+    m_dip = Double.NaN;
+    m_mag_disturbed = false;
+  }
+
+  /**
+   * True if the last sample's magnetic field was ignored as disturbed.
+   */
+  boolean isMagDisturbed() {
+    return m_mag_disturbed;
+  }
+
+  @Override
+  public void update(ADIS16448_IMU.Sample sample) {
+    double q1 = m_q1;
+    double q2 = m_q2;
+    double q3 = m_q3;
+    double q4 = m_q4;
+
+    // Swap axis as appropriate for yaw axis selection
+    sample.adjustYawAxis(m_yaw_axis);
+
+    // Convert gyro units to rad/sec; the rate of change from the gyro alone
+    double hgx = 0.5 * sample.gyro_x * kGyroScale;
+    double hgy = 0.5 * sample.gyro_y * kGyroScale;
+    double hgz = 0.5 * sample.gyro_z * kGyroScale;
+    double qDot1 = -q2 * hgx - q3 * hgy - q4 * hgz;
+    double qDot2 =  q1 * hgx + q3 * hgz - q4 * hgy;
+    double qDot3 =  q1 * hgy - q2 * hgz + q4 * hgx;
+    double qDot4 =  q1 * hgz + q2 * hgy - q3 * hgx;
+
+    // Normalize accelerometer measurement (scaling units doesn't matter
+    // here). In freefall only the gyro is used.
+    double ax = sample.accel_x;
+    double ay = sample.accel_y;
+    double az = sample.accel_z;
+    double accel_sq = ax * ax + ay * ay + az * az;
+    if (accel_sq > kMinAccel * kMinAccel) {
+      double norm = 1.0 / Math.sqrt(accel_sq);
+      ax *= norm;
+      ay *= norm;
+      az *= norm;
+
+      double _2q1 = 2.0 * q1;
+      double _2q2 = 2.0 * q2;
+      double _2q3 = 2.0 * q3;
+      double _2q4 = 2.0 * q4;
+      double q1q1 = q1 * q1;
+      double q1q2 = q1 * q2;
+      double q1q3 = q1 * q3;
+      double q1q4 = q1 * q4;
+      double q2q2 = q2 * q2;
+      double q2q3 = q2 * q3;
+      double q2q4 = q2 * q4;
+      double q3q3 = q3 * q3;
+      double q3q4 = q3 * q4;
+      double q4q4 = q4 * q4;
+
+      // Gravity objective function (estimated minus measured direction)
+      double fa1 = 2.0 * (q2q4 - q1q3) - ax;
+      double fa2 = 2.0 * (q1q2 + q3q4) - ay;
+      double fa3 = 1.0 - 2.0 * (q2q2 + q3q3) - az;
+
+      // Gradient descent corrective step, gravity part (J' * f)
+      double s1 = -_2q3 * fa1 + _2q2 * fa2;
+      double s2 =  _2q4 * fa1 + _2q1 * fa2 - 2.0 * _2q2 * fa3;
+      double s3 = -_2q1 * fa1 + _2q4 * fa2 - 2.0 * _2q3 * fa3;
+      double s4 =  _2q2 * fa1 + _2q3 * fa2;
+
+      // Magnetometer, if the field looks like the Earth's
+      double mx = sample.mag_x;
+      double my = sample.mag_y;
+      double mz = sample.mag_z;
+      double field = Math.sqrt(mx * mx + my * my + mz * mz);
+      boolean disturbed = field < kMinField || field > kMaxField;
+      if (!disturbed) {
+        norm = 1.0 / field;
+        mx *= norm;
+        my *= norm;
+        mz *= norm;
+        double dip = mx * ax + my * ay + mz * az;
+        if (Double.isNaN(m_dip)) {
+          m_dip = dip;
+        }
+        disturbed = Math.abs(dip - m_dip) > kDipTolerance;
+        if (!disturbed) {
+          m_dip += kDipAlpha * (dip - m_dip);
+        }
+      }
+      m_mag_disturbed = disturbed;
+
+      if (!disturbed) {
+        // Reference direction of Earth's magnetic field
+        double _2q1mx = _2q1 * mx;
+        double _2q1my = _2q1 * my;
+        double _2q1mz = _2q1 * mz;
+        double _2q2mx = _2q2 * mx;
+
+        double hx = mx * q1q1 - _2q1my * q4 + _2q1mz * q3 + mx * q2q2 + _2q2 * my * q3 + _2q2 * mz * q4 - mx * q3q3 - mx * q4q4;
+        double hy = _2q1mx * q4 + my * q1q1 - _2q1mz * q2 + _2q2mx * q3 - my * q2q2 + my * q3q3 + _2q3 * mz * q4 - my * q4q4;
+        double _4bx = 2.0 * Math.sqrt(hx * hx + hy * hy);
+        double _4bz = 2.0 * (-_2q1mx * q3 + _2q1my * q2 + mz * q1q1 + _2q2mx * q4 - mz * q2q2 + _2q3 * my * q4 - mz * q3q3 + mz * q4q4);
+        double _8bx = 2.0 * _4bx;
+        double _8bz = 2.0 * _4bz;
+
+        // Field objective function
+        double fm1 = _4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx;
+        double fm2 = _4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my;
+        double fm3 = _4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz;
+
+        s1 += -_4bz * q3 * fm1 + (-_4bx * q4 + _4bz * q2) * fm2 + _4bx * q3 * fm3;
+        s2 +=  _4bz * q4 * fm1 + (_4bx * q3 + _4bz * q1) * fm2 + (_4bx * q4 - _8bz * q2) * fm3;
+        s3 += (-_8bx * q3 - _4bz * q1) * fm1 + (_4bx * q2 + _4bz * q4) * fm2 + (_4bx * q1 - _8bz * q3) * fm3;
+        s4 += (-_8bx * q4 + _4bz * q2) * fm1 + (-_4bx * q1 + _4bz * q3) * fm2 + _4bx * q2 * fm3;
+      }
+
+      // Normalise the step and apply it with gain beta
+      double step_sq = s1 * s1 + s2 * s2 + s3 * s3 + s4 * s4;
+      if (step_sq > 0.0) {
+        double gain = m_beta / Math.sqrt(step_sq);
+        qDot1 -= gain * s1;
+        qDot2 -= gain * s2;
+        qDot3 -= gain * s3;
+        qDot4 -= gain * s4;
+      }
+    }
+
+    // Integrate to yield quaternion
+    q1 += qDot1 * sample.dt;
+    q2 += qDot2 * sample.dt;
+    q3 += qDot3 * sample.dt;
+    q4 += qDot4 * sample.dt;
+
+    double norm = q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4;
+    if (norm > 0.0) {
+      norm = 1.0 / Math.sqrt(norm);  // normalise quaternion
+      q1 *= norm;
+      q2 *= norm;
+      q3 *= norm;
+      q4 *= norm;
+    }
+    setQuaternion(q1, q2, q3, q4);
+  }
+}
@@ -0,0 +1,155 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * Mahony complementary filter AHRS on the quaternion.
+ *
+ * <p>The error between the measured and the estimated gravity and magnetic
+ * field directions is fed back into the gyro rates, proportionally and
+ * through an integral term that converges to the (negated) gyro bias.
+ */
+final class ADIS16448_MahonyFilter extends ADIS16448_QuaternionFilter {
+  // Proportional and integral gains (x2, as in the reference implementation)
+  private static final double kTwoKp = 2.0 * 0.5;
+  private static final double kTwoKi = 2.0 * 0.05;
+  // Limit on the integral term in rad/sec
+  private static final double kMaxIntegral = 0.1;
+
+  // Integral feedback in rad/sec
+  private double m_integral_x = 0.0;
+  private double m_integral_y = 0.0;
+  private double m_integral_z = 0.0;
+
+  ADIS16448_MahonyFilter(ADIS16448_IMU.Axis yaw_axis) {
+    super(yaw_axis);
+  }
+
+  @Override
+  void reset() {
+    super.reset();
+    m_integral_x = 0.0;
+    m_integral_y = 0.0;
+    m_integral_z = 0.0;
+  }
+
+  @Override
+  public void update(ADIS16448_IMU.Sample sample) {
+    double q1 = m_q1;
+    double q2 = m_q2;
+    double q3 = m_q3;
+    double q4 = m_q4;
+
+    // Swap axis as appropriate for yaw axis selection
+    sample.adjustYawAxis(m_yaw_axis);
+
+    // Convert gyro units to rad/sec
+    double gx = sample.gyro_x * kGyroScale;
+    double gy = sample.gyro_y * kGyroScale;
+    double gz = sample.gyro_z * kGyroScale;
+
+    double ax = sample.accel_x;
+    double ay = sample.accel_y;
+    double az = sample.accel_z;
+    double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+
+    // Only correct when the accelerometer is above the freefall noise floor
+    if (norm * kAccelScale > 0.3) {
+      norm = 1.0 / norm;
+      ax *= norm;
+      ay *= norm;
+      az *= norm;
+
+      double q1q1 = q1 * q1;
+      double q1q2 = q1 * q2;
+      double q1q3 = q1 * q3;
+      double q1q4 = q1 * q4;
+      double q2q2 = q2 * q2;
+      double q2q3 = q2 * q3;
+      double q2q4 = q2 * q4;
+      double q3q3 = q3 * q3;
+      double q3q4 = q3 * q4;
+      double q4q4 = q4 * q4;
+
+      // Estimated direction of gravity (half scale)
+      double halfvx = q2q4 - q1q3;
+      double halfvy = q1q2 + q3q4;
+      double halfvz = q1q1 - 0.5 + q4q4;
+
+      // Error is the cross product between estimated and measured directions
+      double halfex = ay * halfvz - az * halfvy;
+      double halfey = az * halfvx - ax * halfvz;
+      double halfez = ax * halfvy - ay * halfvx;
+
+      double mx = sample.mag_x;
+      double my = sample.mag_y;
+      double mz = sample.mag_z;
+      norm = Math.sqrt(mx * mx + my * my + mz * mz);
+      if (norm > 0.0) {
+        norm = 1.0 / norm;
+        mx *= norm;
+        my *= norm;
+        mz *= norm;
+
+        // Reference direction of Earth's magnetic field
+        double hx = 2.0 * (mx * (0.5 - q3q3 - q4q4) + my * (q2q3 - q1q4) + mz * (q2q4 + q1q3));
+        double hy = 2.0 * (mx * (q2q3 + q1q4) + my * (0.5 - q2q2 - q4q4) + mz * (q3q4 - q1q2));
+        double bx = Math.sqrt(hx * hx + hy * hy);
+        double bz = 2.0 * (mx * (q2q4 - q1q3) + my * (q3q4 + q1q2) + mz * (0.5 - q2q2 - q3q3));
+
+        // Estimated direction of magnetic field (half scale)
+        double halfwx = bx * (0.5 - q3q3 - q4q4) + bz * (q2q4 - q1q3);
+        double halfwy = bx * (q2q3 - q1q4) + bz * (q1q2 + q3q4);
+        double halfwz = bx * (q1q3 + q2q4) + bz * (0.5 - q2q2 - q3q3);
+
+        halfex += my * halfwz - mz * halfwy;
+        halfey += mz * halfwx - mx * halfwz;
+        halfez += mx * halfwy - my * halfwx;
+      }
+
+      // Integral feedback, limited so it can't wind up while moving
+      m_integral_x = clamp(m_integral_x + kTwoKi * halfex * sample.dt);
+      m_integral_y = clamp(m_integral_y + kTwoKi * halfey * sample.dt);
+      m_integral_z = clamp(m_integral_z + kTwoKi * halfez * sample.dt);
+
+      // Proportional feedback
+      gx += kTwoKp * halfex;
+      gy += kTwoKp * halfey;
+      gz += kTwoKp * halfez;
+    }
+    gx += m_integral_x;
+    gy += m_integral_y;
+    gz += m_integral_z;
+
+    // Integrate rate of change of quaternion
+    gx *= 0.5 * sample.dt;
+    gy *= 0.5 * sample.dt;
+    gz *= 0.5 * sample.dt;
+    double qa = q1;
+    double qb = q2;
+    double qc = q3;
+    q1 += -qb * gx - qc * gy - q4 * gz;
+    q2 += qa * gx + qc * gz - q4 * gy;
+    q3 += qa * gy - qb * gz + q4 * gx;
+    q4 += qa * gz + qb * gy - qc * gx;
+
+    norm = Math.sqrt(q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4);
+    if (norm > 0.0) {
+      norm = 1.0 / norm;  // normalise quaternion
+      q1 *= norm;
+      q2 *= norm;
+      q3 *= norm;
+      q4 *= norm;
+    }
+    setQuaternion(q1, q2, q3, q4);
+  }
+
+  private static double clamp(double value) {
+    return Math.max(-kMaxIntegral, Math.min(kMaxIntegral, value));
+  }
+}
@@ -0,0 +1,316 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.wpi.first.wpilibj.smartdashboard.SendableBuilder;
+
+/**
+ * Health counters and histograms of the ADIS16448 acquisition pipeline.
+ *
+ * <p>Each value is written by one pipeline thread with atomic or volatile
+ * stores only, so recording never locks or allocates and any thread can read
+ * the values while they are being updated.
+ */
+public final class ADIS16448_Metrics {
+  /**
+   * Histogram of non-negative values with four buckets per power of two
+   * (about 19% resolution over the whole long range).
+   *
+   * <p>Also usable on its own, e.g. for robot loop timing.  Meant for one
+   * recording thread; any thread may read it.
+   */
+  public static final class Histogram {
+    private static final int kSubBits = 2;
+    private static final int kSubBuckets = 1 << kSubBits;
+    static final int kBuckets = (64 - kSubBits + 1) * kSubBuckets;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(kBuckets);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_sum = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+    public Histogram() {
+    }
+
+    /**
+     * Add a value; negative values count as 0.  Never locks or allocates.
+     */
+    public void record(long value) {
+      if (value < 0) {
+        value = 0;
+      }
+      m_buckets.getAndIncrement(bucket(value));
+      // Saturates rather than wrapping negative
+      m_sum.accumulateAndGet(value, (sum, v) -> sum + v < 0 ? Long.MAX_VALUE : sum + v);
+      if (value > m_max.get()) {
+        m_max.accumulateAndGet(value, Math::max);
+      }
+      // Counted last, so a reader never sees more samples than buckets
+      m_count.incrementAndGet();
+    }
+
+    public long getCount() {
+      return m_count.get();
+    }
+
+    public double getMean() {
+      long count = m_count.get();
+      return count == 0 ? 0.0 : (double) m_sum.get() / count;
+    }
+
+    public long getMax() {
+      return m_max.get();
+    }
+
+    /**
+     * Upper edge of the bucket holding the given fraction of the values.
+     *
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the value, or 0 if nothing was recorded
+     */
+    public long getPercentile(double fraction) {
+      long count = m_count.get();
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long seen = 0;
+      for (int i = 0; i < kBuckets; i++) {
+        seen += m_buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(upperEdge(i), m_max.get());
+        }
+      }
+      return m_max.get();
+    }
+
+    /**
+     * Clear the histogram.  Values recorded during the reset may be lost.
+     */
+    public void reset() {
+      m_count.set(0);
+      for (int i = 0; i < kBuckets; i++) {
+        m_buckets.set(i, 0);
+      }
+      m_sum.set(0);
+      m_max.set(0);
+    }
+
+    static int bucket(long value) {
+      if (value < kSubBuckets) {
+        return (int) value;
+      }
+      int octave = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (octave - kSubBits)) & (kSubBuckets - 1);
+      return (octave - kSubBits + 1) * kSubBuckets + sub;
+    }
+
+    static long upperEdge(int bucket) {
+      if (bucket < kSubBuckets) {
+        return bucket;
+      }
+      int octave = bucket / kSubBuckets + kSubBits - 1;
+      int sub = bucket % kSubBuckets;
+      long lower = (long) (kSubBuckets + sub) << (octave - kSubBits);
+      return lower + (1L << (octave - kSubBits)) - 1;
+    }
+  }
+
+  // Interval of the packets/second measurement
+  private static final long kRateIntervalNanos = 1000000000;
+
+  private final AtomicLong m_packets = new AtomicLong();
+  private final AtomicLong m_crc_failures = new AtomicLong();
+  private final AtomicLong m_bad_intervals = new AtomicLong();
+  private volatile long m_dma_dropped = 0;
+  private volatile long m_fifo_dropped = 0;
+  private volatile int m_fifo_high_water = 0;
+  private volatile double m_packets_per_second = 0.0;
+
+  private final Histogram m_drain_bytes = new Histogram();
+  private final Histogram m_wake_jitter = new Histogram();
+  private final Histogram m_latency = new Histogram();
+  private final Histogram m_calculate_nanos = new Histogram();
+
+  // Acquire thread state
+  private long m_rate_start = 0;
+  private long m_rate_packets = 0;
+  private long m_last_wake = 0;
+  private long m_last_wake_interval = -1;
+
+  ADIS16448_Metrics() {
+  }
+
+  /**
+   * The acquire thread woke up to drain the DMA buffer (acquire thread only).
+   */
+  void recordWake(long now_nanos) {
+    if (m_last_wake != 0) {
+      long interval = now_nanos - m_last_wake;
+      if (m_last_wake_interval >= 0) {
+        m_wake_jitter.record(Math.abs(interval - m_last_wake_interval));
+      }
+      m_last_wake_interval = interval;
+    }
+    m_last_wake = now_nanos;
+  }
+
+  /**
+   * One DMA drain finished (acquire thread only).
+   */
+  void recordDrain(int packets, int crc_failures, long dma_dropped, long fifo_dropped,
+      int fifo_high_water, long now_nanos) {
+    long total = m_packets.addAndGet(packets);
+    if (crc_failures != 0) {
+      m_crc_failures.addAndGet(crc_failures);
+    }
+    m_drain_bytes.record((long) packets * ADIS16448_PacketDecoder.kPacketBytes);
+    m_dma_dropped = dma_dropped;
+    m_fifo_dropped = fifo_dropped;
+    m_fifo_high_water = fifo_high_water;
+
+    if (m_rate_start == 0) {
+      m_rate_start = now_nanos;
+      m_rate_packets = total;
+    } else if (now_nanos - m_rate_start >= kRateIntervalNanos) {
+      m_packets_per_second = (total - m_rate_packets) * 1e9 / (now_nanos - m_rate_start);
+      m_rate_start = now_nanos;
+      m_rate_packets = total;
+    }
+  }
+
+  /**
+   * The gap to the previous packet was not integrated (acquire thread only).
+   */
+  void recordBadInterval() {
+    m_bad_intervals.incrementAndGet();
+  }
+
+  /**
+   * A sample was published (calculate thread only).
+   *
+   * @param latency_us Time from the sample's extended FPGA timestamp to
+   *                   publishing it
+   * @param calculate_nanos Time spent on the AHRS update and publishing
+   */
+  void recordSample(long latency_us, long calculate_nanos) {
+    m_latency.record(latency_us);
+    m_calculate_nanos.record(calculate_nanos);
+  }
+
+  /**
+   * Number of packets read from the DMA buffer, bad CRCs included.
+   */
+  public long getPacketCount() {
+    return m_packets.get();
+  }
+
+  /**
+   * Packets read per second, measured over the last second.
+   */
+  public double getPacketsPerSecond() {
+    return m_packets_per_second;
+  }
+
+  /**
+   * Number of packets discarded because their CRC did not match.
+   */
+  public long getCrcFailureCount() {
+    return m_crc_failures.get();
+  }
+
+  /**
+   * Number of packets whose gap to the previous packet was not positive or
+   * too long to integrate over.
+   */
+  public long getBadIntervalCount() {
+    return m_bad_intervals.get();
+  }
+
+  /**
+   * Number of packets the SPI DMA engine dropped because its buffer was full.
+   */
+  public long getDmaDroppedCount() {
+    return m_dma_dropped;
+  }
+
+  /**
+   * Number of samples dropped because the sample FIFO was full.
+   */
+  public long getFifoDroppedCount() {
+    return m_fifo_dropped;
+  }
+
+  /**
+   * Largest number of samples that have been waiting in the FIFO at once.
+   */
+  public int getFifoHighWaterMark() {
+    return m_fifo_high_water;
+  }
+
+  /**
+   * Bytes read from the DMA buffer per drain.
+   */
+  public Histogram getDrainBytes() {
+    return m_drain_bytes;
+  }
+
+  /**
+   * Change in nanoseconds between successive acquire thread wake intervals.
+   */
+  public Histogram getWakeJitter() {
+    return m_wake_jitter;
+  }
+
+  /**
+   * Microseconds from a sample's FPGA timestamp until it is published.
+   */
+  public Histogram getSampleLatency() {
+    return m_latency;
+  }
+
+  /**
+   * Nanoseconds the calculate thread spends per sample (AHRS update,
+   * publishing and history, not the sample listeners).
+   */
+  public Histogram getCalculateNanos() {
+    return m_calculate_nanos;
+  }
+
+  /**
+   * Clear the histograms.  The counters keep running.
+   */
+  public void resetHistograms() {
+    m_drain_bytes.reset();
+    m_wake_jitter.reset();
+    m_latency.reset();
+    m_calculate_nanos.reset();
+  }
+
+  // Dashboard properties, in the units an operator would look at
+  void addProperties(SendableBuilder builder) {
+    builder.addDoubleProperty("PacketsPerSecond", this::getPacketsPerSecond, null);
+    builder.addDoubleProperty("CrcFailures", () -> getCrcFailureCount(), null);
+    builder.addDoubleProperty("BadIntervals", () -> getBadIntervalCount(), null);
+    builder.addDoubleProperty("DmaDropped", () -> getDmaDroppedCount(), null);
+    builder.addDoubleProperty("FifoDropped", () -> getFifoDroppedCount(), null);
+    builder.addDoubleProperty("FifoHighWater", () -> getFifoHighWaterMark(), null);
+    builder.addDoubleProperty("DrainBytesMean", m_drain_bytes::getMean, null);
+    builder.addDoubleProperty("DrainBytesMax", () -> m_drain_bytes.getMax(), null);
+    builder.addDoubleProperty("WakeJitterP99Us", () -> m_wake_jitter.getPercentile(0.99) / 1000.0, null);
+    builder.addDoubleProperty("WakeJitterMaxUs", () -> m_wake_jitter.getMax() / 1000.0, null);
+    builder.addDoubleProperty("LatencyP50Ms", () -> m_latency.getPercentile(0.5) / 1000.0, null);
+    builder.addDoubleProperty("LatencyP99Ms", () -> m_latency.getPercentile(0.99) / 1000.0, null);
+    builder.addDoubleProperty("LatencyMaxMs", () -> m_latency.getMax() / 1000.0, null);
+    builder.addDoubleProperty("CalculateMeanUs", () -> m_calculate_nanos.getMean() / 1000.0, null);
+    builder.addDoubleProperty("CalculateP99Us", () -> m_calculate_nanos.getPercentile(0.99) / 1000.0, null);
+  }
+}
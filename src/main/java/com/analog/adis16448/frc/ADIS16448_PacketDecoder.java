@@ -0,0 +1,268 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes ADIS16448 burst packets straight out of the SPI DMA buffer.
+ *
+ * <p>The DMA engine stores each packet as a 32-bit FPGA timestamp followed by
+ * the 28 received bytes, one byte per 32-bit word.  Decoded values are written
+ * to preallocated fields, so decoding a packet never allocates.
+ *
+ * <p>The 32-bit timestamp wraps every 71.6 minutes.  The decoder extends it
+ * to 64 bits by counting the wraps, so {@link #timestamp} is in the same
+ * clock as {@code RobotController.getFPGATime()} for the whole run.
+ */
+final class ADIS16448_PacketDecoder {
+  // DMA packet layout: timestamp + 28 data words
+  static final int kPacketWords = 29;
+  static final int kPacketBytes = kPacketWords * 4;
+
+  static final double kDegreePerSecondPerLSB = 1.0/25.0;
+  static final double kGPerLSB = 1.0/1200.0;
+  static final double kMilligaussPerLSB = 1.0/7.0;
+  static final double kMillibarPerLSB = 0.02;
+  static final double kDegCPerLSB = 0.07386;
+  static final double kDegCOffset = 31;
+
+  // Period of the 32-bit DMA timestamp in microseconds
+  private static final long kTimestampWrap = 1L << 32;
+  // Longest gap between packets that is integrated over, in seconds and in
+  // sample periods (whichever is longer)
+  private static final double kMaxInterval = 0.1;
+  private static final double kMaxIntervalPeriods = 4.0;
+
+  // Word index (within a packet) of the MSB of each output register
+  static final int kGyroXWord = 5;
+  static final int kGyroYWord = 7;
+  static final int kGyroZWord = 9;
+  static final int kAccelXWord = 11;
+  static final int kAccelYWord = 13;
+  static final int kAccelZWord = 15;
+  static final int kMagXWord = 17;
+  static final int kMagYWord = 19;
+  static final int kMagZWord = 21;
+  static final int kBaroWord = 23;
+  static final int kTempWord = 25;
+  static final int kCRCWord = 27;
+
+  //CRC-16 Look-Up Table
+  static final int[] kCRCTable = new int[]{
+  0x0000, 0x17CE, 0x0FDF, 0x1811, 0x1FBE, 0x0870, 0x1061, 0x07AF,
+  0x1F3F, 0x08F1, 0x10E0, 0x072E, 0x0081, 0x174F, 0x0F5E, 0x1890,
+  0x1E3D, 0x09F3, 0x11E2, 0x062C, 0x0183, 0x164D, 0x0E5C, 0x1992,
+  0x0102, 0x16CC, 0x0EDD, 0x1913, 0x1EBC, 0x0972, 0x1163, 0x06AD,
+  0x1C39, 0x0BF7, 0x13E6, 0x0428, 0x0387, 0x1449, 0x0C58, 0x1B96,
+  0x0306, 0x14C8, 0x0CD9, 0x1B17, 0x1CB8, 0x0B76, 0x1367, 0x04A9,
+  0x0204, 0x15CA, 0x0DDB, 0x1A15, 0x1DBA, 0x0A74, 0x1265, 0x05AB,
+  0x1D3B, 0x0AF5, 0x12E4, 0x052A, 0x0285, 0x154B, 0x0D5A, 0x1A94,
+  0x1831, 0x0FFF, 0x17EE, 0x0020, 0x078F, 0x1041, 0x0850, 0x1F9E,
+  0x070E, 0x10C0, 0x08D1, 0x1F1F, 0x18B0, 0x0F7E, 0x176F, 0x00A1,
+  0x060C, 0x11C2, 0x09D3, 0x1E1D, 0x19B2, 0x0E7C, 0x166D, 0x01A3,
+  0x1933, 0x0EFD, 0x16EC, 0x0122, 0x068D, 0x1143, 0x0952, 0x1E9C,
+  0x0408, 0x13C6, 0x0BD7, 0x1C19, 0x1BB6, 0x0C78, 0x1469, 0x03A7,
+  0x1B37, 0x0CF9, 0x14E8, 0x0326, 0x0489, 0x1347, 0x0B56, 0x1C98,
+  0x1A35, 0x0DFB, 0x15EA, 0x0224, 0x058B, 0x1245, 0x0A54, 0x1D9A,
+  0x050A, 0x12C4, 0x0AD5, 0x1D1B, 0x1AB4, 0x0D7A, 0x156B, 0x02A5,
+  0x1021, 0x07EF, 0x1FFE, 0x0830, 0x0F9F, 0x1851, 0x0040, 0x178E,
+  0x0F1E, 0x18D0, 0x00C1, 0x170F, 0x10A0, 0x076E, 0x1F7F, 0x08B1,
+  0x0E1C, 0x19D2, 0x01C3, 0x160D, 0x11A2, 0x066C, 0x1E7D, 0x09B3,
+  0x1123, 0x06ED, 0x1EFC, 0x0932, 0x0E9D, 0x1953, 0x0142, 0x168C,
+  0x0C18, 0x1BD6, 0x03C7, 0x1409, 0x13A6, 0x0468, 0x1C79, 0x0BB7,
+  0x1327, 0x04E9, 0x1CF8, 0x0B36, 0x0C99, 0x1B57, 0x0346, 0x1488,
+  0x1225, 0x05EB, 0x1DFA, 0x0A34, 0x0D9B, 0x1A55, 0x0244, 0x158A,
+  0x0D1A, 0x1AD4, 0x02C5, 0x150B, 0x12A4, 0x056A, 0x1D7B, 0x0AB5,
+  0x0810, 0x1FDE, 0x07CF, 0x1001, 0x17AE, 0x0060, 0x1871, 0x0FBF,
+  0x172F, 0x00E1, 0x18F0, 0x0F3E, 0x0891, 0x1F5F, 0x074E, 0x1080,
+  0x162D, 0x01E3, 0x19F2, 0x0E3C, 0x0993, 0x1E5D, 0x064C, 0x1182,
+  0x0912, 0x1EDC, 0x06CD, 0x1103, 0x16AC, 0x0162, 0x1973, 0x0EBD,
+  0x1429, 0x03E7, 0x1BF6, 0x0C38, 0x0B97, 0x1C59, 0x0448, 0x1386,
+  0x0B16, 0x1CD8, 0x04C9, 0x1307, 0x14A8, 0x0366, 0x1B77, 0x0CB9,
+  0x0A14, 0x1DDA, 0x05CB, 0x1205, 0x15AA, 0x0264, 0x1A75, 0x0DBB,
+  0x152B, 0x02E5, 0x1AF4, 0x0D3A, 0x0A95, 0x1D5B, 0x054A, 0x1284
+  };
+
+  // Last decoded packet (post-scaling).  The timestamp is the extended
+  // 64-bit FPGA time in microseconds.
+  long timestamp;
+  double gyro_x;
+  double gyro_y;
+  double gyro_z;
+  double accel_x;
+  double accel_y;
+  double accel_z;
+  double mag_x;
+  double mag_y;
+  double mag_z;
+  // Barometer and temperature registers, unscaled (see scaleBaro() and
+  // scaleTemp()).  Only refreshed every m_low_rate_decimation packets.
+  int baro_raw;
+  int temp_raw;
+
+  private int m_low_rate_decimation = 1;
+  private int m_low_rate_countdown = 0;
+
+  /**
+   * Only read the barometer and temperature from every {@code decimation}th
+   * packet; in between the last values are kept.
+   */
+  void setLowRateDecimation(int decimation) {
+    m_low_rate_decimation = Math.max(1, decimation);
+    m_low_rate_countdown = 0;
+  }
+
+  // Timestamp extension: wraps counted so far (as a multiple of 2^32), the
+  // last raw value, and the FPGA time used to place the first packet (-1
+  // once used or if none was given)
+  private long m_timestamp_high = 0;
+  private long m_timestamp_raw_old = -1;
+  private long m_time_reference = -1;
+
+  /**
+   * Place the next packet's timestamp in the wrap period closest to
+   * {@code fpga_time_us}, e.g. the current FPGA time when decoding starts.
+   * Without a reference the first packet is assumed to be in the first
+   * period, which is right for a replay.
+   */
+  void setTimeReference(long fpga_time_us) {
+    m_time_reference = fpga_time_us;
+  }
+
+  /**
+   * Check the CRC of {@code count} consecutive packets at the start of
+   * {@code buf} in one pass.
+   *
+   * @param valid Set to whether each packet's CRC matched
+   * @return number of packets that failed the check
+   */
+  static int validate(ByteBuffer buf, int count, boolean[] valid) {
+    int failures = 0;
+    for (int n = 0, offset = 0; n < count; n++, offset += kPacketBytes) {
+      boolean ok = computeCRC(buf, offset) == readUShort(buf, offset, kCRCWord);
+      valid[n] = ok;
+      if (!ok) {
+        ++failures;
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Decode the packet starting at byte {@code offset} of {@code buf}.
+   *
+   * @return true if the CRC matched and the output fields were updated
+   */
+  boolean decode(ByteBuffer buf, int offset) {
+    if (computeCRC(buf, offset) != readUShort(buf, offset, kCRCWord)) {
+      return false;
+    }
+    extract(buf, offset);
+    return true;
+  }
+
+  /**
+   * Decode a packet whose CRC has already been checked by {@link #validate}.
+   */
+  void extract(ByteBuffer buf, int offset) {
+    timestamp = extendTimestamp(buf.getInt(offset) & 0x00000000FFFFFFFFL);
+    gyro_x = readShort(buf, offset, kGyroXWord) * kDegreePerSecondPerLSB;
+    gyro_y = readShort(buf, offset, kGyroYWord) * kDegreePerSecondPerLSB;
+    gyro_z = readShort(buf, offset, kGyroZWord) * kDegreePerSecondPerLSB;
+    accel_x = readShort(buf, offset, kAccelXWord) * kGPerLSB;
+    accel_y = readShort(buf, offset, kAccelYWord) * kGPerLSB;
+    accel_z = readShort(buf, offset, kAccelZWord) * kGPerLSB;
+    mag_x = readShort(buf, offset, kMagXWord) * kMilligaussPerLSB;
+    mag_y = readShort(buf, offset, kMagYWord) * kMilligaussPerLSB;
+    mag_z = readShort(buf, offset, kMagZWord) * kMilligaussPerLSB;
+    if (--m_low_rate_countdown <= 0) {
+      m_low_rate_countdown = m_low_rate_decimation;
+      baro_raw = readUShort(buf, offset, kBaroWord);
+      temp_raw = readShort(buf, offset, kTempWord);
+    }
+  }
+
+  // Pressure in millibar
+  double getBaro() {
+    return scaleBaro(baro_raw);
+  }
+
+  // Temperature in degrees C
+  double getTemp() {
+    return scaleTemp(temp_raw);
+  }
+
+  static double scaleBaro(double raw) {
+    return raw * kMillibarPerLSB;
+  }
+
+  static double scaleTemp(double raw) {
+    return raw * kDegCPerLSB + kDegCOffset;
+  }
+
+  /**
+   * Seconds between two packets, for integrating the rates.
+   *
+   * <p>A gap that is not positive, or so long that the rates can't be
+   * trusted over it (a clock fault, or lost data), gives 0 so nothing is
+   * integrated across it.
+   *
+   * @param elapsed_us Difference of the extended timestamps
+   * @param sample_period Nominal sample period in seconds
+   */
+  static double interval(long elapsed_us, double sample_period) {
+    double dt = elapsed_us / 1000000.0;
+    if (dt <= 0.0 || dt > Math.max(kMaxInterval, kMaxIntervalPeriods * sample_period)) {
+      return 0.0;
+    }
+    return dt;
+  }
+
+  // Add the wraps to a raw 32-bit timestamp
+  private long extendTimestamp(long raw) {
+    if (m_time_reference >= 0) {
+      long extended = (m_time_reference & ~(kTimestampWrap - 1)) + raw;
+      if (extended - m_time_reference > kTimestampWrap / 2) {
+        extended -= kTimestampWrap;
+      } else if (m_time_reference - extended > kTimestampWrap / 2) {
+        extended += kTimestampWrap;
+      }
+      m_timestamp_high = extended - raw;
+      m_time_reference = -1;
+    } else if (raw < m_timestamp_raw_old) {
+      m_timestamp_high += kTimestampWrap;
+    }
+    m_timestamp_raw_old = raw;
+    return m_timestamp_high + raw;
+  }
+
+  // Calculate CRC-16 over XYZ GYRO, XYZ ACCEL, XYZ MAG, BARO, TEMP (Ignore Status & CRC)
+  static int computeCRC(ByteBuffer buf, int offset) {
+    int crc = 0x0000FFFF; // Starting word
+    for (int word = kGyroXWord; word < kCRCWord; word += 2) {
+      crc = (crc >>> 8) ^ kCRCTable[(crc & 0xFF) ^ readByte(buf, offset, word + 1)]; // Process LSB
+      crc = (crc >>> 8) ^ kCRCTable[(crc & 0xFF) ^ readByte(buf, offset, word)]; // Process MSB
+    }
+    // Make sure to mask all but relevant 16 bits
+    crc = ~crc & 0xFFFF;
+    return ((crc << 8) | (crc >> 8)) & 0xFFFF;
+  }
+
+  private static int readByte(ByteBuffer buf, int offset, int word) {
+    return buf.getInt(offset + 4 * word) & 0xFF;
+  }
+
+  private static int readUShort(ByteBuffer buf, int offset, int word) {
+    return (readByte(buf, offset, word) << 8) | readByte(buf, offset, word + 1);
+  }
+
+  private static int readShort(ByteBuffer buf, int offset, int word) {
+    return (short) readUShort(buf, offset, word);
+  }
+}
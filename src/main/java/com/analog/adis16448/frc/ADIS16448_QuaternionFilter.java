@@ -0,0 +1,176 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * Common state of the quaternion based AHRS engines.
+ */
+abstract class ADIS16448_QuaternionFilter implements FusionFilter {
+  static final double kGyroScale = 0.0174533;   // rad/sec
+  static final double kAccelScale = 9.80665;    // mg/sec/sec
+  static final double kMagScale = 0.1;          // uTesla
+
+  private static final double kRadToDeg = 180.0 / Math.PI;
+  // atan2 range reduction: tan(pi/8), and the bounds tan(pi/16) and
+  // tan(3 pi/16) of the ratios reduced around it
+  private static final double kTanPi8 = Math.sqrt(2.0) - 1.0;
+  private static final double kTanPi16 = Math.tan(Math.PI / 16);
+  private static final double kTan3Pi16 = Math.tan(3 * Math.PI / 16);
+
+  protected final ADIS16448_IMU.Axis m_yaw_axis;
+
+  protected double m_q1 = 1, m_q2 = 0, m_q3 = 0, m_q4 = 0;
+
+  // AHRS outputs, converted from the quaternion when first asked for after
+  // an update, so callers that only want the quaternion don't pay for it.
+  private double m_yaw = 0.0;
+  private double m_roll = 0.0;
+  private double m_pitch = 0.0;
+  private boolean m_angles_valid = true;
+
+  ADIS16448_QuaternionFilter(ADIS16448_IMU.Axis yaw_axis) {
+    m_yaw_axis = yaw_axis;
+  }
+
+  /**
+   * Forget all state, as if newly created (keeps the settings).
+   */
+  void reset() {
+    setQuaternion(1.0, 0.0, 0.0, 0.0);
+  }
+
+  // Store a new quaternion; the angles are updated from it on demand
+  protected void setQuaternion(double q1, double q2, double q3, double q4) {
+    m_q1 = q1;
+    m_q2 = q2;
+    m_q3 = q3;
+    m_q4 = q4;
+    m_angles_valid = false;
+  }
+
+  private void updateAngles() {
+    if (m_angles_valid) {
+      return;
+    }
+    double q1 = m_q1;
+    double q2 = m_q2;
+    double q3 = m_q3;
+    double q4 = m_q4;
+
+    // Convert quaternion to angles of rotation
+    double xi = -atan2(2*q2*q3 - 2*q1*q4, 2*(q1*q1) + 2*(q2*q2) - 1);
+    double theta = -asin(2*q2*q4 + 2*q1*q3);
+    double rho = atan2(2*q3*q4 - 2*q1*q2, 2*(q1*q1) + 2*(q4*q4) - 1);
+
+    // Convert angles from radians to degrees
+    xi *= kRadToDeg;
+    theta *= kRadToDeg;
+    rho *= kRadToDeg;
+
+    // Adjust angles for inverted mount of MXP sensor
+    theta = -theta;
+    if (rho < 0)
+      rho = 180 - Math.abs(rho);
+    else
+      rho = Math.abs(rho) - 180;
+
+    m_yaw = xi;
+    m_roll = theta;
+    m_pitch = rho;
+    m_angles_valid = true;
+  }
+
+  /**
+   * {@link Math#atan2} to within 1e-9 rad.  The library version is several
+   * times slower and the conversion runs for every sample, since the IMU
+   * publishes the angles of each one.
+   */
+  static double atan2(double y, double x) {
+    double ay = Math.abs(y);
+    double ax = Math.abs(x);
+    double max = Math.max(ax, ay);
+    if (max == 0.0 || Double.isNaN(y) || Double.isNaN(x) || Double.isInfinite(max)) {
+      return Math.atan2(y, x);
+    }
+    // atan of a ratio in [0, 1], reduced to |t| <= tan(pi/16) around 0,
+    // pi/8 or pi/4
+    double a = Math.min(ax, ay) / max;
+    double base = 0.0;
+    if (a > kTan3Pi16) {
+      a = (a - 1.0) / (a + 1.0);
+      base = Math.PI / 4;
+    } else if (a > kTanPi16) {
+      a = (a - kTanPi8) / (1.0 + a * kTanPi8);
+      base = Math.PI / 8;
+    }
+    // Taylor series, the first term left out is below 1e-10 rad
+    double a2 = a * a;
+    double sum = -1.0 / 11;
+    sum = sum * a2 + 1.0 / 9;
+    sum = sum * a2 - 1.0 / 7;
+    sum = sum * a2 + 1.0 / 5;
+    sum = sum * a2 - 1.0 / 3;
+    sum = sum * a2 + 1.0;
+    double r = base + a * sum;
+
+    // Back out to the right octant and quadrant
+    if (ay > ax) {
+      r = Math.PI / 2 - r;
+    }
+    if (x < 0.0) {
+      r = Math.PI - r;
+    }
+    return y < 0.0 ? -r : r;
+  }
+
+  /**
+   * {@link Math#asin} to within 1e-8 rad, clamped to +-90 degrees where
+   * rounding puts the argument just past +-1.
+   */
+  static double asin(double s) {
+    return atan2(s, Math.sqrt(Math.max(0.0, (1.0 - s) * (1.0 + s))));
+  }
+
+  @Override
+  public double getYaw() {
+    updateAngles();
+    return m_yaw;
+  }
+
+  @Override
+  public double getPitch() {
+    updateAngles();
+    return m_pitch;
+  }
+
+  @Override
+  public double getRoll() {
+    updateAngles();
+    return m_roll;
+  }
+
+  @Override
+  public double getQuaternionW() {
+    return m_q1;
+  }
+
+  @Override
+  public double getQuaternionX() {
+    return m_q2;
+  }
+
+  @Override
+  public double getQuaternionY() {
+    return m_q3;
+  }
+
+  @Override
+  public double getQuaternionZ() {
+    return m_q4;
+  }
+}
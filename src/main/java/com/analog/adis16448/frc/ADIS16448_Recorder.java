@@ -0,0 +1,194 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Records the raw DMA packets to a file, for replaying sensor data later.
+ *
+ * <p>The acquire thread copies each packet into a preallocated byte ring and
+ * never waits; if the ring is full the packet is dropped and counted.  A low
+ * priority thread appends the ring contents to the file.
+ *
+ * <p>File layout (little endian): a header of {@link #kMagic},
+ * {@link #kVersion}, the frame size in bytes and the SMPL_PRD and SENS_AVG
+ * register values, then one frame per packet: the 32-bit FPGA timestamp in
+ * microseconds followed by the 28 bytes received from the IMU.
+ */
+final class ADIS16448_Recorder {
+  static final int kMagic = 0x53494441; // "ADIS"
+  static final int kVersion = 1;
+  static final int kHeaderBytes = 20;
+  static final int kFrameData = 28;
+  static final int kFrameBytes = 4 + kFrameData;
+
+  // Longest time the writer sleeps when there is nothing to write
+  private static final long kWriterParkNanos = 20000000;
+  // Interval of the bytes/second measurement
+  private static final long kRateIntervalNanos = 1000000000;
+
+  private final FileChannel m_channel;
+  private final byte[] m_ring;
+  private final ByteBuffer m_ring_view;
+  private final long m_capacity;
+  private final int m_mask;
+
+  // Frame positions; head is only written by the acquire thread, tail only
+  // by the writer
+  private final AtomicLong m_head = new AtomicLong();
+  private final AtomicLong m_tail = new AtomicLong();
+
+  private final AtomicLong m_dropped = new AtomicLong();
+  private volatile long m_bytes_written = 0;
+  private volatile double m_bytes_per_second = 0.0;
+
+  private volatile boolean m_stopped = false;
+  private final Thread m_writer;
+
+  /**
+   * Create the file and start the writer thread.
+   *
+   * @param frames Minimum number of frames the ring holds. Rounded up to a
+   *               power of two.
+   */
+  ADIS16448_Recorder(String path, int frames, int smpl_prd, int sens_avg) throws IOException {
+    int capacity = Integer.highestOneBit(Math.max(1, frames));
+    if (capacity < frames) {
+      capacity <<= 1;
+    }
+    m_capacity = capacity;
+    m_mask = capacity - 1;
+    m_ring = new byte[capacity * kFrameBytes];
+    m_ring_view = ByteBuffer.wrap(m_ring);
+
+    m_channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    ByteBuffer header = ByteBuffer.allocate(kHeaderBytes).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(kMagic).putInt(kVersion).putInt(kFrameBytes).putInt(smpl_prd).putInt(sens_avg);
+    header.flip();
+    while (header.hasRemaining()) {
+      m_channel.write(header);
+    }
+    m_bytes_written = kHeaderBytes;
+
+    m_writer = new Thread(this::write, "ADIS16448 recorder");
+    m_writer.setDaemon(true);
+    m_writer.setPriority(Thread.MIN_PRIORITY);
+    m_writer.start();
+  }
+
+  /**
+   * Copy {@code count} DMA packets from the start of {@code buf} (acquire
+   * thread only).  Never blocks.
+   */
+  void record(ByteBuffer buf, int count) {
+    long head = m_head.get();
+    long free = m_capacity - (head - m_tail.get());
+    int recorded = (int) Math.min(count, free);
+    for (int n = 0; n < recorded; n++) {
+      int src = n * ADIS16448_PacketDecoder.kPacketBytes;
+      int dst = (int) ((head + n) & m_mask) * kFrameBytes;
+      int timestamp = buf.getInt(src);
+      m_ring[dst] = (byte) timestamp;
+      m_ring[dst + 1] = (byte) (timestamp >> 8);
+      m_ring[dst + 2] = (byte) (timestamp >> 16);
+      m_ring[dst + 3] = (byte) (timestamp >> 24);
+      for (int i = 0; i < kFrameData; i++) {
+        m_ring[dst + 4 + i] = (byte) buf.getInt(src + 4 * (i + 1));
+      }
+    }
+    if (recorded < count) {
+      m_dropped.addAndGet(count - recorded);
+    }
+    if (recorded > 0) {
+      m_head.lazySet(head + recorded);
+    }
+  }
+
+  // Writer thread: append whatever is in the ring until stopped
+  private void write() {
+    long rate_start = System.nanoTime();
+    long rate_bytes = m_bytes_written;
+    try {
+      while (true) {
+        boolean stopped = m_stopped;
+        long tail = m_tail.get();
+        long available = m_head.get() - tail;
+        if (available == 0) {
+          if (stopped) {
+            break;
+          }
+          LockSupport.parkNanos(this, kWriterParkNanos);
+        } else {
+          // Contiguous part of the ring
+          int first = (int) (tail & m_mask);
+          int frames = (int) Math.min(available, m_capacity - first);
+          m_ring_view.limit((first + frames) * kFrameBytes);
+          m_ring_view.position(first * kFrameBytes);
+          while (m_ring_view.hasRemaining()) {
+            m_channel.write(m_ring_view);
+          }
+          m_bytes_written = m_bytes_written + frames * kFrameBytes;
+          m_tail.lazySet(tail + frames);
+        }
+
+        long now = System.nanoTime();
+        if (now - rate_start >= kRateIntervalNanos) {
+          long bytes = m_bytes_written;
+          m_bytes_per_second = (bytes - rate_bytes) * 1e9 / (now - rate_start);
+          rate_start = now;
+          rate_bytes = bytes;
+        }
+      }
+      m_channel.force(false);
+    } catch (IOException e) {
+      DriverStation.reportError("ADIS16448: recording failed: " + e, false);
+    } finally {
+      m_bytes_per_second = 0.0;
+      try {
+        m_channel.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Write out what is buffered, then close the file.
+   */
+  void close() {
+    m_stopped = true;
+    LockSupport.unpark(m_writer);
+    try {
+      m_writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  long getDroppedFrames() {
+    return m_dropped.get();
+  }
+
+  long getBytesWritten() {
+    return m_bytes_written;
+  }
+
+  double getBytesPerSecond() {
+    return m_bytes_per_second;
+  }
+}
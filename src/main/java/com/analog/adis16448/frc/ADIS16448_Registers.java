@@ -0,0 +1,199 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import edu.wpi.first.wpilibj.SPI;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Register access over SPI for configuring the ADIS16448.
+ *
+ * <p>The ADIS16448 needs chip select toggled around every 16-bit frame, so a
+ * configuration can't be sent as one long transfer.  Instead every frame of
+ * a batch is sent back to back from one preallocated buffer:
+ * <ul>
+ * <li>Reads are pipelined; the response to a read command arrives during the
+ * next frame, so reading n registers takes n + 1 frames instead of 2n.
+ * <li>Writes go one byte per frame, as the sensor requires.  A shadow copy
+ * of the configuration registers is kept and only the bytes that differ
+ * from it are written.
+ * </ul>
+ *
+ * <p>Not thread safe; only used before the DMA auto-transfer is started.
+ */
+final class ADIS16448_Registers {
+  static final int kRegMSC_CTRL = 0x34;
+  static final int kRegSMPL_PRD = 0x36;
+  static final int kRegSENS_AVG = 0x38;
+  static final int kRegPROD_ID = 0x56;
+  static final int kProductId = 16448;
+
+  // Register addresses are even, 0x00 to 0x7E
+  private static final int kRegisters = 64;
+  // Shadow entry for a register whose contents aren't known
+  private static final int kUnknown = -1;
+  // Readiness poll interval in seconds
+  private static final double kPollInterval = 0.002;
+
+  private final SPI m_spi;
+  private final ByteBuffer m_tx = ByteBuffer.allocateDirect(2).order(ByteOrder.BIG_ENDIAN);
+  private final ByteBuffer m_rx = ByteBuffer.allocateDirect(2).order(ByteOrder.BIG_ENDIAN);
+  private final int[] m_shadow = new int[kRegisters];
+
+  // Frames sent so far, for checking how much a configuration costs
+  private int m_frames = 0;
+
+  ADIS16448_Registers(SPI spi) {
+    m_spi = spi;
+    invalidate();
+  }
+
+  /**
+   * Forget the shadow copy, so the next configuration writes every register.
+   */
+  void invalidate() {
+    for (int i = 0; i < kRegisters; i++) {
+      m_shadow[i] = kUnknown;
+    }
+  }
+
+  /**
+   * Set the shadow copy to the factory defaults of the configuration
+   * registers, which the sensor loads after a reset.  Only valid if the
+   * configuration was never saved to the sensor's flash.
+   */
+  void assumeResetDefaults() {
+    invalidate();
+    m_shadow[kRegMSC_CTRL >> 1] = 0x0006;
+    m_shadow[kRegSMPL_PRD >> 1] = 0x0001;
+    m_shadow[kRegSENS_AVG >> 1] = 0x0402;
+  }
+
+  /**
+   * Poll the product ID until the sensor answers correctly twice in a row,
+   * e.g. while it starts up after a reset.
+   *
+   * @param timeout Give up after this many seconds
+   * @return true if the sensor is ready
+   */
+  boolean waitReady(double timeout) {
+    double deadline = Timer.getFPGATimestamp() + timeout;
+    int good = 0;
+    // Each frame returns the answer to the previous one's read command
+    frame(readCommand(kRegPROD_ID));
+    while (true) {
+      if (frame(readCommand(kRegPROD_ID)) == kProductId) {
+        if (++good == 2) {
+          return true;
+        }
+      } else {
+        good = 0;
+      }
+      if (Timer.getFPGATimestamp() >= deadline) {
+        return false;
+      }
+      Timer.delay(kPollInterval);
+    }
+  }
+
+  /**
+   * Read a single register.
+   */
+  int read(int reg) {
+    frame(readCommand(reg));
+    return frame(readCommand(reg));
+  }
+
+  /**
+   * Read several registers in one pipelined sequence.
+   *
+   * @param values Set to the register contents, in the order of {@code regs}
+   */
+  void read(int[] regs, int[] values) {
+    if (regs.length == 0) {
+      return;
+    }
+    frame(readCommand(regs[0]));
+    for (int i = 1; i < regs.length; i++) {
+      values[i - 1] = frame(readCommand(regs[i]));
+    }
+    // Clock out the last answer with a harmless read
+    values[regs.length - 1] = frame(readCommand(kRegPROD_ID));
+  }
+
+  /**
+   * Write a configuration in one sequence, skipping bytes that the shadow
+   * copy says are already set.
+   *
+   * @return the number of registers that were written
+   */
+  int write(int[] regs, int[] values) {
+    int written = 0;
+    for (int i = 0; i < regs.length; i++) {
+      int reg = regs[i];
+      int value = values[i] & 0xffff;
+      int old = m_shadow[reg >> 1];
+      boolean low = old == kUnknown || (old & 0xff) != (value & 0xff);
+      boolean high = old == kUnknown || (old >> 8) != (value >> 8);
+      if (low) {
+        frame(0x80 | reg, value & 0xff);
+      }
+      if (high) {
+        frame(0x80 | (reg + 1), value >> 8);
+      }
+      if (low || high) {
+        m_shadow[reg >> 1] = value;
+        ++written;
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Read back a configuration and compare it with the expected values.  The
+   * shadow copy is updated to what was read.
+   *
+   * @param scratch Array at least as long as {@code regs}
+   * @return true if every register matches
+   */
+  boolean verify(int[] regs, int[] values, int[] scratch) {
+    read(regs, scratch);
+    boolean match = true;
+    for (int i = 0; i < regs.length; i++) {
+      m_shadow[regs[i] >> 1] = scratch[i];
+      if (scratch[i] != (values[i] & 0xffff)) {
+        match = false;
+      }
+    }
+    return match;
+  }
+
+  int getFrameCount() {
+    return m_frames;
+  }
+
+  private static int readCommand(int reg) {
+    return reg & 0x7f;
+  }
+
+  // One 16-bit frame; returns the 16 bits received at the same time
+  private int frame(int command) {
+    return frame(command, 0);
+  }
+
+  private int frame(int first, int second) {
+    m_tx.put(0, (byte) first);
+    m_tx.put(1, (byte) second);
+    m_spi.transaction(m_tx, m_rx, 2);
+    ++m_frames;
+    return m_rx.getShort(0) & 0xffff;
+  }
+}
@@ -0,0 +1,178 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Desktop tool that runs a recording from {@link ADIS16448_Recorder} through
+ * the same decoding, CRC check, calibration and AHRS code as the robot, as
+ * fast as possible.  Time comes from the recorded packet timestamps.  The
+ * gyro offsets are measured from the start of the recording, as on a robot
+ * without a saved bias.
+ *
+ * <p>Usage: {@code ADIS16448_Replay <recording> [--algorithm kMadgwick]
+ * [--yaw-axis kZ] [--track-bias] [--csv <trace.csv>]}
+ */
+public final class ADIS16448_Replay {
+  // Packets handled per read, as in one acquire drain
+  private static final int kReadPackets = 256;
+
+  private final ADIS16448_PacketDecoder m_decoder = new ADIS16448_PacketDecoder();
+  private final FusionFilter m_filter;
+  private final ADIS16448_Calibration m_calibration =
+      new ADIS16448_Calibration(ADIS16448_IMU.kCalibrationSampleTime);
+  private final ADIS16448_Integrator m_integrator;
+  private final boolean m_track_bias;
+  private final ADIS16448_IMU.Sample m_sample = new ADIS16448_IMU.Sample();
+  private final StringBuilder m_line = new StringBuilder();
+
+  private long m_timestamp_first = 0;
+
+  // Totals
+  private long m_packets = 0;
+  private long m_crc_failures = 0;
+
+  ADIS16448_Replay(FusionFilter filter, double sample_period, boolean track_bias) {
+    m_filter = filter;
+    m_track_bias = track_bias;
+    m_integrator = new ADIS16448_Integrator(sample_period, new ADIS16448_BiasTracker(
+        (int) Math.ceil(ADIS16448_IMU.kBiasWindowTime / sample_period)));
+  }
+
+  /**
+   * Process every packet from {@code source}.
+   *
+   * @param trace If not null, gets a CSV line per sample
+   */
+  void run(ADIS16448_Transport source, PrintWriter trace) {
+    ByteBuffer buf = ByteBuffer.allocate(kReadPackets * ADIS16448_PacketDecoder.kPacketBytes);
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+    boolean[] crc_valid = new boolean[kReadPackets];
+    if (trace != null) {
+      trace.println("time,yaw,pitch,roll,angle_x,angle_y,angle_z");
+    }
+
+    int packets;
+    while ((packets = source.read(buf, kReadPackets)) >= 0) {
+      m_packets += packets;
+      m_crc_failures += ADIS16448_PacketDecoder.validate(buf, packets, crc_valid);
+      for (int n = 0; n < packets; n++) {
+        if (crc_valid[n]) {
+          m_decoder.extract(buf, n * ADIS16448_PacketDecoder.kPacketBytes);
+          process(m_decoder, trace);
+        }
+      }
+    }
+  }
+
+  // Same steps as ADIS16448_IMU acquire() and calculate() for one packet
+  private void process(ADIS16448_PacketDecoder packet, PrintWriter trace) {
+    ADIS16448_Integrator integrator = m_integrator;
+    if (integrator.getLastTimestamp() == 0) {
+      m_timestamp_first = packet.timestamp;
+    }
+    integrator.step(packet, m_calibration, m_track_bias);
+
+    ADIS16448_IMU.Sample sample = m_sample;
+    sample.gyro_x = packet.gyro_x;
+    sample.gyro_y = packet.gyro_y;
+    sample.gyro_z = packet.gyro_z;
+    sample.accel_x = packet.accel_x;
+    sample.accel_y = packet.accel_y;
+    sample.accel_z = packet.accel_z;
+    sample.mag_x = packet.mag_x;
+    sample.mag_y = packet.mag_y;
+    sample.mag_z = packet.mag_z;
+    sample.baro = packet.getBaro();
+    sample.temp = packet.getTemp();
+    sample.dt = integrator.getDt();
+    m_filter.update(sample);
+
+    if (trace != null) {
+      // Plain appends; formatted output would dominate the replay time
+      StringBuilder line = m_line;
+      line.setLength(0);
+      line.append((packet.timestamp - m_timestamp_first) / 1000000.0)
+          .append(',').append(m_filter.getYaw())
+          .append(',').append(m_filter.getPitch())
+          .append(',').append(m_filter.getRoll())
+          .append(',').append(integrator.getAngleX())
+          .append(',').append(integrator.getAngleY())
+          .append(',').append(integrator.getAngleZ());
+      trace.println(line);
+    }
+  }
+
+  // Integrated z angle in degrees
+  double getAngleZ() {
+    return m_integrator.getAngleZ();
+  }
+
+  ADIS16448_Integrator getIntegrator() {
+    return m_integrator;
+  }
+
+  FusionFilter getFilter() {
+    return m_filter;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: ADIS16448_Replay <recording> [--algorithm kMadgwick]"
+          + " [--yaw-axis kZ] [--track-bias] [--csv <trace.csv>]");
+      System.exit(2);
+    }
+    String path = args[0];
+    ADIS16448_IMU.AHRSAlgorithm algorithm = ADIS16448_IMU.AHRSAlgorithm.kComplementary;
+    ADIS16448_IMU.Axis yaw_axis = ADIS16448_IMU.Axis.kZ;
+    boolean track_bias = false;
+    String csv = null;
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--algorithm":
+          algorithm = ADIS16448_IMU.AHRSAlgorithm.valueOf(args[++i]);
+          break;
+        case "--yaw-axis":
+          yaw_axis = ADIS16448_IMU.Axis.valueOf(args[++i]);
+          break;
+        case "--track-bias":
+          track_bias = true;
+          break;
+        case "--csv":
+          csv = args[++i];
+          break;
+        default:
+          System.err.println("unknown option " + args[i]);
+          System.exit(2);
+      }
+    }
+
+    try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(path);
+         PrintWriter trace = csv == null ? null : new PrintWriter(Files.newBufferedWriter(Paths.get(csv)))) {
+      ADIS16448_Replay replay = new ADIS16448_Replay(
+          ADIS16448_IMU.createFilter(algorithm, yaw_axis), source.getSamplePeriod(), track_bias);
+      long start = System.nanoTime();
+      replay.run(source, trace);
+      double elapsed = (System.nanoTime() - start) / 1e9;
+
+      ADIS16448_Integrator integrator = replay.m_integrator;
+      double duration = (integrator.getLastTimestamp() - replay.m_timestamp_first) / 1000000.0;
+      System.out.printf("%d packets (%d bad CRC), %.1f s of data replayed in %.3f s%n",
+          replay.m_packets, replay.m_crc_failures, duration, elapsed);
+      System.out.printf("gyro offsets %.4f %.4f %.4f deg/s%n",
+          integrator.getOffsetX(), integrator.getOffsetY(), integrator.getOffsetZ());
+      System.out.printf("final yaw %.3f, angle z %.3f deg%n", replay.m_filter.getYaw(), integrator.getAngleZ());
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Sample listeners and threads waiting for the next sample.
+ *
+ * <p>The calculate thread calls {@link #dispatch} once per published sample.
+ * It first wakes the threads in {@link #awaitNext}, then runs the listeners,
+ * so a slow listener doesn't delay the waiters.  The listener array is
+ * replaced as a whole when changed, so dispatch never locks: a listener
+ * added or removed during a dispatch takes effect from the next sample.
+ */
+final class ADIS16448_SampleListeners {
+  private static final class Entry {
+    final ImuSampleListener listener;
+    volatile long calls = 0;
+    volatile long total_nanos = 0;
+    volatile long max_nanos = 0;
+
+    Entry(ImuSampleListener listener) {
+      this.listener = listener;
+    }
+  }
+  private volatile Entry[] m_entries = new Entry[0];
+
+  // Samples dispatched so far, and the threads blocked in awaitNext()
+  private final AtomicLong m_samples = new AtomicLong();
+  private final Object m_monitor = new Object();
+  private final AtomicInteger m_waiters = new AtomicInteger();
+
+  /**
+   * Adding the same listener twice has no effect.
+   */
+  synchronized void add(ImuSampleListener listener) {
+    Entry[] entries = m_entries;
+    if (find(entries, listener) >= 0) return;
+    Entry[] updated = new Entry[entries.length + 1];
+    System.arraycopy(entries, 0, updated, 0, entries.length);
+    updated[entries.length] = new Entry(listener);
+    m_entries = updated;
+  }
+
+  synchronized void remove(ImuSampleListener listener) {
+    Entry[] entries = m_entries;
+    int index = find(entries, listener);
+    if (index < 0) return;
+    Entry[] updated = new Entry[entries.length - 1];
+    System.arraycopy(entries, 0, updated, 0, index);
+    System.arraycopy(entries, index + 1, updated, index, updated.length - index);
+    m_entries = updated;
+  }
+
+  /**
+   * Average time in seconds a listener has taken per sample, or 0 if it is
+   * not registered or hasn't run yet.
+   */
+  double getTime(ImuSampleListener listener) {
+    Entry[] entries = m_entries;
+    int index = find(entries, listener);
+    if (index < 0) return 0.0;
+    Entry entry = entries[index];
+    long calls = entry.calls;
+    return calls == 0 ? 0.0 : entry.total_nanos / 1e9 / calls;
+  }
+
+  /**
+   * Longest time in seconds a listener has taken for one sample.
+   */
+  double getMaxTime(ImuSampleListener listener) {
+    Entry[] entries = m_entries;
+    int index = find(entries, listener);
+    return index < 0 ? 0.0 : entries[index].max_nanos / 1e9;
+  }
+
+  private static int find(Entry[] entries, ImuSampleListener listener) {
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].listener == listener) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Wake waiting threads, then run the listeners (calculate thread only,
+   * after the sample is published).
+   *
+   * @param state  Published state, laid out as in {@link ImuSnapshot}
+   * @param sample Reused to pass the state to each listener
+   */
+  void dispatch(double[] state, ImuSnapshot sample) {
+    m_samples.incrementAndGet();
+    if (m_waiters.get() > 0) {
+      synchronized (m_monitor) {
+        m_monitor.notifyAll();
+      }
+    }
+
+    Entry[] entries = m_entries;
+    for (int i = 0; i < entries.length; i++) {
+      Entry entry = entries[i];
+      // Fresh copy for each listener, so one can't alter what the next sees
+      System.arraycopy(state, 0, sample.m_values, 0, ImuSnapshot.kValues);
+      long start = System.nanoTime();
+      try {
+        entry.listener.onSample(sample);
+      } catch (RuntimeException e) {
+        DriverStation.reportError("ADIS16448 sample listener failed: " + e, e.getStackTrace());
+      }
+      long nanos = System.nanoTime() - start;
+      entry.calls = entry.calls + 1;
+      entry.total_nanos = entry.total_nanos + nanos;
+      if (nanos > entry.max_nanos) {
+        entry.max_nanos = nanos;
+      }
+    }
+  }
+
+  /**
+   * Block until the next {@link #dispatch}.
+   *
+   * @param timeout Longest time to wait in seconds
+   * @return true if a new sample arrived, false on timeout or interrupt
+   */
+  boolean awaitNext(double timeout) {
+    long samples = m_samples.get();
+    long deadline = System.nanoTime() + (long) (timeout * 1e9);
+    m_waiters.incrementAndGet();
+    try {
+      synchronized (m_monitor) {
+        while (m_samples.get() == samples) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(m_monitor, remaining);
+        }
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      m_waiters.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer lock-free ring of IMU samples.
+ *
+ * <p>Samples are stored as rows of primitive doubles in one preallocated
+ * array, so neither side allocates or locks.  The producer (acquire thread)
+ * claims a slot, fills it and publishes it; the consumer (calculate thread)
+ * parks while the ring is empty and is unparked by the producer.
+ */
+final class ADIS16448_SampleRing {
+  // Slot layout
+  static final int kGyroX = 0;
+  static final int kGyroY = 1;
+  static final int kGyroZ = 2;
+  static final int kAccelX = 3;
+  static final int kAccelY = 4;
+  static final int kAccelZ = 5;
+  static final int kMagX = 6;
+  static final int kMagY = 7;
+  static final int kMagZ = 8;
+  static final int kBaro = 9;
+  static final int kTemp = 10;
+  static final int kDt = 11;
+  static final int kAngleX = 12;
+  static final int kAngleY = 13;
+  static final int kAngleZ = 14;
+  // Extended (64-bit) FPGA time in seconds
+  static final int kTimestamp = 15;
+  static final int kFields = 16;
+
+  private final double[] m_slots;
+  private final int m_capacity;
+  private final int m_mask;
+
+  // Monotonic positions. head is only written by the producer, tail only by
+  // the consumer.
+  private final AtomicLong m_head = new AtomicLong();
+  private final AtomicLong m_tail = new AtomicLong();
+
+  // Consumer wakeup
+  private final AtomicBoolean m_consumer_waiting = new AtomicBoolean(false);
+  private volatile Thread m_consumer;
+
+  // Statistics
+  private final AtomicLong m_overflows = new AtomicLong();
+  private volatile int m_high_water = 0;
+
+  /**
+   * @param depth Minimum number of samples the ring can hold. Rounded up to
+   *              a power of two.
+   */
+  ADIS16448_SampleRing(int depth) {
+    if (depth < 1) {
+      throw new IllegalArgumentException("Sample FIFO depth must be positive");
+    }
+    int capacity = Integer.highestOneBit(depth);
+    if (capacity < depth) {
+      capacity <<= 1;
+    }
+    m_capacity = capacity;
+    m_mask = capacity - 1;
+    m_slots = new double[capacity * kFields];
+  }
+
+  int capacity() {
+    return m_capacity;
+  }
+
+  /**
+   * Producer: get the array offset of the next free slot.
+   *
+   * @return slot offset, or -1 if the ring is full (counted as an overflow)
+   */
+  int claim() {
+    long head = m_head.get();
+    if (head - m_tail.get() >= m_capacity) {
+      m_overflows.incrementAndGet();
+      return -1;
+    }
+    return (int) (head & m_mask) * kFields;
+  }
+
+  void set(int slot, int field, double value) {
+    m_slots[slot + field] = value;
+  }
+
+  /**
+   * Producer: make the claimed slot visible to the consumer and wake it.
+   */
+  void publish() {
+    long head = m_head.get() + 1;
+    // Volatile store: orders the slot writes before the new head and the
+    // head before the waiting check below.
+    m_head.set(head);
+
+    int depth = (int) (head - m_tail.get());
+    if (depth > m_high_water) {
+      m_high_water = depth;
+    }
+
+    if (m_consumer_waiting.get()) {
+      LockSupport.unpark(m_consumer);
+    }
+  }
+
+  /**
+   * Consumer: wait until at least one sample is available.
+   *
+   * @param timeout_nanos Longest time to park
+   * @return number of samples available (may be 0 after a timeout or wakeup)
+   */
+  int await(long timeout_nanos) {
+    int available = available();
+    if (available > 0) {
+      return available;
+    }
+    m_consumer = Thread.currentThread();
+    m_consumer_waiting.set(true);
+    try {
+      // Re-check after advertising so a publish in between isn't missed
+      available = available();
+      if (available == 0) {
+        LockSupport.parkNanos(this, timeout_nanos);
+        available = available();
+      }
+    } finally {
+      m_consumer_waiting.set(false);
+    }
+    return available;
+  }
+
+  int available() {
+    return (int) (m_head.get() - m_tail.get());
+  }
+
+  /**
+   * Consumer: array offset of the i'th available sample (0 = oldest).
+   */
+  int peek(int i) {
+    return (int) ((m_tail.get() + i) & m_mask) * kFields;
+  }
+
+  double get(int slot, int field) {
+    return m_slots[slot + field];
+  }
+
+  /**
+   * Consumer: return {@code count} samples to the producer.
+   */
+  void release(int count) {
+    m_tail.lazySet(m_tail.get() + count);
+  }
+
+  /**
+   * Wake the consumer if it is parked (used on shutdown).
+   */
+  void wakeConsumer() {
+    Thread consumer = m_consumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  long getOverflowCount() {
+    return m_overflows.get();
+  }
+
+  int getHighWaterMark() {
+    return m_high_water;
+  }
+}
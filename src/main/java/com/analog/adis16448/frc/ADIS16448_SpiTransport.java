@@ -0,0 +1,38 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.nio.ByteBuffer;
+
+import edu.wpi.first.wpilibj.SPI;
+
+/**
+ * Packets from the SPI auto-transfer (DMA) buffer.
+ */
+final class ADIS16448_SpiTransport implements ADIS16448_Transport {
+  private final SPI m_spi;
+
+  ADIS16448_SpiTransport(SPI spi) {
+    m_spi = spi;
+  }
+
+  @Override
+  public int read(ByteBuffer buf, int max_packets) {
+    int data_count = m_spi.readAutoReceivedData(buf, 0, 0); // Read number of 32-bit words currently stored in the buffer
+    int packets = Math.min(data_count / ADIS16448_PacketDecoder.kPacketWords, max_packets); // Only read whole packets
+    if (packets > 0) {
+      m_spi.readAutoReceivedData(buf, packets * ADIS16448_PacketDecoder.kPacketWords, 0); // Read data from DMA buffer
+    }
+    return packets;
+  }
+
+  @Override
+  public long getDroppedCount() {
+    return m_spi.getAutoDroppedCount();
+  }
+}
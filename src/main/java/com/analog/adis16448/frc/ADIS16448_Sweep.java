@@ -0,0 +1,442 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Desktop tool that replays a directory of recordings with every
+ * combination of filter settings in parallel, and ranks the settings.
+ *
+ * <p>Each run's yaw is compared with a reference yaw for the same log, from
+ * the bias-estimating Kalman AHRS with default settings.  A run is scored on
+ * drift (slope of the error, deg/min), noise (RMS of the sample to sample
+ * change of the error, deg) and lag (size of the time shift, either way,
+ * that best matches the reference).  Settings are ranked by the sum of the
+ * three, each divided by its median over all settings.
+ *
+ * <p>Usage: {@code ADIS16448_Sweep <directory> [--tau-acc 0.5,0.95]
+ * [--tau-mag 0.02,0.04] [--beta 0.05,0.1,0.4] [--top 20]}
+ */
+public final class ADIS16448_Sweep {
+  // Start of the logs left out of the scores (startup transients)
+  private static final double kSkipTime = 5.0;
+  // Longest lag (or lead) searched for, in seconds
+  private static final double kMaxLag = 0.5;
+  // Runs handled by one fork/join leaf
+  private static final int kLeafRuns = 4;
+
+  /**
+   * One recording decoded to primitive arrays, plus its reference yaw.
+   */
+  static final class Log {
+    final String name;
+    final double sample_period;
+    final int count;
+    final double[] time;
+    final double[] dt;
+    // Raw sensor values, indexed [channel][sample]
+    final double[][] raw;
+    final double[] reference_yaw;
+
+    private static final int kChannels = 9;
+
+    Log(Path path) throws IOException {
+      name = path.getFileName().toString();
+      try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(path.toString())) {
+        sample_period = source.getSamplePeriod();
+        int packets_per_read = 256;
+        ByteBuffer buf = ByteBuffer.allocate(packets_per_read * ADIS16448_PacketDecoder.kPacketBytes);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        boolean[] valid = new boolean[packets_per_read];
+        ADIS16448_PacketDecoder packet = new ADIS16448_PacketDecoder();
+
+        int n = 0;
+        double[] time = new double[1024];
+        double[][] raw = new double[kChannels][1024];
+        int packets;
+        while ((packets = source.read(buf, packets_per_read)) >= 0) {
+          ADIS16448_PacketDecoder.validate(buf, packets, valid);
+          for (int i = 0; i < packets; i++) {
+            if (!valid[i]) {
+              continue;
+            }
+            packet.extract(buf, i * ADIS16448_PacketDecoder.kPacketBytes);
+            if (n == time.length) {
+              time = Arrays.copyOf(time, n * 2);
+              for (int c = 0; c < kChannels; c++) {
+                raw[c] = Arrays.copyOf(raw[c], n * 2);
+              }
+            }
+            time[n] = packet.timestamp / 1000000.0;
+            raw[0][n] = packet.gyro_x;
+            raw[1][n] = packet.gyro_y;
+            raw[2][n] = packet.gyro_z;
+            raw[3][n] = packet.accel_x;
+            raw[4][n] = packet.accel_y;
+            raw[5][n] = packet.accel_z;
+            raw[6][n] = packet.mag_x;
+            raw[7][n] = packet.mag_y;
+            raw[8][n] = packet.mag_z;
+            ++n;
+          }
+        }
+        count = n;
+        this.time = time;
+        this.raw = raw;
+      }
+
+      // dt as the acquire thread computes it
+      dt = new double[count];
+      for (int i = 0; i < count; i++) {
+        dt[i] = i == 0 ? sample_period
+            : ADIS16448_PacketDecoder.interval(Math.round((time[i] - time[i - 1]) * 1000000.0), sample_period);
+      }
+
+      reference_yaw = new double[count];
+      replay(new ADIS16448_KalmanFilter(ADIS16448_IMU.Axis.kZ), new ADIS16448_IMU.Sample(), reference_yaw);
+    }
+
+    // Run a filter over the whole log, storing its yaw
+    void replay(FusionFilter filter, ADIS16448_IMU.Sample sample, double[] yaw) {
+      for (int i = 0; i < count; i++) {
+        sample.gyro_x = raw[0][i];
+        sample.gyro_y = raw[1][i];
+        sample.gyro_z = raw[2][i];
+        sample.accel_x = raw[3][i];
+        sample.accel_y = raw[4][i];
+        sample.accel_z = raw[5][i];
+        sample.mag_x = raw[6][i];
+        sample.mag_y = raw[7][i];
+        sample.mag_z = raw[8][i];
+        sample.dt = dt[i];
+        filter.update(sample);
+        yaw[i] = filter.getYaw();
+      }
+    }
+  }
+
+  /**
+   * One combination of settings.
+   */
+  static final class Setting {
+    final ADIS16448_IMU.AHRSAlgorithm algorithm;
+    final double a;
+    final double b;
+    // Scores averaged over the logs
+    double drift;
+    double noise;
+    double lag;
+    double score;
+
+    Setting(ADIS16448_IMU.AHRSAlgorithm algorithm, double a, double b) {
+      this.algorithm = algorithm;
+      this.a = a;
+      this.b = b;
+    }
+
+    @Override
+    public String toString() {
+      if (algorithm == ADIS16448_IMU.AHRSAlgorithm.kComplementary) {
+        return String.format("kComplementary tau_acc=%.3f tau_mag=%.3f", a, b);
+      }
+      return String.format("kMadgwick beta=%.3f", a);
+    }
+  }
+
+  /**
+   * Filters and buffers owned by one pool thread, reused for all of its
+   * runs.
+   */
+  private static final class Worker {
+    final ADIS16448_ComplementaryFilter complementary = new ADIS16448_ComplementaryFilter(ADIS16448_IMU.Axis.kZ);
+    final ADIS16448_MadgwickFilter madgwick = new ADIS16448_MadgwickFilter(ADIS16448_IMU.Axis.kZ);
+    final ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    double[] yaw = new double[0];
+  }
+
+  private static final AtomicInteger s_workers = new AtomicInteger();
+  private static final ThreadLocal<Worker> kWorkers = ThreadLocal.withInitial(() -> {
+    s_workers.incrementAndGet();
+    return new Worker();
+  });
+
+  private final List<Log> m_logs;
+  private final List<Setting> m_settings;
+  // Per run (setting * logs + log): drift, noise, lag
+  private final double[][] m_results;
+
+  ADIS16448_Sweep(List<Log> logs, List<Setting> settings) {
+    m_logs = logs;
+    m_settings = settings;
+    m_results = new double[settings.size() * logs.size()][3];
+  }
+
+  private final class Runs extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int m_from;
+    private final int m_to;
+
+    Runs(int from, int to) {
+      m_from = from;
+      m_to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (m_to - m_from <= kLeafRuns) {
+        Worker worker = kWorkers.get();
+        for (int run = m_from; run < m_to; run++) {
+          evaluate(worker, run);
+        }
+      } else {
+        int mid = (m_from + m_to) >>> 1;
+        invokeAll(new Runs(m_from, mid), new Runs(mid, m_to));
+      }
+    }
+  }
+
+  /**
+   * Replay every setting on every log and rank the settings, best first.
+   */
+  List<Setting> run(ForkJoinPool pool) {
+    pool.invoke(new Runs(0, m_results.length));
+
+    int logs = m_logs.size();
+    for (int s = 0; s < m_settings.size(); s++) {
+      Setting setting = m_settings.get(s);
+      for (int l = 0; l < logs; l++) {
+        double[] result = m_results[s * logs + l];
+        setting.drift += result[0] / logs;
+        setting.noise += result[1] / logs;
+        setting.lag += result[2] / logs;
+      }
+    }
+    double drift_median = median(m_settings, 0);
+    double noise_median = median(m_settings, 1);
+    double lag_median = median(m_settings, 2);
+    for (Setting setting : m_settings) {
+      setting.score = setting.drift / drift_median + setting.noise / noise_median
+          + setting.lag / lag_median;
+    }
+    List<Setting> ranked = new ArrayList<>(m_settings);
+    ranked.sort(Comparator.comparingDouble(setting -> setting.score));
+    return ranked;
+  }
+
+  private void evaluate(Worker worker, int run) {
+    Setting setting = m_settings.get(run / m_logs.size());
+    Log log = m_logs.get(run % m_logs.size());
+
+    FusionFilter filter;
+    // The complementary AHRS measures yaw the other way round (it
+    // compensates for the PCB-up mount)
+    double sign;
+    if (setting.algorithm == ADIS16448_IMU.AHRSAlgorithm.kComplementary) {
+      worker.complementary.reset();
+      worker.complementary.setTau(setting.a, setting.b);
+      filter = worker.complementary;
+      sign = -1.0;
+    } else {
+      worker.madgwick.reset();
+      worker.madgwick.setBeta(setting.a);
+      filter = worker.madgwick;
+      sign = 1.0;
+    }
+    if (worker.yaw.length < log.count) {
+      worker.yaw = new double[log.count];
+    }
+    double[] yaw = worker.yaw;
+    log.replay(filter, worker.sample, yaw);
+
+    int start = 0;
+    while (start < log.count && log.time[start] - log.time[0] < kSkipTime) {
+      ++start;
+    }
+    double[] result = m_results[run];
+    if (log.count - start < 2) {
+      return;
+    }
+
+    // Drift: least squares slope of the error; noise: RMS of its change
+    double st = 0, se = 0, stt = 0, ste = 0, sdd = 0;
+    double prev = 0;
+    for (int i = start; i < log.count; i++) {
+      double t = log.time[i] - log.time[start];
+      double e = wrap(sign * yaw[i] - log.reference_yaw[i]);
+      st += t;
+      se += e;
+      stt += t * t;
+      ste += t * e;
+      if (i > start) {
+        double d = wrap(e - prev);
+        sdd += d * d;
+      }
+      prev = e;
+    }
+    int n = log.count - start;
+    double denominator = n * stt - st * st;
+    result[0] = denominator > 0 ? Math.abs((n * ste - st * se) / denominator) * 60.0 : 0.0;
+    result[1] = Math.sqrt(sdd / (n - 1));
+
+    // Lag: shift of the run against the reference with the least error
+    int max_lag = (int) Math.ceil(kMaxLag / log.sample_period);
+    result[2] = Math.abs(bestLag(yaw, sign, log.reference_yaw, start, log.count, max_lag)) * log.sample_period;
+  }
+
+  /**
+   * Shift, in samples, of {@code sign * yaw} against the reference with the
+   * least squared error: positive if the run lags the reference, negative
+   * if it leads.  Every shift in +-{@code max_lag} is scored over the same
+   * samples, so none is favoured by a shorter overlap.
+   *
+   * @return the shift, or 0 if there are too few samples to search
+   */
+  static int bestLag(double[] yaw, double sign, double[] reference, int start, int count, int max_lag) {
+    int from = start + max_lag;
+    int to = count - max_lag;
+    if (to <= from) {
+      return 0;
+    }
+    double best = Double.MAX_VALUE;
+    int best_lag = 0;
+    for (int lag = -max_lag; lag <= max_lag; lag++) {
+      double sum = 0;
+      for (int i = from; i < to; i++) {
+        double e = wrap(sign * yaw[i] - reference[i - lag]);
+        sum += e * e;
+      }
+      // Ties go to the smallest shift
+      if (sum < best || (sum == best && Math.abs(lag) < Math.abs(best_lag))) {
+        best = sum;
+        best_lag = lag;
+      }
+    }
+    return best_lag;
+  }
+
+  /**
+   * Number of Worker instances created so far; each pool thread makes one
+   * and reuses it for all of its runs.
+   */
+  static int getWorkerCount() {
+    return s_workers.get();
+  }
+
+  private static double wrap(double degrees) {
+    return degrees - 360.0 * Math.floor((degrees + 180.0) / 360.0);
+  }
+
+  private static double median(List<Setting> settings, int metric) {
+    double[] values = new double[settings.size()];
+    for (int i = 0; i < values.length; i++) {
+      Setting setting = settings.get(i);
+      values[i] = metric == 0 ? setting.drift : metric == 1 ? setting.noise : setting.lag;
+    }
+    Arrays.sort(values);
+    double median = values[values.length / 2];
+    // Keep the score finite if most settings are perfect on a metric
+    return median > 0 ? median : 1e-9;
+  }
+
+  private static double[] parseList(String list) {
+    String[] parts = list.split(",");
+    double[] values = new double[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      values[i] = Double.parseDouble(parts[i]);
+    }
+    return values;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: ADIS16448_Sweep <directory> [--tau-acc 0.5,0.95]"
+          + " [--tau-mag 0.02,0.04] [--beta 0.05,0.1,0.4] [--top 20]");
+      System.exit(2);
+    }
+    double[] tau_acc = {ADIS16448_ComplementaryFilter.kDefaultTauAcc};
+    double[] tau_mag = {ADIS16448_ComplementaryFilter.kDefaultTauMag};
+    double[] beta = {ADIS16448_MadgwickFilter.kDefaultBeta};
+    int top = 20;
+    for (int i = 1; i < args.length; i++) {
+      switch (args[i]) {
+        case "--tau-acc":
+          tau_acc = parseList(args[++i]);
+          break;
+        case "--tau-mag":
+          tau_mag = parseList(args[++i]);
+          break;
+        case "--beta":
+          beta = parseList(args[++i]);
+          break;
+        case "--top":
+          top = Integer.parseInt(args[++i]);
+          break;
+        default:
+          System.err.println("unknown option " + args[i]);
+          System.exit(2);
+      }
+    }
+
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(args[0]), "*.bin")) {
+      dir.forEach(paths::add);
+    }
+    if (paths.isEmpty()) {
+      System.err.println("no *.bin recordings in " + args[0]);
+      System.exit(1);
+    }
+
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    long start = System.nanoTime();
+    Log[] loaded = new Log[paths.size()];
+    pool.submit(() -> Arrays.parallelSetAll(loaded, i -> {
+      try {
+        return new Log(paths.get(i));
+      } catch (IOException e) {
+        throw new java.io.UncheckedIOException(e);
+      }
+    })).get();
+    List<Log> logs = Arrays.asList(loaded);
+
+    List<Setting> settings = new ArrayList<>();
+    for (double a : tau_acc) {
+      for (double b : tau_mag) {
+        settings.add(new Setting(ADIS16448_IMU.AHRSAlgorithm.kComplementary, a, b));
+      }
+    }
+    for (double b : beta) {
+      settings.add(new Setting(ADIS16448_IMU.AHRSAlgorithm.kMadgwick, b, 0.0));
+    }
+
+    List<Setting> ranked = new ADIS16448_Sweep(logs, settings).run(pool);
+    double elapsed = (System.nanoTime() - start) / 1e9;
+
+    System.out.printf("%d logs x %d settings = %d runs in %.2f s on %d threads%n",
+        logs.size(), settings.size(), logs.size() * settings.size(), elapsed, pool.getParallelism());
+    System.out.printf("%-45s %12s %10s %8s %7s%n", "setting", "drift deg/m", "noise deg", "lag ms", "score");
+    for (int i = 0; i < Math.min(top, ranked.size()); i++) {
+      Setting setting = ranked.get(i);
+      System.out.printf("%-45s %12.4f %10.5f %8.1f %7.3f%n", setting, setting.drift,
+          setting.noise, setting.lag * 1000.0, setting.score);
+    }
+  }
+}
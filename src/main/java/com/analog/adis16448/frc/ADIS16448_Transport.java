@@ -0,0 +1,32 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of ADIS16448 burst packets: the SPI DMA engine on the robot, or a
+ * recording when replaying.
+ *
+ * <p>Packets are delivered in the DMA layout described in
+ * {@link ADIS16448_PacketDecoder}.
+ */
+interface ADIS16448_Transport {
+  /**
+   * Copy whole packets to the start of {@code buf} without waiting.
+   *
+   * @param max_packets Most packets to copy
+   * @return number of packets copied, or -1 if the source has ended
+   */
+  int read(ByteBuffer buf, int max_packets);
+
+  /**
+   * Number of packets lost before they could be read.
+   */
+  long getDroppedCount();
+}
@@ -0,0 +1,48 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * AHRS sensor fusion engine, run by the IMU calculate thread once per sample.
+ *
+ * <p>Implementations are only ever called from that one thread and must not
+ * allocate or block in {@link #update}.  Select a built-in engine with
+ * {@link ADIS16448_IMU.AHRSAlgorithm} or supply one through
+ * {@link ADIS16448_IMU.Builder#filter}.
+ */
+public interface FusionFilter {
+  /**
+   * Fuse one sample.  The sample's gyro rates still include the gyro
+   * offsets, and the filter may modify the sample in place.
+   */
+  void update(ADIS16448_IMU.Sample sample);
+
+  // Outputs in degrees
+  double getYaw();
+
+  double getPitch();
+
+  double getRoll();
+
+  // Orientation quaternion, identity for filters that don't track one
+  default double getQuaternionW() {
+    return 1.0;
+  }
+
+  default double getQuaternionX() {
+    return 0.0;
+  }
+
+  default double getQuaternionY() {
+    return 0.0;
+  }
+
+  default double getQuaternionZ() {
+    return 0.0;
+  }
+}
@@ -0,0 +1,25 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * Callback for every new IMU sample.
+ *
+ * <p>Called on the IMU calculate thread right after the sample is published,
+ * so implementations must be short and must not block: a slow listener
+ * delays every later sample.  Use
+ * {@link ADIS16448_IMU#getSampleListenerTime} to check.
+ */
+@FunctionalInterface
+public interface ImuSampleListener {
+  /**
+   * @param sample The new sample. Reused for the next one, so copy out any
+   *               values needed after returning.
+   */
+  void onSample(ImuSnapshot sample);
+}
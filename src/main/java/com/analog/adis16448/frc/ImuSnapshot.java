@@ -0,0 +1,144 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+/**
+ * A coherent set of ADIS16448 outputs, all taken from the same IMU sample.
+ *
+ * <p>Filled by {@link ADIS16448_IMU#getSnapshot(ImuSnapshot)}.  Reuse one
+ * instance per loop to avoid allocating.
+ */
+public final class ImuSnapshot {
+  // Value layout, shared with the IMU's published state
+  static final int kRateX = 0;
+  static final int kRateY = 1;
+  static final int kRateZ = 2;
+  static final int kAccelX = 3;
+  static final int kAccelY = 4;
+  static final int kAccelZ = 5;
+  static final int kMagX = 6;
+  static final int kMagY = 7;
+  static final int kMagZ = 8;
+  // Pressure and temperature are raw register counts, scaled when read
+  static final int kBaro = 9;
+  static final int kTemp = 10;
+  static final int kAngleX = 11;
+  static final int kAngleY = 12;
+  static final int kAngleZ = 13;
+  static final int kYaw = 14;
+  static final int kPitch = 15;
+  static final int kRoll = 16;
+  static final int kQuaternionW = 17;
+  static final int kQuaternionX = 18;
+  static final int kQuaternionY = 19;
+  static final int kQuaternionZ = 20;
+  static final int kTimestamp = 21;
+  static final int kValues = 22;
+
+  final double[] m_values = new double[kValues];
+
+  public ImuSnapshot() {
+    m_values[kQuaternionW] = 1.0;
+  }
+
+  // Gyro rates in degrees/second
+  public double getRateX() {
+    return m_values[kRateX];
+  }
+
+  public double getRateY() {
+    return m_values[kRateY];
+  }
+
+  public double getRateZ() {
+    return m_values[kRateZ];
+  }
+
+  // Accelerations in g
+  public double getAccelX() {
+    return m_values[kAccelX];
+  }
+
+  public double getAccelY() {
+    return m_values[kAccelY];
+  }
+
+  public double getAccelZ() {
+    return m_values[kAccelZ];
+  }
+
+  // Magnetic field in milligauss
+  public double getMagX() {
+    return m_values[kMagX];
+  }
+
+  public double getMagY() {
+    return m_values[kMagY];
+  }
+
+  public double getMagZ() {
+    return m_values[kMagZ];
+  }
+
+  // Pressure in millibar
+  public double getBarometricPressure() {
+    return ADIS16448_PacketDecoder.scaleBaro(m_values[kBaro]);
+  }
+
+  // Temperature in degrees C
+  public double getTemperature() {
+    return ADIS16448_PacketDecoder.scaleTemp(m_values[kTemp]);
+  }
+
+  // Integrated gyro angles in degrees
+  public double getAngleX() {
+    return m_values[kAngleX];
+  }
+
+  public double getAngleY() {
+    return m_values[kAngleY];
+  }
+
+  public double getAngleZ() {
+    return m_values[kAngleZ];
+  }
+
+  // AHRS outputs in degrees
+  public double getYaw() {
+    return m_values[kYaw];
+  }
+
+  public double getPitch() {
+    return m_values[kPitch];
+  }
+
+  public double getRoll() {
+    return m_values[kRoll];
+  }
+
+  public double getQuaternionW() {
+    return m_values[kQuaternionW];
+  }
+
+  public double getQuaternionX() {
+    return m_values[kQuaternionX];
+  }
+
+  public double getQuaternionY() {
+    return m_values[kQuaternionY];
+  }
+
+  public double getQuaternionZ() {
+    return m_values[kQuaternionZ];
+  }
+
+  // FPGA timestamp of the sample in seconds
+  public double getTimestamp() {
+    return m_values[kTimestamp];
+  }
+}
@@ -0,0 +1,81 @@
+package frc.robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the set() calls our motor outputs pass on to the Talons and the ones they skip, so we
+ * can see what suppressing redundant writes saves in JNI calls.
+ *
+ * These are not CAN frames: Phoenix sends each Talon's control frame on its own fixed period no
+ * matter how often set() is called, so the write rate says nothing about bus load. The expected
+ * bus load comes from the frame periods in StatusFrameManager, which uses the frame size and bit
+ * rate here.
+ */
+public class CanLoad{
+    //Bits in an extended CAN frame with 8 data bytes, including typical bit stuffing
+    public static final double _bitsPerFrame = 135;
+    public static final double _bitRate = 1000000;
+    private static final long _windowNanos = 1000000000;
+
+    private final AtomicLong _writes = new AtomicLong();
+    private final AtomicLong _suppressed = new AtomicLong();
+    private long _windowStart = 0;
+    private long _windowWrites = 0;
+    private long _windowSuppressed = 0;
+    private volatile double _writesPerSecond = 0;
+    private volatile double _suppressedPerSecond = 0;
+
+    public CanLoad(){
+    }
+
+    public void recordWrite(){
+        _writes.incrementAndGet();
+    }
+
+    public void recordSuppressed(){
+        _suppressed.incrementAndGet();
+    }
+
+    /**
+     * Update the per second rates. Call once per loop.
+     */
+    public void update(){
+        var now = System.nanoTime();
+        if (_windowStart == 0){
+            _windowStart = now;
+            _windowWrites = _writes.get();
+            _windowSuppressed = _suppressed.get();
+        } else if (now - _windowStart >= _windowNanos){
+            var writes = _writes.get();
+            var suppressed = _suppressed.get();
+            var seconds = (now - _windowStart) / 1e9;
+            _writesPerSecond = (writes - _windowWrites) / seconds;
+            _suppressedPerSecond = (suppressed - _windowSuppressed) / seconds;
+            _windowStart = now;
+            _windowWrites = writes;
+            _windowSuppressed = suppressed;
+        }
+    }
+
+    public long getWriteCount(){
+        return _writes.get();
+    }
+
+    public long getSuppressedCount(){
+        return _suppressed.get();
+    }
+
+    /**
+     * set() calls per second that reached a Talon.
+     */
+    public double getWritesPerSecond(){
+        return _writesPerSecond;
+    }
+
+    /**
+     * Writes per second that were skipped because nothing had changed.
+     */
+    public double getSuppressedPerSecond(){
+        return _suppressedPerSecond;
+    }
+}
@@ -30,19 +30,41 @@ public class Drivetrain{
      //Id's can be viewed and set from the Pheonix Tuner software.
     private final WPI_TalonSRX _leftFront = new WPI_TalonSRX(3);
     private final WPI_TalonSRX _leftRear = new WPI_TalonSRX(4);
-    private final SpeedControllerGroup _left = new SpeedControllerGroup(_leftFront, _leftRear);
+    private final SpeedControllerGroup _left;
     private final WPI_TalonSRX _rightFront = new WPI_TalonSRX(1);
     private final WPI_TalonSRX _rightRear = new WPI_TalonSRX(2);
-    private final SpeedControllerGroup _right = new SpeedControllerGroup(_rightFront, _rightRear);
+    private final SpeedControllerGroup _right;
 
     //The differential drive is a class from WPI and is exactly that. A way to drive a robot with a
-    //motor on each side. It takes in the two speed controller groups created above.
-    private final DifferentialDrive _drive = new DifferentialDrive(_left, _right);
+    //motor on each side. It takes in the two speed controller groups created in the constructor.
+    private final DifferentialDrive _drive;
+
+    //Drive outputs smaller than this change are not sent again
+    private final double _outputTolerance = 0.002;
+
+    //Motor signals, read through the signal cache once per loop
+    private final SignalCache.TalonSignals _leftFrontSignals;
+    private final SignalCache.TalonSignals _leftRearSignals;
+    private final SignalCache.TalonSignals _rightFrontSignals;
+    private final SignalCache.TalonSignals _rightRearSignals;
 
     /**
-     * This is the contructor to create a drivetrain object.
+     * This is the contructor to create a drivetrain object. The Talons are driven through
+     * MotorOutputs, which skip writes that wouldn't change anything.
      */
-    public Drivetrain(){
+    public Drivetrain(SignalCache signals, CanLoad canLoad){
+        _left = new SpeedControllerGroup(new MotorOutput(_leftFront, canLoad, _outputTolerance),
+            new MotorOutput(_leftRear, canLoad, _outputTolerance));
+        _right = new SpeedControllerGroup(new MotorOutput(_rightFront, canLoad, _outputTolerance),
+            new MotorOutput(_rightRear, canLoad, _outputTolerance));
+        _drive = new DifferentialDrive(_left, _right);
+
+        //Current for the dashboard, and the bus voltage from one of them
+        _leftFrontSignals = signals.add(_leftFront, SignalCache.Signal.OutputCurrent,
+            SignalCache.Signal.BusVoltage);
+        _leftRearSignals = signals.add(_leftRear, SignalCache.Signal.OutputCurrent);
+        _rightFrontSignals = signals.add(_rightFront, SignalCache.Signal.OutputCurrent);
+        _rightRearSignals = signals.add(_rightRear, SignalCache.Signal.OutputCurrent);
     }
 
     public void initialize(){
@@ -70,4 +92,27 @@ public class Drivetrain{
     public void arcadeDrive(double speed, double rotation){
         _drive.arcadeDrive(speed, rotation*0.60);
     }
+
+    /**
+     * The drive Talons run at the default frame periods in every mode, but they are counted in
+     * the bus model.
+     */
+    public void registerStatusFrames(StatusFrameManager statusFrames){
+        statusFrames.add(_leftFront);
+        statusFrames.add(_leftRear);
+        statusFrames.add(_rightFront);
+        statusFrames.add(_rightRear);
+    }
+
+    /**
+     * Dashboard values, published from the telemetry thread. Drive current and bus voltage show
+     * when the drivetrain is pulling the battery down.
+     */
+    public void registerTelemetry(Telemetry telemetry){
+        telemetry.addNumber("Drive left current",
+            () -> _leftFrontSignals.getOutputCurrent() + _leftRearSignals.getOutputCurrent(), 10, 0.5);
+        telemetry.addNumber("Drive right current",
+            () -> _rightFrontSignals.getOutputCurrent() + _rightRearSignals.getOutputCurrent(), 10, 0.5);
+        telemetry.addNumber("Bus voltage", _leftFrontSignals::getBusVoltage, 10, 0.05);
+    }
 }
\ No newline at end of file
@@ -11,8 +11,6 @@ import com.ctre.phoenix.motorcontrol.NeutralMode;
 import com.ctre.phoenix.motorcontrol.StatusFrameEnhanced;
 import com.ctre.phoenix.motorcontrol.can.WPI_TalonSRX;
 
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
-
 /**
  * This class is just to separate the Drivetrain (motors that move the wheels) code from the
  * rest of the robot code. It is good practice to break code into small chunks that do one
@@ -37,11 +35,22 @@ public class Lift{
      private final Gains _liftGains = new Gains(0.2,0,0,0.2,0,1.0);
      private final double _hatchPosition = 0;
      private final double _topPosition = 5000;
+     private final SignalCache.TalonSignals _liftSignals;
+     //Skips writes that wouldn't change anything
+     private final MotorOutput _liftOutput;
+     private final double _percentTolerance = 0.002;
+     private final double _targetTolerance = 0.5; //encoder units
+     private boolean _active = false;
      
      /**
-     * This is the contructor to create a drivetrain object.
+     * This is the contructor to create a lift object. The motor signals are read through the
+     * signal cache once per loop.
      */
-    public Lift(){}
+    public Lift(SignalCache signals, CanLoad canLoad){
+        _liftSignals = signals.add(_liftMotor, SignalCache.Signal.Position, SignalCache.Signal.OutputCurrent);
+        _liftOutput = new MotorOutput(_liftMotor, canLoad, _percentTolerance)
+            .setTolerance(ControlMode.MotionMagic, _targetTolerance);
+    }
 
     public void initialize(){
         _liftMotor.configFactoryDefault();
@@ -60,10 +69,6 @@ public class Lift{
         /* Set Neutral Mode */
 		_liftMotor.setNeutralMode(NeutralMode.Brake);
     
-        /* Set relevant frame periods to be at least as fast as periodic rate */
-		_liftMotor.setStatusFramePeriod(StatusFrameEnhanced.Status_13_Base_PIDF0, 10, _timeoutMs);
-        _liftMotor.setStatusFramePeriod(StatusFrameEnhanced.Status_10_MotionMagic, 10, _timeoutMs);
-    
         /* Set the peak and nominal outputs */
 		_liftMotor.configNominalOutputForward(0, _timeoutMs);
 		_liftMotor.configNominalOutputReverse(0, _timeoutMs);
@@ -87,20 +92,42 @@ public class Lift{
     }
 
     public void liftManualControl(double output){
-        _liftMotor.set(ControlMode.PercentOutput, output);
+        _active = output != 0;
+        _liftOutput.set(ControlMode.PercentOutput, output);
     }
 
     public void goToHatchPosition(){
-        _liftMotor.set(ControlMode.MotionMagic, _hatchPosition);
+        _active = true;
+        _liftOutput.set(ControlMode.MotionMagic, _hatchPosition);
     }
 
     public void goToTopPosition(){
-        _liftMotor.set(ControlMode.MotionMagic, _topPosition);
+        _active = true;
+        _liftOutput.set(ControlMode.MotionMagic, _topPosition);
+    }
+
+    /**
+     * The motion magic frames only need to be as fast as the periodic rate while scoring.
+     */
+    public void registerStatusFrames(StatusFrameManager statusFrames){
+        var scoring = StatusFrameManager.Mode.Scoring;
+        statusFrames.setPeriod(_liftMotor, StatusFrameEnhanced.Status_13_Base_PIDF0, 10, scoring);
+        statusFrames.setPeriod(_liftMotor, StatusFrameEnhanced.Status_10_MotionMagic, 10, scoring);
     }
 
-    public void smartDashboardDisplay(){
-        var liftPosition = _liftMotor.getSensorCollection().getQuadraturePosition();
-        SmartDashboard.putNumber("Lift encoder", liftPosition);
+    /**
+     * True if the last command moves the lift.
+     */
+    public boolean isActive(){
+        return _active;
+    }
+
+    /**
+     * Dashboard values, published from the telemetry thread.
+     */
+    public void registerTelemetry(Telemetry telemetry){
+        telemetry.addNumber("Lift encoder", _liftSignals::getPosition, 10, 0);
+        telemetry.addNumber("Lift current", _liftSignals::getOutputCurrent, 10, 0.1);
     }
 
     public void zeroSensor(){
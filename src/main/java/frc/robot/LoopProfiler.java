@@ -0,0 +1,199 @@
+package frc.robot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.analog.adis16448.frc.ADIS16448_Metrics;
+
+import edu.wpi.first.wpilibj.DriverStation;
+
+/**
+ * Times the sections of the robot loop (each subsystem's periodic and dashboard methods) so we
+ * can see which one is slow, instead of only getting the generic loop overrun message.
+ *
+ * Wrap a method once with wrap() and call the returned Runnable every loop. Each call records
+ * its duration in nanoseconds into an ADIS16448_Metrics.Histogram (the IMU's lock-free histogram,
+ * four buckets per power of two). Recording uses only atomic operations and never allocates, so it
+ * costs well under a microsecond per call.
+ *
+ * Call beginCycle() at the top and endCycle() once at the end of every loop. If the time between
+ * them is longer than the loop period, the slowest section (or the untimed code in between, if
+ * that was slower) is blamed for the overrun. Without beginCycle() the loop is timed from the
+ * start of the first timed section. registerTelemetry() publishes p50/p99/max of each section to
+ * the dashboard from the telemetry thread.
+ */
+public class LoopProfiler{
+    private static final double _overrunReportInterval = 1.0;
+
+    private final long _budgetNanos;
+    private final List<Section> _sections = new ArrayList<>();
+    private Section[] _sectionArray = new Section[0];
+    private long _cycleStart = 0;
+    //Written by the loop thread only, read by the telemetry thread
+    private volatile long _cycles = 0;
+    private volatile long _overruns = 0;
+    private volatile String _lastOverrun = "";
+    private double _lastOverrunReport = 0;
+
+    /**
+     * @param periodSeconds The loop period, e.g. 0.02 for TimedRobot's default 20ms
+     */
+    public LoopProfiler(double periodSeconds){
+        _budgetNanos = (long) (periodSeconds * 1e9);
+    }
+
+    /**
+     * Register a section and return a Runnable that runs and times it. Create the wrappers once
+     * (e.g. as fields), not every loop.
+     */
+    public Runnable wrap(String name, Runnable body){
+        var section = new Section(name);
+        _sections.add(section);
+        _sectionArray = _sections.toArray(new Section[0]);
+        return () -> {
+            var start = System.nanoTime();
+            if (_cycleStart == 0){
+                _cycleStart = start;
+            }
+            try {
+                body.run();
+            } finally {
+                section.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * Mark the start of one loop, so code before the first timed section is counted too.
+     */
+    public void beginCycle(){
+        _cycleStart = System.nanoTime();
+    }
+
+    /**
+     * Mark the end of one loop and check it against the loop period.
+     */
+    public void endCycle(){
+        var now = System.nanoTime();
+        var sections = _sectionArray;
+        if (_cycleStart != 0 && now - _cycleStart > _budgetNanos){
+            //Blame the slowest section, or the code we don't time if that took longer
+            Section culprit = null;
+            long slowest = now - _cycleStart;
+            for (var section : sections){
+                slowest -= section._cycleNanos;
+            }
+            for (var section : sections){
+                if (section._cycleNanos > slowest){
+                    slowest = section._cycleNanos;
+                    culprit = section;
+                }
+            }
+            var name = "(untimed)";
+            if (culprit != null){
+                culprit._overruns.incrementAndGet();
+                name = culprit._name;
+            }
+            _overruns++;
+            _lastOverrun = name;
+
+            var seconds = now / 1e9;
+            if (seconds - _lastOverrunReport >= _overrunReportInterval){
+                _lastOverrunReport = seconds;
+                DriverStation.reportWarning("Loop overrun of " + (now - _cycleStart) / 1000000.0
+                    + "ms, slowest section: " + name, false);
+            }
+        }
+        for (var section : sections){
+            section._cycleNanos = 0;
+        }
+        _cycleStart = 0;
+        _cycles++;
+    }
+
+    /**
+     * Publish p50/p99/max in milliseconds and the overrun counts of the sections wrapped so far.
+     * The histograms are read from the telemetry thread without stopping the loop.
+     */
+    public void registerTelemetry(Telemetry telemetry, double rateHz){
+        for (var section : _sectionArray){
+            var prefix = "Loop " + section._name;
+            telemetry.addNumber(prefix + " p50 ms", () -> section.getPercentile(0.5) / 1e6, rateHz, 0);
+            telemetry.addNumber(prefix + " p99 ms", () -> section.getPercentile(0.99) / 1e6, rateHz, 0);
+            telemetry.addNumber(prefix + " max ms", () -> section.getMax() / 1e6, rateHz, 0);
+            telemetry.addNumber(prefix + " overruns", () -> section.getOverrunCount(), rateHz, 0);
+        }
+        telemetry.addNumber("Loop overruns", () -> _overruns, rateHz, 0);
+        telemetry.addString("Loop last overrun", () -> _lastOverrun, rateHz);
+    }
+
+    public long getCycleCount(){
+        return _cycles;
+    }
+
+    public long getOverrunCount(){
+        return _overruns;
+    }
+
+    /**
+     * The section blamed for the most recent overrun, or "" if there wasn't one.
+     */
+    public String getLastOverrun(){
+        return _lastOverrun;
+    }
+
+    public List<Section> getSections(){
+        return List.of(_sectionArray);
+    }
+
+    /**
+     * Duration histogram of one wrapped method.
+     */
+    public static class Section{
+        private final String _name;
+        private final ADIS16448_Metrics.Histogram _durations = new ADIS16448_Metrics.Histogram();
+        private final AtomicLong _overruns = new AtomicLong();
+        //Time spent in this section in the current loop; only used by the loop thread
+        private long _cycleNanos = 0;
+
+        private Section(String name){
+            _name = name;
+        }
+
+        private void record(long nanos){
+            _cycleNanos += nanos;
+            _durations.record(nanos);
+        }
+
+        public String getName(){
+            return _name;
+        }
+
+        public long getCount(){
+            return _durations.getCount();
+        }
+
+        public long getMax(){
+            return _durations.getMax();
+        }
+
+        /**
+         * All recorded durations in nanoseconds.
+         */
+        public ADIS16448_Metrics.Histogram getDurations(){
+            return _durations;
+        }
+
+        public long getOverrunCount(){
+            return _overruns.get();
+        }
+
+        /**
+         * Upper edge in nanoseconds of the bucket holding the given fraction of the calls.
+         */
+        public long getPercentile(double fraction){
+            return _durations.getPercentile(fraction);
+        }
+    }
+}
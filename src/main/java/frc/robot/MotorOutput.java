@@ -0,0 +1,102 @@
+package frc.robot;
+
+import com.ctre.phoenix.motorcontrol.ControlMode;
+import com.ctre.phoenix.motorcontrol.can.WPI_TalonSRX;
+
+import edu.wpi.first.wpilibj.SpeedController;
+
+/**
+ * Sits in front of a WPI_TalonSRX and only passes set() on when the control mode changes or the
+ * value moves by more than the tolerance for that mode. The last output is still re-sent every
+ * half motor safety timeout, so a Talon with motor safety enabled never times out.
+ *
+ * Each control mode has its own tolerance, since the values are in different units (fraction
+ * of output for PercentOutput, sensor units for MotionMagic). Modes without one only skip
+ * writes of exactly the same value.
+ *
+ * It is a SpeedController, so it can go into a SpeedControllerGroup (and so DifferentialDrive)
+ * in place of the Talon.
+ */
+public class MotorOutput implements SpeedController{
+    private final WPI_TalonSRX _talon;
+    private final CanLoad _canLoad;
+    private final double[] _tolerances = new double[ControlMode.values().length];
+    private final long _refreshNanos;
+    private ControlMode _lastMode = null;
+    private double _lastValue = 0;
+    private long _lastSent = 0;
+
+    /**
+     * @param percentTolerance Largest change in PercentOutput that is not sent
+     */
+    public MotorOutput(WPI_TalonSRX talon, CanLoad canLoad, double percentTolerance){
+        _talon = talon;
+        _canLoad = canLoad;
+        _tolerances[ControlMode.PercentOutput.ordinal()] = percentTolerance;
+        _refreshNanos = (long) (talon.getExpiration() / 2 * 1e9);
+    }
+
+    /**
+     * Set the largest change in value that is not sent for one control mode, in that mode's units.
+     */
+    public MotorOutput setTolerance(ControlMode mode, double tolerance){
+        _tolerances[mode.ordinal()] = tolerance;
+        return this;
+    }
+
+    public void set(ControlMode mode, double value){
+        var now = System.nanoTime();
+        if (mode == _lastMode && Math.abs(value - _lastValue) <= _tolerances[mode.ordinal()]
+            && now - _lastSent < _refreshNanos){
+            _canLoad.recordSuppressed();
+            return;
+        }
+        _talon.set(mode, value);
+        _canLoad.recordWrite();
+        _lastMode = mode;
+        _lastValue = value;
+        _lastSent = now;
+    }
+
+    @Override
+    public void set(double speed){
+        set(ControlMode.PercentOutput, speed);
+    }
+
+    /**
+     * The last value sent to the Talon.
+     */
+    @Override
+    public double get(){
+        return _lastValue;
+    }
+
+    @Override
+    public void setInverted(boolean isInverted){
+        _talon.setInverted(isInverted);
+    }
+
+    @Override
+    public boolean getInverted(){
+        return _talon.getInverted();
+    }
+
+    @Override
+    public void disable(){
+        _talon.disable();
+        _canLoad.recordWrite();
+        _lastMode = null;
+    }
+
+    @Override
+    public void stopMotor(){
+        _talon.stopMotor();
+        _canLoad.recordWrite();
+        _lastMode = null;
+    }
+
+    @Override
+    public void pidWrite(double output){
+        set(output);
+    }
+}
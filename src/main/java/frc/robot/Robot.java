@@ -18,7 +18,6 @@ import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.wpilibj.TimedRobot;
 import edu.wpi.first.wpilibj.XboxController;
 import edu.wpi.first.wpilibj.GenericHID.Hand;
-import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 
 /**
  * The VM is configured to automatically run this class, and to call the
@@ -35,15 +34,44 @@ public class Robot extends TimedRobot {
   private final XboxController _driverControl = new XboxController(0);
   private final XboxController _operatorControl = new XboxController(1);
   private final ADIS16448_IMU _imu = new ADIS16448_IMU();
-  private final Drivetrain _drivetrain = new Drivetrain();
-  private final Stilts _stilts = new Stilts();
-  private final Lift _lift = new Lift();
+  //Talon signals are read once per loop here and shared by the subsystems and the dashboard
+  private final SignalCache _signals = new SignalCache();
+  //Motor writes go through MotorOutputs, which count what they send and skip here
+  private final CanLoad _canLoad = new CanLoad();
+  private final Drivetrain _drivetrain = new Drivetrain(_signals, _canLoad);
+  private final Stilts _stilts = new Stilts(_signals, _canLoad);
+  private final Lift _lift = new Lift(_signals, _canLoad);
   private final HatchGrabber _hatchGrabber = new HatchGrabber(_operatorControl);
+  //Status frames are only fast for the mechanism that is in use
+  private final StatusFrameManager _statusFrames = new StatusFrameManager(_signals);
+  private final double _maxBusUtilization = 0.6;
+  //Keep correcting gyro drift (warm-up) whenever the robot is still. Off until it has been
+  //checked on this robot, since a slow turn it mistakes for standing still moves the heading
+  private final boolean _gyroBiasTracking = false;
   private boolean _driveCameraSelected = true;
   private UsbCamera _driveCamera;
   private UsbCamera _targetCamera;
   private VideoSink _cameraServer;
-  private boolean _isSlowSpeedMode = false;
+  //volatile because the telemetry thread reads it
+  private volatile boolean _isSlowSpeedMode = false;
+
+  /**
+   * Loop timing. Each subsystem's periodic method and the CAN reads and writes are wrapped once
+   * here so every call is timed, and the profiler can tell which one made a loop overrun.
+   */
+  private final LoopProfiler _profiler = new LoopProfiler(kDefaultPeriod);
+  private final Runnable _timedSignalsUpdate = _profiler.wrap("CAN signals", _signals::update);
+  private final Runnable _timedStatusFramesUpdate = _profiler.wrap("Status frames", this::updateStatusFrames);
+  private final Runnable _timedCanLoadUpdate = _profiler.wrap("CAN load", _canLoad::update);
+  private final Runnable _timedDriverPeriodic = _profiler.wrap("Driver", this::driverPeriodic);
+  private final Runnable _timedOperatorPeriodic = _profiler.wrap("Operator", this::operatorPeriodic);
+  private final Runnable _timedHatchGrabberPeriodic = _profiler.wrap("HatchGrabber", _hatchGrabber::periodic);
+
+  /**
+   * Dashboard values are published from a background thread, so the loop does no
+   * NetworkTables work.
+   */
+  private final Telemetry _telemetry = new Telemetry();
   
   /**
    * This function is run when the robot is first started up and should be
@@ -51,7 +79,10 @@ public class Robot extends TimedRobot {
    */
   @Override
   public void robotInit() {
-    _imu.calibrate();
+    //Gyro offsets are measured in the background (merged with the one the IMU
+    //started itself) so the rest of the robot initializes in the meantime
+    _imu.calibrateAsync();
+    _imu.setBiasTracking(_gyroBiasTracking);
     _drivetrain.initialize();
     _stilts.initialize();
     _lift.initialize();
@@ -62,6 +93,27 @@ public class Robot extends TimedRobot {
     _targetCamera.setConnectionStrategy(ConnectionStrategy.kKeepOpen);
     _cameraServer.setSource(_driveCamera);
     _hatchGrabber.initialize();
+
+    _drivetrain.registerStatusFrames(_statusFrames);
+    _stilts.registerStatusFrames(_statusFrames);
+    _lift.registerStatusFrames(_statusFrames);
+    _statusFrames.checkBudget(_maxBusUtilization);
+    _statusFrames.setMode(StatusFrameManager.Mode.Disabled);
+
+    _telemetry.addBoolean("Slow speed mode", () -> _isSlowSpeedMode, 10);
+    _telemetry.addNumber("Heading", () -> _imu.getAngleZ(), 20, 0.05);
+    _telemetry.addBoolean("Gyro calibrated", () -> _imu.isCalibrated(), 2);
+    _drivetrain.registerTelemetry(_telemetry);
+    _stilts.registerTelemetry(_telemetry);
+    _lift.registerTelemetry(_telemetry);
+    _telemetry.addNumber("CAN JNI calls per loop", () -> _signals.getJniCallsPerCycle(), 1, 0);
+    _telemetry.addNumber("Talon set() writes/s", _canLoad::getWritesPerSecond, 1, 1);
+    _telemetry.addNumber("Talon set() writes skipped/s", _canLoad::getSuppressedPerSecond, 1, 1);
+    _telemetry.addNumber("CAN expected utilisation %", () -> _statusFrames.getExpectedBusUtilization() * 100, 1, 0.1);
+    _telemetry.addString("Status frame mode", () -> String.valueOf(_statusFrames.getMode()), 1);
+    _telemetry.addNumber("Talon resets", () -> _statusFrames.getResetCount(), 1, 0);
+    _profiler.registerTelemetry(_telemetry, 1);
+    _telemetry.start();
   }
 
   /**
@@ -74,10 +126,9 @@ public class Robot extends TimedRobot {
    */
   @Override
   public void robotPeriodic() {
-    SmartDashboard.putBoolean("Slow speed mode", _isSlowSpeedMode);
-    SmartDashboard.putNumber("Heading", _imu.getAngleZ());
-    _stilts.smartDashboardDisplay();
-    _lift.smartDashboardDisplay();
+    //Dashboard values are published by _telemetry
+    _timedCanLoadUpdate.run();
+    _profiler.endCycle();
   }
 
   /**
@@ -104,6 +155,21 @@ public class Robot extends TimedRobot {
     teleopPeriodic(); //not using autonomous mode, just teleop
   }
 
+  @Override
+  public void disabledInit() {
+    _statusFrames.setMode(StatusFrameManager.Mode.Disabled);
+  }
+
+  /**
+   * This function is called periodically while disabled. The signals are still read so the
+   * dashboard stays current.
+   */
+  @Override
+  public void disabledPeriodic() {
+    _profiler.beginCycle();
+    _timedSignalsUpdate.run();
+  }
+
   @Override
   public void teleopInit() {
     _hatchGrabber.initializeGrip();
@@ -117,11 +183,25 @@ public class Robot extends TimedRobot {
    */
   @Override
   public void teleopPeriodic() {
-    driverPeriodic();
-    operatorPeriodic();
+    _profiler.beginCycle();
+    _timedSignalsUpdate.run();
+    _timedDriverPeriodic.run();
+    _timedOperatorPeriodic.run();
+    _timedHatchGrabberPeriodic.run();
+    _timedStatusFramesUpdate.run();
     //testPeriodic();
   }
 
+  private void updateStatusFrames(){
+    if (_stilts.isActive()){
+      _statusFrames.update(StatusFrameManager.Mode.Climb);
+    } else if (_lift.isActive()){
+      _statusFrames.update(StatusFrameManager.Mode.Scoring);
+    } else {
+      _statusFrames.update(StatusFrameManager.Mode.Drive);
+    }
+  }
+
   private void driverPeriodic(){
     var speed = _isSlowSpeedMode ? -_driverControl.getY(Hand.kLeft) * 0.6 : -_driverControl.getY(Hand.kLeft);
     var rotation = _isSlowSpeedMode ? _driverControl.getX(Hand.kRight) * 0.8 : _driverControl.getX(Hand.kRight);
@@ -171,8 +251,6 @@ public class Robot extends TimedRobot {
     if (_operatorControl.getStickButtonPressed(Hand.kLeft)){
       _lift.zeroSensor();
     }
-
-    _hatchGrabber.periodic();
   }
 
   private double deadband(double input){
@@ -211,12 +289,15 @@ public class Robot extends TimedRobot {
    */
   @Override
   public void testPeriodic() {
+    _profiler.beginCycle();
+    _timedSignalsUpdate.run();
     _drivetrain.arcadeDrive(-_driverControl.getY(Hand.kLeft), _driverControl.getX(Hand.kRight));
 
     var liftOutput = deadband(-_operatorControl.getY(Hand.kLeft));
     _lift.liftManualControl(liftOutput);
 
-    _hatchGrabber.periodic();
+    _timedHatchGrabberPeriodic.run();
+    _timedStatusFramesUpdate.run();
 
     if(_driverControl.getStartButtonPressed()){
       _driveCameraSelected = !_driveCameraSelected;
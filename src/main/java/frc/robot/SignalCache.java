@@ -0,0 +1,215 @@
+package frc.robot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ctre.phoenix.motorcontrol.can.TalonSRX;
+
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Reads the signals of every registered Talon once per loop, so the control code and the
+ * dashboard don't each go through JNI for the same values.
+ *
+ * Call update() once at the start of every loop. Everything else reads the TalonSignals
+ * snapshots. The snapshot fields are volatile, so the telemetry thread can read them too.
+ *
+ * Each consumer registers the signals it reads, and update() only reads those: a Talon whose
+ * position nobody uses costs no position call. Reading a signal nobody registered throws.
+ */
+public class SignalCache{
+    public enum Signal{
+        Position,
+        Velocity,
+        ClosedLoopError,
+        OutputCurrent,
+        BusVoltage
+    }
+
+    //Default period of the Talon's Status_2_Feedback0 frame, which carries position, velocity
+    //and current
+    private static final double _feedbackFramePeriod = 0.020;
+
+    private final List<TalonSignals> _list = new ArrayList<>();
+    private TalonSignals[] _signals = new TalonSignals[0];
+    //Only written by the loop thread
+    private volatile long _jniCalls = 0;
+    private volatile int _lastCycleJniCalls = 0;
+
+    public SignalCache(){
+    }
+
+    /**
+     * Register the signals a consumer reads from a Talon. Do this once, when the subsystem is
+     * created. Registering a Talon again adds to its signals and returns the same snapshot.
+     */
+    public TalonSignals add(TalonSRX talon, Signal... signals){
+        TalonSignals entry = null;
+        for (var existing : _list){
+            if (existing._talon == talon){
+                entry = existing;
+            }
+        }
+        if (entry == null){
+            entry = new TalonSignals(talon);
+            _list.add(entry);
+            _signals = _list.toArray(new TalonSignals[0]);
+        }
+        var mask = entry._mask;
+        for (var signal : signals){
+            mask |= bit(signal);
+        }
+        entry._mask = mask;
+        return entry;
+    }
+
+    private static int bit(Signal signal){
+        return 1 << signal.ordinal();
+    }
+
+    /**
+     * Read every registered Talon.
+     */
+    public void update(){
+        var now = Timer.getFPGATimestamp();
+        var calls = 1;
+        for (var signals : _signals){
+            calls += signals.read(now);
+        }
+        _lastCycleJniCalls = calls;
+        _jniCalls = _jniCalls + calls;
+    }
+
+    /**
+     * Count JNI calls the loop thread made outside update() (e.g. the status frame manager's
+     * reset checks), so the totals cover all of the loop's Talon reads. Call after update().
+     */
+    public void countJniCalls(int calls){
+        _lastCycleJniCalls = _lastCycleJniCalls + calls;
+        _jniCalls = _jniCalls + calls;
+    }
+
+    /**
+     * JNI calls made by the last update() and counted with countJniCalls() since.
+     */
+    public int getJniCallsPerCycle(){
+        return _lastCycleJniCalls;
+    }
+
+    /**
+     * JNI calls made by all updates so far.
+     */
+    public long getJniCallCount(){
+        return _jniCalls;
+    }
+
+    /**
+     * Snapshot of one Talon's signals from the last update().
+     */
+    public static class TalonSignals{
+        private final TalonSRX _talon;
+        //Bits of the registered signals
+        private volatile int _mask = 0;
+        private volatile double _position = 0;
+        private volatile double _velocity = 0;
+        private volatile double _closedLoopError = 0;
+        private volatile double _outputCurrent = 0;
+        private volatile double _busVoltage = 0;
+        private volatile double _timestamp = 0;
+
+        private TalonSignals(TalonSRX talon){
+            _talon = talon;
+        }
+
+        //Reads the registered signals; returns the number of JNI calls made
+        private int read(double now){
+            var mask = _mask;
+            var calls = 0;
+            if ((mask & bit(Signal.Position)) != 0){
+                _position = _talon.getSelectedSensorPosition(0);
+                calls++;
+            }
+            if ((mask & bit(Signal.Velocity)) != 0){
+                _velocity = _talon.getSelectedSensorVelocity(0);
+                calls++;
+            }
+            if ((mask & bit(Signal.ClosedLoopError)) != 0){
+                _closedLoopError = _talon.getClosedLoopError(0);
+                calls++;
+            }
+            if ((mask & bit(Signal.OutputCurrent)) != 0){
+                _outputCurrent = _talon.getOutputCurrent();
+                calls++;
+            }
+            if ((mask & bit(Signal.BusVoltage)) != 0){
+                _busVoltage = _talon.getBusVoltage();
+                calls++;
+            }
+            _timestamp = now;
+            return calls;
+        }
+
+        private void check(Signal signal){
+            if ((_mask & bit(signal)) == 0){
+                throw new IllegalStateException(signal + " was not registered for this Talon");
+            }
+        }
+
+        /**
+         * Whether update() reads the given signal.
+         */
+        public boolean isRegistered(Signal signal){
+            return (_mask & bit(signal)) != 0;
+        }
+
+        /**
+         * Selected sensor position in native units (with the sensor phase applied).
+         */
+        public double getPosition(){
+            check(Signal.Position);
+            return _position;
+        }
+
+        /**
+         * Selected sensor velocity in native units per 100ms.
+         */
+        public double getVelocity(){
+            check(Signal.Velocity);
+            return _velocity;
+        }
+
+        public double getClosedLoopError(){
+            check(Signal.ClosedLoopError);
+            return _closedLoopError;
+        }
+
+        /**
+         * Output current in amps.
+         */
+        public double getOutputCurrent(){
+            check(Signal.OutputCurrent);
+            return _outputCurrent;
+        }
+
+        public double getBusVoltage(){
+            check(Signal.BusVoltage);
+            return _busVoltage;
+        }
+
+        /**
+         * FPGA time in seconds when the snapshot was read.
+         */
+        public double getTimestamp(){
+            return _timestamp;
+        }
+
+        /**
+         * Upper bound on the age of position, velocity and current in seconds: time since the
+         * snapshot was read plus one period of the status frame they arrive in. Bus voltage
+         * comes in a slower frame.
+         */
+        public double getAge(){
+            return Timer.getFPGATimestamp() - _timestamp + _feedbackFramePeriod;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package frc.robot;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+import com.ctre.phoenix.motorcontrol.StatusFrameEnhanced;
+import com.ctre.phoenix.motorcontrol.can.TalonSRX;
+
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Changes the Talons' status frame periods with what the robot is doing, so frames that are only
+ * needed for one mechanism (e.g. the stilts' motion magic frames during the climb) aren't sent
+ * at a high rate for the whole match.
+ *
+ * Subsystems register their Talons and, for the frames they care about, the period they want in
+ * each mode. Frames without a period for a mode run at the Phoenix default. setMode() only sends
+ * the periods that differ from what was last sent. A Talon that resets (e.g. after a brownout)
+ * goes back to the defaults, so update() sends its periods for the current mode again. Resets are
+ * checked about once a second, since each check is a JNI call per Talon.
+ *
+ * The manager also keeps a model of the frames per second every registered Talon is expected to
+ * send in each mode, so we can check that the bus has headroom before changing a profile.
+ */
+public class StatusFrameManager{
+    public enum Mode{
+        Disabled,
+        Drive,
+        Scoring,
+        Climb
+    }
+
+    //Don't wait for the Talon to confirm, so a mode change never stalls the loop
+    private static final int _timeoutMs = 0;
+    //Period of the control frame the roboRIO sends every Talon
+    private static final int _controlFramePeriodMs = 10;
+    //Time the wanted mode has to stay lower before update() steps down to it
+    private static final double _holdSeconds = 1.0;
+    //Time between checks for Talon resets
+    private static final double _resetCheckSeconds = 1.0;
+    private static final EnumMap<StatusFrameEnhanced, Integer> _defaultPeriodsMs = new EnumMap<>(StatusFrameEnhanced.class);
+
+    static{
+        //Phoenix default periods of the frames a Talon SRX sends
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_1_General, 10);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_2_Feedback0, 20);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_3_Quadrature, 160);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_4_AinTempVbat, 160);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_8_PulseWidth, 160);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_10_MotionMagic, 160);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_11_UartGadgeteer, 250);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_12_Feedback1, 250);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_13_Base_PIDF0, 160);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_14_Turn_PIDF1, 250);
+        _defaultPeriodsMs.put(StatusFrameEnhanced.Status_15_FirmareApiStatus, 160);
+    }
+
+    private final SignalCache _signals;
+    private final List<TalonSRX> _talons = new ArrayList<>();
+    private final List<Frame> _frames = new ArrayList<>();
+    private volatile Mode _mode = null;
+    private double _lowerSince = 0;
+    private double _lastResetCheck = -_resetCheckSeconds;
+    private volatile long _periodChanges = 0;
+    private volatile long _resets = 0;
+
+    /**
+     * @param signals Counts the JNI calls of the reset checks with the loop's other Talon reads
+     */
+    public StatusFrameManager(SignalCache signals){
+        _signals = signals;
+    }
+
+    /**
+     * Register a Talon whose frames all stay at the Phoenix defaults. It is still counted in the
+     * bus model.
+     */
+    public void add(TalonSRX talon){
+        if (!_talons.contains(talon)){
+            _talons.add(talon);
+        }
+    }
+
+    /**
+     * Set the period of one of a Talon's frames in the given modes.
+     */
+    public void setPeriod(TalonSRX talon, StatusFrameEnhanced frame, int periodMs, Mode... modes){
+        if (!_defaultPeriodsMs.containsKey(frame)){
+            throw new IllegalArgumentException("No default period known for " + frame);
+        }
+        add(talon);
+        var entry = find(talon, frame);
+        if (entry == null){
+            entry = new Frame(talon, frame, _defaultPeriodsMs.get(frame));
+            _frames.add(entry);
+        }
+        for (var mode : modes){
+            entry._periodsMs[mode.ordinal()] = periodMs;
+        }
+    }
+
+    private Frame find(TalonSRX talon, StatusFrameEnhanced frame){
+        for (var entry : _frames){
+            if (entry._talon == talon && entry._frame == frame){
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Switch to a mode now and send the periods that changed.
+     */
+    public void setMode(Mode mode){
+        _lowerSince = 0;
+        if (mode == _mode){
+            return;
+        }
+        _mode = mode;
+        send(mode);
+    }
+
+    private void send(Mode mode){
+        long changes = 0;
+        for (var entry : _frames){
+            var period = entry._periodsMs[mode.ordinal()];
+            if (period != entry._sentMs){
+                entry._talon.setStatusFramePeriod(entry._frame, period, _timeoutMs);
+                entry._sentMs = period;
+                changes++;
+            }
+        }
+        _periodChanges = _periodChanges + changes;
+    }
+
+    /**
+     * Call once per loop with the mode the robot wants. Modes later in Mode (e.g. Climb) take
+     * over at once; stepping down waits until the lower mode has been wanted for a second, so a
+     * mechanism that stops for a moment doesn't make the frames flap.
+     */
+    public void update(Mode wanted){
+        var now = Timer.getFPGATimestamp();
+        if (now - _lastResetCheck >= _resetCheckSeconds){
+            _lastResetCheck = now;
+            if (checkResets() && _mode != null){
+                send(_mode);
+            }
+        }
+        if (_mode == null || wanted.ordinal() >= _mode.ordinal()){
+            setMode(wanted);
+            return;
+        }
+        if (_lowerSince == 0){
+            _lowerSince = now;
+        } else if (now - _lowerSince >= _holdSeconds){
+            setMode(wanted);
+        }
+    }
+
+    /**
+     * Mark the frames of every Talon that reset since the last check as never sent.
+     *
+     * @return true if any Talon reset
+     */
+    private boolean checkResets(){
+        var reset = false;
+        for (var talon : _talons){
+            if (talon.hasResetOccurred()){
+                for (var entry : _frames){
+                    if (entry._talon == talon){
+                        entry._sentMs = -1;
+                    }
+                }
+                _resets++;
+                reset = true;
+            }
+        }
+        _signals.countJniCalls(_talons.size());
+        return reset;
+    }
+
+    /**
+     * The current mode, or null before the first setMode().
+     */
+    public Mode getMode(){
+        return _mode;
+    }
+
+    /**
+     * Number of frame periods sent to the Talons so far.
+     */
+    public long getPeriodChangeCount(){
+        return _periodChanges;
+    }
+
+    /**
+     * Number of Talon resets seen by update().
+     */
+    public long getResetCount(){
+        return _resets;
+    }
+
+    /**
+     * Frames per second the registered Talons are expected to send (status and control frames)
+     * in the given mode.
+     */
+    public double getExpectedFramesPerSecond(Mode mode){
+        double perTalon = 1000.0 / _controlFramePeriodMs;
+        for (var period : _defaultPeriodsMs.values()){
+            perTalon += 1000.0 / period;
+        }
+        var frames = perTalon * _talons.size();
+        for (var entry : _frames){
+            frames += 1000.0 / entry._periodsMs[mode.ordinal()] - 1000.0 / entry._defaultMs;
+        }
+        return frames;
+    }
+
+    /**
+     * Expected fraction (0 to 1) of the bus used by the registered Talons in the given mode.
+     */
+    public double getExpectedBusUtilization(Mode mode){
+        return getExpectedFramesPerSecond(mode) * CanLoad._bitsPerFrame / CanLoad._bitRate;
+    }
+
+    /**
+     * Expected bus utilization in the current mode.
+     */
+    public double getExpectedBusUtilization(){
+        var mode = _mode;
+        return mode == null ? 0 : getExpectedBusUtilization(mode);
+    }
+
+    /**
+     * Warn about every mode whose expected bus utilization is above the budget. Call once all
+     * the subsystems have registered their frames.
+     *
+     * @return true if every mode fits
+     */
+    public boolean checkBudget(double maxUtilization){
+        var fits = true;
+        for (var mode : Mode.values()){
+            var utilization = getExpectedBusUtilization(mode);
+            if (utilization > maxUtilization){
+                DriverStation.reportWarning("Status frames in " + mode + " mode are expected to use "
+                    + Math.round(utilization * 100) + "% of the CAN bus", false);
+                fits = false;
+            }
+        }
+        return fits;
+    }
+
+    private static class Frame{
+        private final TalonSRX _talon;
+        private final StatusFrameEnhanced _frame;
+        private final int _defaultMs;
+        private final int[] _periodsMs = new int[Mode.values().length];
+        //Period last sent, or -1 if we never sent one
+        private int _sentMs = -1;
+
+        private Frame(TalonSRX talon, StatusFrameEnhanced frame, int defaultMs){
+            _talon = talon;
+            _frame = frame;
+            _defaultMs = defaultMs;
+            for (int i = 0; i < _periodsMs.length; i++){
+                _periodsMs[i] = defaultMs;
+            }
+        }
+    }
+}
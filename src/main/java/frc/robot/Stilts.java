@@ -42,13 +42,30 @@ public class Stilts{
     private final Gains _positionGains = new Gains(0.2,0,0,0.2,100,0.5);
     public final static double _neutralDeadband = 0.001;
 	private final double _topPosition = 10000; //Need to set based on testing
-	private double _rearTarget = 0;
-	private double _frontTarget = 0;
+	//volatile because the telemetry thread reads them
+	private volatile double _rearTarget = 0;
+	private volatile double _frontTarget = 0;
+	private final SignalCache.TalonSignals _frontSignals;
+	private final SignalCache.TalonSignals _rearSignals;
+	//Outputs skip writes that wouldn't change anything
+	private final MotorOutput _frontOutput;
+	private final MotorOutput _rearOutput;
+	private final double _percentTolerance = 0.002;
+	private final double _targetTolerance = 0.5; //encoder units
+	//Legs further out than this (encoder units) count as extended
+	private final double _extendedThreshold = 1000;
 
     /**
-     * This is the contructor to create a stilts object.
+     * This is the contructor to create a stilts object. The motor signals are read through the
+     * signal cache once per loop.
      */
-    public Stilts(){
+    public Stilts(SignalCache signals, CanLoad canLoad){
+		_frontSignals = signals.add(_frontLegs, SignalCache.Signal.Position);
+		_rearSignals = signals.add(_rearLegs, SignalCache.Signal.Position);
+		_frontOutput = new MotorOutput(_frontLegs, canLoad, _percentTolerance)
+			.setTolerance(ControlMode.MotionMagic, _targetTolerance);
+		_rearOutput = new MotorOutput(_rearLegs, canLoad, _percentTolerance)
+			.setTolerance(ControlMode.MotionMagic, _targetTolerance);
     }
 
     public void initialize(){
@@ -83,12 +100,6 @@ public class Stilts{
 		_frontLegs.configNeutralDeadband(_neutralDeadband, _timeoutMs);
 		_rearLegs.configNeutralDeadband(_neutralDeadband, _timeoutMs);
 
-		/* Set relevant frame periods to be at least as fast as periodic rate */
-		_frontLegs.setStatusFramePeriod(StatusFrameEnhanced.Status_13_Base_PIDF0, 10, _timeoutMs);
-        _frontLegs.setStatusFramePeriod(StatusFrameEnhanced.Status_10_MotionMagic, 10, _timeoutMs);
-		_rearLegs.setStatusFramePeriod(StatusFrameEnhanced.Status_13_Base_PIDF0, 10, _timeoutMs);
-        _rearLegs.setStatusFramePeriod(StatusFrameEnhanced.Status_10_MotionMagic, 10, _timeoutMs);
-		
 		/* Motion Magic Configurations */
 		_frontLegs.configMotionAcceleration(3000, _timeoutMs);
 		_frontLegs.configMotionCruiseVelocity(10000, _timeoutMs);
@@ -129,31 +140,51 @@ public class Stilts{
 		_rearLegs.selectProfileSlot(_positionSlot, _pidPosition);
 	}
 	
-	public void smartDashboardDisplay(){
-		var rearPosition = _rearLegs.getSensorCollection().getQuadraturePosition();
-		var frontPosition = _frontLegs.getSensorCollection().getQuadraturePosition();
-		SmartDashboard.putNumber("rear encoder", rearPosition);
-		SmartDashboard.putNumber("front encoder", frontPosition);
-		SmartDashboard.putNumber("rear target", _rearTarget);
-		SmartDashboard.putNumber("front target", _frontTarget);
+	/**
+	 * The motion magic frames only need to be as fast as the periodic rate while climbing.
+	 */
+	public void registerStatusFrames(StatusFrameManager statusFrames){
+		var climb = StatusFrameManager.Mode.Climb;
+		statusFrames.setPeriod(_frontLegs, StatusFrameEnhanced.Status_13_Base_PIDF0, 10, climb);
+		statusFrames.setPeriod(_frontLegs, StatusFrameEnhanced.Status_10_MotionMagic, 10, climb);
+		statusFrames.setPeriod(_rearLegs, StatusFrameEnhanced.Status_13_Base_PIDF0, 10, climb);
+		statusFrames.setPeriod(_rearLegs, StatusFrameEnhanced.Status_10_MotionMagic, 10, climb);
+	}
+
+	/**
+	 * True while either leg is extended or told to extend.
+	 */
+	public boolean isActive(){
+		return _frontTarget < -_extendedThreshold || _rearTarget > _extendedThreshold
+			|| _frontSignals.getPosition() < -_extendedThreshold || _rearSignals.getPosition() > _extendedThreshold;
+	}
+
+	/**
+	 * Dashboard values, published from the telemetry thread.
+	 */
+	public void registerTelemetry(Telemetry telemetry){
+		telemetry.addNumber("rear encoder", _rearSignals::getPosition, 10, 0);
+		telemetry.addNumber("front encoder", _frontSignals::getPosition, 10, 0);
+		telemetry.addNumber("rear target", () -> _rearTarget, 10, 0);
+		telemetry.addNumber("front target", () -> _frontTarget, 10, 0);
 	}
 
     public void driveRearLegsEncoder(double output){
 		_rearTarget = output;
-		_rearLegs.set(ControlMode.MotionMagic, _rearTarget);
+		_rearOutput.set(ControlMode.MotionMagic, _rearTarget);
 	}
 
 	public void driveFrontLegsEncoder(double output){
 		_frontTarget = output;
-		_frontLegs.set(ControlMode.MotionMagic, _frontTarget);
+		_frontOutput.set(ControlMode.MotionMagic, _frontTarget);
 	}
 
 	public void driveRearLegs(double output){
-		_rearLegs.set(ControlMode.PercentOutput, output);
+		_rearOutput.set(ControlMode.PercentOutput, output);
 	}
 
 	public void driveFrontLegs(double output){
-		_frontLegs.set(ControlMode.PercentOutput, output);
+		_frontOutput.set(ControlMode.PercentOutput, output);
 	}
 
     /** Zero quadrature encoders on Talon */
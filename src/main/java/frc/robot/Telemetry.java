@@ -0,0 +1,260 @@
+package frc.robot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.wpilibj.DriverStation;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Publishes dashboard values from a background thread so the control loop does no NetworkTables
+ * work (and no CAN reads just for the dashboard).
+ *
+ * Subsystems register value suppliers once, each with the rate it should be sampled at. A low
+ * priority thread calls the suppliers when they are due, skips values that haven't changed by
+ * more than their threshold, and flushes NetworkTables once per pass if anything changed.
+ *
+ * The suppliers run on the telemetry thread, so they must only read values that are safe to
+ * read from another thread (volatile fields, the IMU getters, Talon sensor reads).
+ */
+public class Telemetry{
+    //Longest sleep when nothing is due, so stop() is noticed
+    private static final long _maxSleepNanos = 100000000;
+    //A failing supplier is reported at once, then at most this often
+    private static final long _errorReportIntervalNanos = 1000000000;
+
+    private final List<Entry> _pending = new ArrayList<>();
+    private Entry[] _entries = new Entry[0];
+    private final Object _lock = new Object();
+    private volatile boolean _stopped = false;
+    private Thread _thread;
+
+    private volatile long _samples = 0;
+    private volatile long _published = 0;
+
+    public Telemetry(){
+    }
+
+    /**
+     * Publish a number.
+     *
+     * @param rateHz How often to sample the supplier
+     * @param threshold Smallest change that is published (0 publishes every change)
+     */
+    public void addNumber(String key, DoubleSupplier supplier, double rateHz, double threshold){
+        add(new NumberEntry(key, supplier, rateHz, threshold));
+    }
+
+    public void addBoolean(String key, BooleanSupplier supplier, double rateHz){
+        add(new BooleanEntry(key, supplier, rateHz));
+    }
+
+    public void addString(String key, Supplier<String> supplier, double rateHz){
+        add(new StringEntry(key, supplier, rateHz));
+    }
+
+    private void add(Entry entry){
+        synchronized (_lock){
+            _pending.add(entry);
+            _entries = _pending.toArray(new Entry[0]);
+        }
+    }
+
+    /**
+     * Start the publishing thread.
+     */
+    public void start(){
+        if (_thread != null){
+            return;
+        }
+        _thread = new Thread(this::run, "Telemetry");
+        _thread.setDaemon(true);
+        _thread.setPriority(Thread.MIN_PRIORITY);
+        _thread.start();
+    }
+
+    public void stop(){
+        _stopped = true;
+        if (_thread != null){
+            LockSupport.unpark(_thread);
+        }
+    }
+
+    /**
+     * Number of times a supplier was sampled.
+     */
+    public long getSampleCount(){
+        return _samples;
+    }
+
+    /**
+     * Number of values written to NetworkTables (sampled values that had changed).
+     */
+    public long getPublishedCount(){
+        return _published;
+    }
+
+    private void run(){
+        var instance = NetworkTableInstance.getDefault();
+        while (!_stopped){
+            Entry[] entries;
+            synchronized (_lock){
+                entries = _entries;
+            }
+
+            var now = System.nanoTime();
+            var next = now + _maxSleepNanos;
+            var changed = false;
+            long samples = 0;
+            long published = 0;
+            for (var entry : entries){
+                if (now - entry._due >= 0){
+                    try {
+                        if (entry.publishIfChanged()){
+                            changed = true;
+                            published++;
+                        }
+                    } catch (RuntimeException e){
+                        entry.reportFailure(e, now);
+                    }
+                    samples++;
+                    //Stay on the original schedule unless we fell a whole period behind
+                    entry._due += entry._periodNanos;
+                    if (now - entry._due >= 0){
+                        entry._due = now + entry._periodNanos;
+                    }
+                }
+                if (entry._due - next < 0){
+                    next = entry._due;
+                }
+            }
+            if (changed){
+                //One batch for everything that changed in this pass
+                instance.flush();
+            }
+            _samples += samples;
+            _published += published;
+
+            var sleep = next - System.nanoTime();
+            if (sleep > 0){
+                LockSupport.parkNanos(this, sleep);
+            }
+        }
+    }
+
+    private abstract static class Entry{
+        final String _key;
+        final NetworkTableEntry _entry;
+        final long _periodNanos;
+        long _due;
+        boolean _first = true;
+        //Failures not reported yet, and when the last report was made
+        private long _failures = 0;
+        private boolean _reported = false;
+        private long _lastReport = 0;
+
+        Entry(String key, double rateHz){
+            if (!(rateHz > 0)){
+                throw new IllegalArgumentException("Telemetry rate must be positive");
+            }
+            _key = key;
+            _entry = SmartDashboard.getEntry(key);
+            _periodNanos = (long) (1e9 / rateHz);
+            _due = System.nanoTime();
+        }
+
+        //Sample the supplier and write the value if it changed; returns true if written
+        abstract boolean publishIfChanged();
+
+        //Report the first failure, then at most one per interval with the count in between, so a
+        //broken supplier sampled at 50Hz doesn't flood the driver station
+        void reportFailure(RuntimeException e, long now){
+            _failures++;
+            if (_reported && now - _lastReport < _errorReportIntervalNanos){
+                return;
+            }
+            var message = "Telemetry " + _key + " failed: " + e;
+            if (_failures > 1){
+                message += " (" + _failures + " failures since the last report)";
+            }
+            DriverStation.reportError(message, false);
+            _reported = true;
+            _lastReport = now;
+            _failures = 0;
+        }
+    }
+
+    private static class NumberEntry extends Entry{
+        private final DoubleSupplier _supplier;
+        private final double _threshold;
+        private double _last;
+
+        NumberEntry(String key, DoubleSupplier supplier, double rateHz, double threshold){
+            super(key, rateHz);
+            _supplier = supplier;
+            _threshold = threshold;
+        }
+
+        @Override
+        boolean publishIfChanged(){
+            var value = _supplier.getAsDouble();
+            if (!_first && (Math.abs(value - _last) <= _threshold || Double.compare(value, _last) == 0)){
+                return false;
+            }
+            _first = false;
+            _last = value;
+            _entry.setDouble(value);
+            return true;
+        }
+    }
+
+    private static class BooleanEntry extends Entry{
+        private final BooleanSupplier _supplier;
+        private boolean _last;
+
+        BooleanEntry(String key, BooleanSupplier supplier, double rateHz){
+            super(key, rateHz);
+            _supplier = supplier;
+        }
+
+        @Override
+        boolean publishIfChanged(){
+            var value = _supplier.getAsBoolean();
+            if (!_first && value == _last){
+                return false;
+            }
+            _first = false;
+            _last = value;
+            _entry.setBoolean(value);
+            return true;
+        }
+    }
+
+    private static class StringEntry extends Entry{
+        private final Supplier<String> _supplier;
+        private String _last;
+
+        StringEntry(String key, Supplier<String> supplier, double rateHz){
+            super(key, rateHz);
+            _supplier = supplier;
+        }
+
+        @Override
+        boolean publishIfChanged(){
+            var value = String.valueOf(_supplier.get());
+            if (!_first && value.equals(_last)){
+                return false;
+            }
+            _first = false;
+            _last = value;
+            _entry.setString(value);
+            return true;
+        }
+    }
+}
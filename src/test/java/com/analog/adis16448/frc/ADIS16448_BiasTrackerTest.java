@@ -0,0 +1,111 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays a synthetic recording of an IMU sitting still while it warms up
+ * through a 150 s match, with and without online bias tracking.
+ */
+public class ADIS16448_BiasTrackerTest {
+  // 102.4 SPS, as configured by default
+  private static final int kSmplPrd = 0x0301;
+  private static final int kSensAvg = 0x0402;
+  private static final long kPeriodUs = 9766;
+  private static final double kMatchTime = 150.0;
+  // Warm-up: temperature rises exponentially, the z offset follows it
+  private static final double kStartTemp = 25.0;
+  private static final double kTempRise = 15.0;
+  private static final double kWarmUpTau = 40.0;
+  private static final double kBiasZ = 0.3;
+  private static final double kBiasPerDegC = 0.02;
+  // Sensor noise (standard deviations)
+  private static final double kGyroNoise = 0.05;
+  private static final double kAccelNoise = 0.002;
+  // Drift allowed with tracking, in degrees over the match and as a
+  // fraction of the drift with the offsets fixed at calibration
+  private static final double kMaxTrackedDrift = 2.5;
+  private static final double kMaxDriftRatio = 0.1;
+
+  private Path m_log;
+
+  @Before
+  public void writeLog() throws IOException {
+    m_log = Files.createTempFile("adis16448", ".bin");
+    Random random = new Random(16448);
+    double calibration_time = ADIS16448_IMU.kCalibrationSampleTime + 0.5;
+    int total = (int) ((calibration_time + kMatchTime) * 1000000.0 / kPeriodUs);
+    final int chunk = 1024;
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(chunk);
+    // Ring big enough for the whole log, so nothing is dropped however slow
+    // the writer thread is
+    ADIS16448_Recorder recorder = new ADIS16448_Recorder(m_log.toString(), total, kSmplPrd, kSensAvg);
+    try {
+      for (int start = 0; start < total; start += chunk) {
+        int count = Math.min(chunk, total - start);
+        for (int n = 0; n < count; n++) {
+          long timestamp = 1000000 + (start + n) * kPeriodUs;
+          double t = (start + n) * kPeriodUs / 1000000.0 - calibration_time;
+          double temp = kStartTemp;
+          if (t > 0) {
+            temp += kTempRise * (1.0 - Math.exp(-t / kWarmUpTau));
+          }
+          double bias_z = kBiasZ + kBiasPerDegC * (temp - kStartTemp);
+          ADIS16448_TestPackets.put(buf, n, timestamp,
+              -0.1 + kGyroNoise * random.nextGaussian(),
+              0.2 + kGyroNoise * random.nextGaussian(),
+              bias_z + kGyroNoise * random.nextGaussian(),
+              kAccelNoise * random.nextGaussian(),
+              kAccelNoise * random.nextGaussian(),
+              1.0 + kAccelNoise * random.nextGaussian(),
+              temp);
+        }
+        recorder.record(buf, count);
+      }
+    } finally {
+      recorder.close();
+    }
+    assertEquals(0, recorder.getDroppedFrames());
+  }
+
+  @After
+  public void deleteLog() throws IOException {
+    Files.deleteIfExists(m_log);
+  }
+
+  @Test
+  public void trackingReducesDrift() throws IOException {
+    double fixed = Math.abs(replay(false));
+    double tracked = Math.abs(replay(true));
+    assertTrue("tracked drift " + tracked + " deg", tracked < kMaxTrackedDrift);
+    assertTrue("tracked drift " + tracked + " deg vs " + fixed + " deg fixed", tracked < kMaxDriftRatio * fixed);
+  }
+
+  // Integrated z angle at the end of the replay; the IMU never turned
+  private double replay(boolean track_bias) throws IOException {
+    try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(m_log.toString())) {
+      ADIS16448_Replay replay = new ADIS16448_Replay(
+          ADIS16448_IMU.createFilter(ADIS16448_IMU.AHRSAlgorithm.kComplementary, ADIS16448_IMU.Axis.kZ),
+          source.getSamplePeriod(), track_bias);
+      replay.run(source, null);
+      return replay.getAngleZ();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the four AHRS engines on the same synthetic data: cost per update
+ * and heading error against the known truth.
+ */
+public class ADIS16448_FusionFilterTest {
+  private static final double kPeriod = 1.0 / 102.4;
+  private static final int kSamples = (int) (120.0 / kPeriod);
+  // Error is measured after this many seconds, once every filter has settled
+  private static final double kSettleTime = 20.0;
+  // Robot sweeping its heading +/-90 degrees every 10 seconds
+  private static final double kSweepAmplitude = 90.0;
+  private static final double kSweepPeriod = 10.0;
+  private static final double kGyroBias = 0.5;
+  // Largest RMS heading error (degrees) a filter may have once settled
+  private static final double kHeadingBudget = 5.0;
+  // Earth field in milligauss and its dip below horizontal
+  private static final double kField = 450.0;
+  private static final double kDip = Math.toRadians(63.0);
+
+  // Per sample: true heading, then gyro, accelerometer and magnetometer
+  private static double[][] samples() {
+    Random random = new Random(13);
+    double[][] data = new double[kSamples][10];
+    for (int i = 0; i < kSamples; i++) {
+      double phase = 2.0 * Math.PI * i * kPeriod / kSweepPeriod;
+      double heading = kSweepAmplitude * Math.sin(phase);
+      double rate = kSweepAmplitude * 2.0 * Math.PI / kSweepPeriod * Math.cos(phase);
+      double h = Math.toRadians(heading);
+      data[i][0] = heading;
+      data[i][1] = 0.1 + 0.1 * random.nextGaussian();
+      data[i][2] = -0.1 + 0.1 * random.nextGaussian();
+      data[i][3] = rate + kGyroBias + 0.1 * random.nextGaussian();
+      data[i][4] = 0.005 * random.nextGaussian();
+      data[i][5] = 0.005 * random.nextGaussian();
+      data[i][6] = 1.0 + 0.005 * random.nextGaussian();
+      data[i][7] = kField * Math.cos(kDip) * Math.cos(h) + 2.0 * random.nextGaussian();
+      data[i][8] = -kField * Math.cos(kDip) * Math.sin(h) + 2.0 * random.nextGaussian();
+      data[i][9] = kField * Math.sin(kDip) + 2.0 * random.nextGaussian();
+    }
+    return data;
+  }
+
+  private static void load(ADIS16448_IMU.Sample sample, double[] values) {
+    sample.gyro_x = values[1];
+    sample.gyro_y = values[2];
+    sample.gyro_z = values[3];
+    sample.accel_x = values[4];
+    sample.accel_y = values[5];
+    sample.accel_z = values[6];
+    sample.mag_x = values[7];
+    sample.mag_y = values[8];
+    sample.mag_z = values[9];
+    sample.dt = kPeriod;
+  }
+
+  /**
+   * RMS heading error of each filter once settled, next to plain gyro
+   * integration, which drifts with the uncorrected bias.
+   */
+  @Test
+  public void headingAccuracy() {
+    double[][] data = samples();
+    double gyro = 0.0;
+    double gyro_error = 0.0;
+    for (int i = 0; i < kSamples; i++) {
+      gyro += data[i][3] * kPeriod;
+      if (i * kPeriod >= kSettleTime) {
+        double error = wrap(gyro - data[i][0]);
+        gyro_error += error * error;
+      }
+    }
+    gyro_error = Math.sqrt(gyro_error / settledSamples());
+    System.out.printf("%-40s %10.2f deg RMS%n", "Gyro integration heading error", gyro_error);
+    assertTrue(gyro_error > kHeadingBudget);
+
+    for (ADIS16448_IMU.AHRSAlgorithm algorithm : ADIS16448_IMU.AHRSAlgorithm.values()) {
+      double error = headingError(ADIS16448_IMU.createFilter(algorithm, ADIS16448_IMU.Axis.kZ), data);
+      System.out.printf("%-40s %10.2f deg RMS%n", algorithm + " heading error", error);
+      assertTrue(algorithm + " heading error " + error, error < kHeadingBudget);
+    }
+  }
+
+  /**
+   * ns/update of each filter, reading the angles after every update as the
+   * calculate thread does.
+   */
+  @Test
+  public void benchmarkUpdate() {
+    ADIS16448_Timing.assumeBenchmarks();
+    double[][] data = samples();
+    for (ADIS16448_IMU.AHRSAlgorithm algorithm : ADIS16448_IMU.AHRSAlgorithm.values()) {
+      FusionFilter filter = ADIS16448_IMU.createFilter(algorithm, ADIS16448_IMU.Axis.kZ);
+      ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+      ADIS16448_Timing.nanosPerOp(algorithm + " update", 100000, ops -> {
+        double sum = 0.0;
+        for (int i = 0; i < ops; i++) {
+          load(sample, data[i % kSamples]);
+          filter.update(sample);
+          sum += filter.getYaw() + filter.getPitch() + filter.getRoll();
+        }
+        return sum;
+      });
+    }
+  }
+
+  private static double headingError(FusionFilter filter, double[][] data) {
+    ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    double sum = 0.0;
+    for (int i = 0; i < kSamples; i++) {
+      load(sample, data[i]);
+      filter.update(sample);
+      if (i * kPeriod >= kSettleTime) {
+        double error = wrap(filter.getYaw() - data[i][0]);
+        sum += error * error;
+      }
+    }
+    return Math.sqrt(sum / settledSamples());
+  }
+
+  private static int settledSamples() {
+    return kSamples - (int) Math.ceil(kSettleTime / kPeriod);
+  }
+
+  // Angle difference in -180..180 degrees
+  private static double wrap(double degrees) {
+    return degrees - 360.0 * Math.floor((degrees + 180.0) / 360.0);
+  }
+}
@@ -0,0 +1,205 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class ADIS16448_HistoryTest {
+  private static final long kWrap = 1L << 32;
+  private static final long kPeriodUs = 9766; // 102.4 SPS
+  // Yaw rate of the synthetic samples in degrees/second
+  private static final double kYawRate = 10.0;
+
+  /**
+   * Decode packets whose raw timestamps wrap half way through, store them
+   * in the history, and look them up on both sides of the wrap.
+   */
+  @Test
+  public void lookupsAcrossTimestampWrap() {
+    checkAcrossWrap(-1, 0);
+  }
+
+  /**
+   * Same, with the decoder placed in the third wrap period by a reference
+   * FPGA time (as on a robot that has been on for over 2 hours).
+   */
+  @Test
+  public void lookupsAcrossLaterTimestampWrap() {
+    checkAcrossWrap(3 * kWrap - 100000, 2 * kWrap);
+  }
+
+  private void checkAcrossWrap(long reference, long expected_high) {
+    final int count = 200;
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(count);
+    long first = kWrap - (count / 2) * kPeriodUs;
+    for (int n = 0; n < count; n++) {
+      long raw = (first + n * kPeriodUs) & (kWrap - 1);
+      ADIS16448_TestPackets.put(buf, n, raw, 0.0, 0.0, kYawRate, 0.0, 0.0, 1.0, 25.0);
+    }
+
+    ADIS16448_PacketDecoder decoder = new ADIS16448_PacketDecoder();
+    if (reference >= 0) {
+      decoder.setTimeReference(reference);
+    }
+    ADIS16448_History history = new ADIS16448_History(256);
+    double[] state = new ImuSnapshot().m_values;
+    long previous = -1;
+    for (int n = 0; n < count; n++) {
+      decoder.extract(buf, n * ADIS16448_PacketDecoder.kPacketBytes);
+      assertEquals("extended timestamp", expected_high + first + n * kPeriodUs, decoder.timestamp);
+      assertTrue("timestamps increase", decoder.timestamp > previous);
+      previous = decoder.timestamp;
+      double time = decoder.timestamp / 1000000.0;
+      state[ImuSnapshot.kTimestamp] = time;
+      state[ImuSnapshot.kAngleZ] = yaw(time, expected_high + first);
+      history.add(state);
+    }
+
+    double start = (expected_high + first) / 1000000.0;
+    double wrap = (expected_high + kWrap) / 1000000.0;
+    assertEquals(start, history.getOldestTimestamp(), 1e-9);
+    // Before, at and after the wrap, between samples
+    for (double t : new double[] {wrap - 0.5, wrap - 0.004, wrap + 0.003, wrap + 0.7}) {
+      assertEquals("angle at " + t, yaw(t, expected_high + first),
+          history.get(ADIS16448_History.kAngleZ, t, false), 1e-6);
+    }
+    // Later than the newest sample clamps to it
+    double last = previous / 1000000.0;
+    assertEquals(yaw(last, expected_high + first),
+        history.get(ADIS16448_History.kAngleZ, last + 10.0, false), 1e-6);
+  }
+
+  private static double yaw(double time, long start_us) {
+    return kYawRate * (time - start_us / 1000000.0);
+  }
+
+  @Test
+  public void quaternionSlerp() {
+    ADIS16448_History history = new ADIS16448_History(8);
+    double[] out = new double[4];
+    history.getQuaternion(0.5, out);
+    assertQuaternion("empty is identity", 0.0, out);
+
+    history.add(yawState(1.0, 0.0, false));
+    // Stored negated (the same orientation), so the slerp has to take the
+    // short way around
+    history.add(yawState(2.0, 90.0, true));
+    history.getQuaternion(1.25, out);
+    assertQuaternion("quarter way", 22.5, out);
+    history.getQuaternion(1.5, out);
+    assertQuaternion("half way", 45.0, out);
+    history.getQuaternion(0.0, out);
+    assertQuaternion("before the oldest", 0.0, out);
+    history.getQuaternion(5.0, out);
+    assertQuaternion("after the newest", 90.0, out);
+  }
+
+  // Quaternion for a rotation of yaw degrees about z; negated if flip
+  private static double[] yawState(double time, double yaw, boolean flip) {
+    double[] state = new ImuSnapshot().m_values;
+    double sign = flip ? -1.0 : 1.0;
+    state[ImuSnapshot.kTimestamp] = time;
+    state[ImuSnapshot.kQuaternionW] = sign * Math.cos(Math.toRadians(yaw) / 2);
+    state[ImuSnapshot.kQuaternionZ] = sign * Math.sin(Math.toRadians(yaw) / 2);
+    return state;
+  }
+
+  // Compare with the rotation of yaw degrees about z, either sign
+  private static void assertQuaternion(String message, double yaw, double[] q) {
+    double sign = Math.signum(q[0]) < 0 ? -1.0 : 1.0;
+    assertEquals(message, Math.cos(Math.toRadians(yaw) / 2), sign * q[0], 1e-9);
+    assertEquals(message, 0.0, q[1], 1e-9);
+    assertEquals(message, 0.0, q[2], 1e-9);
+    assertEquals(message, Math.sin(Math.toRadians(yaw) / 2), sign * q[3], 1e-9);
+  }
+
+  @Test
+  public void wrapDegreesAcross180() {
+    ADIS16448_History history = new ADIS16448_History(8);
+    double[] state = new ImuSnapshot().m_values;
+    state[ImuSnapshot.kTimestamp] = 1.0;
+    state[ImuSnapshot.kYaw] = 170.0;
+    history.add(state);
+    state[ImuSnapshot.kTimestamp] = 2.0;
+    state[ImuSnapshot.kYaw] = -170.0;
+    history.add(state);
+    state[ImuSnapshot.kTimestamp] = 3.0;
+    state[ImuSnapshot.kYaw] = 170.0;
+    history.add(state);
+
+    // Through 180 rather than back through 0, in the range (-180, 180]
+    assertEquals(175.0, history.get(ADIS16448_History.kYaw, 1.25, true), 1e-9);
+    assertEquals(180.0, history.get(ADIS16448_History.kYaw, 1.5, true), 1e-9);
+    assertEquals(-175.0, history.get(ADIS16448_History.kYaw, 1.75, true), 1e-9);
+    assertEquals(-175.0, history.get(ADIS16448_History.kYaw, 2.25, true), 1e-9);
+    // Without wrapping it is a plain number
+    assertEquals(0.0, history.get(ADIS16448_History.kYaw, 1.5, false), 1e-9);
+  }
+
+  @Test
+  public void overwrittenSamplesAreOutOfRange() {
+    ADIS16448_History history = new ADIS16448_History(4);
+    assertEquals(0.0, history.get(ADIS16448_History.kAngleX, 1.0, false), 0.0);
+    assertEquals(0.0, history.getOldestTimestamp(), 0.0);
+    double[] state = new ImuSnapshot().m_values;
+    for (int n = 0; n < 10; n++) {
+      state[ImuSnapshot.kTimestamp] = n;
+      state[ImuSnapshot.kAngleX] = 10.0 * n;
+      history.add(state);
+    }
+    // Four slots, one of them left for the writer: samples 7 to 9 remain
+    assertEquals(7.0, history.getOldestTimestamp(), 0.0);
+    assertEquals(70.0, history.get(ADIS16448_History.kAngleX, 2.5, false), 0.0);
+    assertEquals(70.0, history.get(ADIS16448_History.kAngleX, 7.0, false), 0.0);
+    assertEquals(85.0, history.get(ADIS16448_History.kAngleX, 8.5, false), 1e-9);
+    assertEquals(90.0, history.get(ADIS16448_History.kAngleX, 12.0, false), 0.0);
+  }
+
+  /**
+   * A reader racing a writer that laps a small ring over and over.  Sample
+   * n has value n at time n, so a lookup between samples must return the
+   * time asked for, or a sample's own value when the time fell out of range
+   * and was clamped.  Anything else is a slot that was overwritten while
+   * being read and got past the isValid re-check.
+   */
+  @Test
+  public void concurrentWriterAndReader() throws InterruptedException {
+    final ADIS16448_History history = new ADIS16448_History(8);
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread writer = new Thread(() -> {
+      double[] state = new ImuSnapshot().m_values;
+      for (long n = 0; !done.get(); n++) {
+        state[ImuSnapshot.kTimestamp] = n;
+        state[ImuSnapshot.kAngleX] = n;
+        history.add(state);
+      }
+    });
+    writer.start();
+    // Long enough for many preemptions mid-lookup on a single core
+    long end = System.nanoTime() + 1000000000L;
+    int between = 0;
+    while (System.nanoTime() < end) {
+      double t = history.getOldestTimestamp() + 2.5;
+      double value = history.get(ADIS16448_History.kAngleX, t, false);
+      if (value == t) {
+        between++;
+      } else {
+        assertEquals("torn read at " + t, Math.rint(value), value, 0.0);
+      }
+    }
+    done.set(true);
+    writer.join();
+    assertTrue("some lookups landed between samples", between > 0);
+  }
+}
@@ -0,0 +1,185 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ADIS16448_IntegratorTest {
+  private static final int kSmplPrd = 0x0301;
+  private static final int kSensAvg = 0x0402;
+  // Nominal period of kSmplPrd, and the nearest whole microseconds
+  private static final double kPeriod = 1.0 / 102.4;
+  private static final long kPeriodUs = 9766;
+  private static final double kOffsetZ = 0.4;
+
+  private final ByteBuffer m_buf = ADIS16448_TestPackets.allocate(1);
+  private final ADIS16448_PacketDecoder m_decoder = new ADIS16448_PacketDecoder();
+
+  // Decode one still packet turning at rate_z (plus the z offset)
+  private ADIS16448_PacketDecoder packet(long timestamp, double rate_z) {
+    ADIS16448_TestPackets.put(m_buf, 0, timestamp, 0.0, 0.0, kOffsetZ + rate_z, 0.0, 0.0, 1.0, 25.0);
+    m_decoder.extract(m_buf, 0);
+    return m_decoder;
+  }
+
+  private static ADIS16448_Integrator integrator() {
+    return new ADIS16448_Integrator(kPeriod, new ADIS16448_BiasTracker(
+        (int) Math.ceil(ADIS16448_IMU.kBiasWindowTime / kPeriod)));
+  }
+
+  @Test
+  public void dtFromTheTimestamps() {
+    ADIS16448_Integrator integrator = integrator();
+    integrator.setOffsets(0.0, 0.0, kOffsetZ);
+    long time = 1000000;
+    integrator.step(packet(time, 10.0), null, false);
+    assertEquals("first packet", kPeriod, integrator.getDt(), 0.0);
+    assertEquals(time, integrator.getLastTimestamp());
+    integrator.step(packet(time += 2 * kPeriodUs, 10.0), null, false);
+    assertEquals("missed packet", 2 * kPeriodUs / 1000000.0, integrator.getDt(), 1e-12);
+    double angle = integrator.getAngleZ();
+    assertEquals(10.0 * 3 * kPeriod, angle, 1e-3);
+
+    // A gap too long to trust is not integrated
+    integrator.step(packet(time += 10000000, 10.0), null, false);
+    assertEquals(0.0, integrator.getDt(), 0.0);
+    assertEquals(angle, integrator.getAngleZ(), 0.0);
+    integrator.step(packet(time + kPeriodUs, 10.0), null, false);
+    assertEquals(angle + 10.0 * kPeriod, integrator.getAngleZ(), 1e-3);
+
+    integrator.resetAngles();
+    assertEquals(0.0, integrator.getAngleZ(), 0.0);
+  }
+
+  @Test
+  public void calibrationSetsTheOffsets() {
+    ADIS16448_Integrator integrator = integrator();
+    ADIS16448_Calibration calibration = new ADIS16448_Calibration(1.0);
+    assertFalse(integrator.isCalibrated());
+    long time = 1000000;
+    int completions = 0;
+    while (!calibration.isDone()) {
+      if (integrator.step(packet(time += kPeriodUs, 0.0), calibration, true)) {
+        ++completions;
+      }
+    }
+    assertEquals(1, completions);
+    assertTrue(integrator.isCalibrated());
+    assertEquals(kOffsetZ, integrator.getOffsetZ(), 0.01);
+
+    // Still from here on
+    double angle = integrator.getAngleZ();
+    for (int n = 0; n < 100; n++) {
+      integrator.step(packet(time += kPeriodUs, 0.0), calibration, true);
+    }
+    assertEquals(angle, integrator.getAngleZ(), 1e-3);
+  }
+
+  @Test
+  public void rejectedCalibrationKeepsTheOffsets() {
+    ADIS16448_Integrator integrator = integrator();
+    integrator.setOffsets(0.0, 0.0, -1.0);
+    ADIS16448_Calibration calibration =
+        new ADIS16448_Calibration(1.0, new double[] {0.0, 0.0, -1.0}, 0.1);
+    long time = 1000000;
+    while (!integrator.step(packet(time += kPeriodUs, 0.0), calibration, false)) {
+    }
+    assertTrue(calibration.isRejected());
+    assertEquals(-1.0, integrator.getOffsetZ(), 0.0);
+  }
+
+  /**
+   * Replay a recording, and run the same packets through the step the way
+   * the acquire thread does (CRC check, then one step per good packet with
+   * the calibration started at power on).  The traces must be identical.
+   */
+  @Test
+  public void replayMatchesAcquire() throws IOException {
+    Path log = Files.createTempFile("adis16448", ".bin");
+    try {
+      writeLog(log);
+
+      StringWriter trace = new StringWriter();
+      try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(log.toString());
+           PrintWriter out = new PrintWriter(trace)) {
+        ADIS16448_Replay replay = new ADIS16448_Replay(
+            ADIS16448_IMU.createFilter(ADIS16448_IMU.AHRSAlgorithm.kComplementary, ADIS16448_IMU.Axis.kZ),
+            source.getSamplePeriod(), true);
+        replay.run(source, out);
+      }
+      String[] lines = trace.toString().split("\\R");
+
+      ADIS16448_Integrator integrator = integrator();
+      ADIS16448_Calibration calibration = new ADIS16448_Calibration(ADIS16448_IMU.kCalibrationSampleTime);
+      ByteBuffer buf = ADIS16448_TestPackets.allocate(256);
+      boolean[] crc_valid = new boolean[256];
+      int line = 1;
+      int failures = 0;
+      try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(log.toString())) {
+        int packets;
+        while ((packets = source.read(buf, 256)) >= 0) {
+          failures += ADIS16448_PacketDecoder.validate(buf, packets, crc_valid);
+          for (int n = 0; n < packets; n++) {
+            if (crc_valid[n]) {
+              m_decoder.extract(buf, n * ADIS16448_PacketDecoder.kPacketBytes);
+              integrator.step(m_decoder, calibration, true);
+              String[] fields = lines[line++].split(",");
+              assertEquals(Double.parseDouble(fields[4]), integrator.getAngleX(), 0.0);
+              assertEquals(Double.parseDouble(fields[5]), integrator.getAngleY(), 0.0);
+              assertEquals(Double.parseDouble(fields[6]), integrator.getAngleZ(), 0.0);
+            }
+          }
+        }
+      }
+      assertEquals("every replayed sample compared", lines.length, line);
+      assertTrue("bad packets skipped", failures > 0);
+      assertTrue(calibration.isDone());
+    } finally {
+      Files.deleteIfExists(log);
+    }
+  }
+
+  // Calibration, then turning with noise, a long gap and some corrupted
+  // packets
+  private static void writeLog(Path log) throws IOException {
+    Random random = new Random(16);
+    int total = (int) ((ADIS16448_IMU.kCalibrationSampleTime + 10.0) / kPeriod);
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(1);
+    ADIS16448_Recorder recorder = new ADIS16448_Recorder(log.toString(), total, kSmplPrd, kSensAvg);
+    try {
+      long time = 1000000;
+      for (int n = 0; n < total; n++) {
+        time += n == total / 2 ? 5000000 : kPeriodUs;
+        double rate = n * kPeriod > ADIS16448_IMU.kCalibrationSampleTime + 2.0 ? 20.0 : 0.0;
+        ADIS16448_TestPackets.put(buf, 0, time,
+            0.05 * random.nextGaussian(), 0.05 * random.nextGaussian(),
+            kOffsetZ + rate + 0.05 * random.nextGaussian(),
+            0.002 * random.nextGaussian(), 0.002 * random.nextGaussian(), 1.0, 25.0);
+        if (n % 500 == 7) {
+          buf.putInt(4 * 10, buf.getInt(4 * 10) ^ 0x01);
+        }
+        recorder.record(buf, 1);
+      }
+    } finally {
+      recorder.close();
+    }
+    assertEquals(0, recorder.getDroppedFrames());
+  }
+}
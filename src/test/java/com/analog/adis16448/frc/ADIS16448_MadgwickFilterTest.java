@@ -0,0 +1,374 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ADIS16448_MadgwickFilterTest {
+  private static final int kSamples = 4096;
+  private static final double kPeriod = 1.0 / 102.4;
+
+  // Gyro, accelerometer and magnetometer of a robot turning on the floor;
+  // disturbed samples have a field well above the Earth's
+  private static double[][] samples(boolean disturbed) {
+    Random random = new Random(14);
+    double[][] data = new double[kSamples][9];
+    double field = disturbed ? 1500.0 : 450.0;
+    for (int i = 0; i < kSamples; i++) {
+      double heading = Math.toRadians(30.0 * i * kPeriod);
+      data[i][0] = 0.5 * random.nextGaussian();
+      data[i][1] = 0.5 * random.nextGaussian();
+      data[i][2] = 30.0 + 0.5 * random.nextGaussian();
+      data[i][3] = 0.01 * random.nextGaussian();
+      data[i][4] = 0.01 * random.nextGaussian();
+      data[i][5] = 1.0 + 0.01 * random.nextGaussian();
+      data[i][6] = field * 0.45 * Math.cos(heading);
+      data[i][7] = -field * 0.45 * Math.sin(heading);
+      data[i][8] = field * 0.89;
+    }
+    return data;
+  }
+
+  private static void load(ADIS16448_IMU.Sample sample, double[] values) {
+    sample.gyro_x = values[0];
+    sample.gyro_y = values[1];
+    sample.gyro_z = values[2];
+    sample.accel_x = values[3];
+    sample.accel_y = values[4];
+    sample.accel_z = values[5];
+    sample.mag_x = values[6];
+    sample.mag_y = values[7];
+    sample.mag_z = values[8];
+    sample.dt = kPeriod;
+  }
+
+  @Test
+  public void anglesFollowTheLatestUpdate() {
+    ADIS16448_MadgwickFilter filter = new ADIS16448_MadgwickFilter(ADIS16448_IMU.Axis.kZ);
+    ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    double[][] data = samples(false);
+    load(sample, data[0]);
+    filter.update(sample);
+    double first = filter.getYaw();
+    assertEquals(first, filter.getYaw(), 0.0);
+    for (int i = 1; i < 200; i++) {
+      load(sample, data[i]);
+      filter.update(sample);
+    }
+    assertTrue(Math.abs(filter.getYaw() - first) > 1.0);
+    filter.reset();
+    assertEquals(0.0, filter.getYaw(), 1e-9);
+  }
+
+  @Test
+  public void disturbedFieldFallsBackTo6Dof() {
+    ADIS16448_MadgwickFilter filter = new ADIS16448_MadgwickFilter(ADIS16448_IMU.Axis.kZ);
+    ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    load(sample, samples(false)[0]);
+    filter.update(sample);
+    assertFalse(filter.isMagDisturbed());
+    load(sample, samples(true)[0]);
+    filter.update(sample);
+    assertTrue(filter.isMagDisturbed());
+  }
+
+  @Test
+  public void atan2MatchesLibrary() {
+    Random random = new Random(140);
+    for (int i = 0; i < 100000; i++) {
+      double scale = Math.pow(10.0, random.nextInt(7) - 3);
+      double y = scale * (2.0 * random.nextDouble() - 1.0);
+      double x = scale * (2.0 * random.nextDouble() - 1.0);
+      assertEquals(Math.atan2(y, x), ADIS16448_QuaternionFilter.atan2(y, x), 1e-9);
+    }
+    double[] edges = {0.0, 1.0, -1.0, Math.sqrt(2.0) - 1.0, 1e-300};
+    for (double y : edges) {
+      for (double x : edges) {
+        assertEquals(Math.atan2(y, x), ADIS16448_QuaternionFilter.atan2(y, x), 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void asinMatchesLibrary() {
+    for (int i = -10000; i <= 10000; i++) {
+      double s = i / 10000.0;
+      assertEquals(Math.asin(s), ADIS16448_QuaternionFilter.asin(s), 1e-8);
+    }
+    // Rounding just past 1 is still straight up rather than NaN
+    assertEquals(Math.PI / 2, ADIS16448_QuaternionFilter.asin(1.0 + 1e-15), 0.0);
+  }
+
+  @Test
+  public void anglesMatchReference() {
+    ADIS16448_MadgwickFilter filter = filter();
+    ReferenceMadgwick reference = new ReferenceMadgwick();
+    ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    for (double[] values : samples(false)) {
+      load(sample, values);
+      filter.update(sample);
+      reference.setQuaternion(filter.getQuaternionW(), filter.getQuaternionX(),
+                              filter.getQuaternionY(), filter.getQuaternionZ());
+      assertEquals(reference.getYaw(), filter.getYaw(), 1e-6);
+      assertEquals(reference.getPitch(), filter.getPitch(), 1e-6);
+      assertEquals(reference.getRoll(), filter.getRoll(), 1e-6);
+    }
+  }
+
+  /**
+   * ns/update of the 9-DOF and 6-DOF paths, with and without reading the
+   * Euler angles after every update (as the IMU's calculate thread does),
+   * against the update this filter replaced.
+   */
+  @Test
+  public void benchmarkUpdate() {
+    ADIS16448_Timing.assumeBenchmarks();
+    double[][] normal = samples(false);
+    double[][] disturbed = samples(true);
+    time("Madgwick 9-DOF update (reference)", new ReferenceMadgwick(), normal, false);
+    time("Madgwick 9-DOF update", filter(), normal, false);
+    time("Madgwick 6-DOF update", filter(), disturbed, false);
+    time("Madgwick 9-DOF + angles (reference)", new ReferenceMadgwick(), normal, true);
+    time("Madgwick 9-DOF + angles", filter(), normal, true);
+    time("Madgwick 6-DOF + angles", filter(), disturbed, true);
+  }
+
+  private static ADIS16448_MadgwickFilter filter() {
+    return new ADIS16448_MadgwickFilter(ADIS16448_IMU.Axis.kZ);
+  }
+
+  private static double time(String name, FusionFilter filter, double[][] data, boolean read_angles) {
+    ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    return ADIS16448_Timing.nanosPerOp(name, 100000, ops -> {
+      double sum = 0.0;
+      for (int i = 0; i < ops; i++) {
+        load(sample, data[i & (kSamples - 1)]);
+        filter.update(sample);
+        sum += read_angles ? filter.getYaw() + filter.getPitch() + filter.getRoll() : filter.getQuaternionW();
+      }
+      return sum;
+    });
+  }
+
+  /**
+   * The Madgwick update before the restructuring: always 9-DOF, fixed
+   * beta of 1 and the Euler angles converted eagerly after every update.
+   * Kept as the baseline for {@link #benchmarkUpdate} and for the angle
+   * conversion.
+   */
+  private static final class ReferenceMadgwick implements FusionFilter {
+    private static final double kGyroScale = 0.0174533;
+    private static final double kAccelScale = 9.80665;
+    private static final double kMagScale = 0.1;
+    private static final double kBeta = 1;
+
+    private final ADIS16448_IMU.Axis m_yaw_axis = ADIS16448_IMU.Axis.kZ;
+    private double m_q1 = 1, m_q2 = 0, m_q3 = 0, m_q4 = 0;
+    private double m_yaw, m_roll, m_pitch;
+
+    @Override
+    public void update(ADIS16448_IMU.Sample sample) {
+      // Make local copy of quaternion state
+      double q1 = m_q1;
+      double q2 = m_q2;
+      double q3 = m_q3;
+      double q4 = m_q4;
+
+      // Swap axis as appropriate for yaw axis selection
+      sample.adjustYawAxis(m_yaw_axis);
+
+      // Kalman calculation
+      // Code originated from: https://decibel.ni.com/content/docs/DOC-18964
+      do {
+        // If true, only use gyros and magnetos for updating the filter.
+        boolean excludeAccel = false;
+
+        // Convert accelerometer units to m/sec/sec
+        double ax = sample.accel_x * kAccelScale;
+        double ay = sample.accel_y * kAccelScale;
+        double az = sample.accel_z * kAccelScale;
+        // Normalize accelerometer measurement
+        double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (norm > 0.3 && !excludeAccel) {
+          // normal larger than the sensor noise floor during freefall
+          norm = 1.0 / norm; 
+          ax *= norm;
+          ay *= norm;
+          az *= norm;
+        } else {
+          ax = 0;
+          ay = 0;
+          az = 0;
+        }
+
+        // Convert magnetometer units to uTesla
+        double mx = sample.mag_x * kMagScale;
+        double my = sample.mag_y * kMagScale;
+        double mz = sample.mag_z * kMagScale;
+        // Normalize magnetometer measurement
+        norm = Math.sqrt(mx * mx + my * my + mz * mz);
+        if (norm > 0.0) {
+          norm = 1.0 / norm;
+          mx *= norm;
+          my *= norm;
+          mz *= norm;
+        } else {
+          break; // something is wrong with the magneto readouts
+        }
+
+        double _2q1 = 2.0 * q1;
+        double _2q2 = 2.0 * q2;
+        double _2q3 = 2.0 * q3;
+        double _2q4 = 2.0 * q4;
+        double _2q1q3 = 2.0 * q1 * q3;
+        double _2q3q4 = 2.0 * q3 * q4;
+        double q1q1 = q1 * q1;
+        double q1q2 = q1 * q2;
+        double q1q3 = q1 * q3;
+        double q1q4 = q1 * q4;
+        double q2q2 = q2 * q2;
+        double q2q3 = q2 * q3;
+        double q2q4 = q2 * q4;
+        double q3q3 = q3 * q3;
+        double q3q4 = q3 * q4;
+        double q4q4 = q4 * q4;
+
+        // Reference direction of Earth's magnetic field
+        double _2q1mx = 2 * q1 * mx;
+        double _2q1my = 2 * q1 * my;
+        double _2q1mz = 2 * q1 * mz;
+        double _2q2mx = 2 * q2 * mx;
+
+        double hx = mx * q1q1 - _2q1my * q4 + _2q1mz * q3 + mx * q2q2 + _2q2 * my * q3 + _2q2 * mz * q4 - mx * q3q3 - mx * q4q4;
+        double hy = _2q1mx * q4 + my * q1q1 - _2q1mz * q2 + _2q2mx * q3 - my * q2q2 + my * q3q3 + _2q3 * mz * q4 - my * q4q4;
+        double _2bx = Math.sqrt(hx * hx + hy * hy);
+        double _2bz = -_2q1mx * q3 + _2q1my * q2 + mz * q1q1 + _2q2mx * q4 - mz * q2q2 + _2q3 * my * q4 - mz * q3q3 + mz * q4q4;
+        double _4bx = 2.0 * _2bx;
+        double _4bz = 2.0 * _2bz;
+        double _8bx = 2.0 * _4bx;
+        double _8bz = 2.0 * _4bz;
+
+        // Gradient descent algorithm corrective step
+        double s1 =
+          - _2q3 * (2.0 * q2q4 - _2q1q3 - ax)
+          + _2q2 * (2.0 * q1q2 + _2q3q4 - ay)
+          - _4bz * q3 * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
+          + (-_4bx * q4 + _4bz * q2) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
+          + _4bx * q3 * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
+        double s2 =
+            _2q4 * (2.0 * q2q4 - _2q1q3 - ax)
+          + _2q1 * (2.0 * q1q2 + _2q3q4 - ay)
+          - 4.0 * q2 * (1.0 - 2.0 * q2q2 - 2.0 * q3q3 - az)
+          + _4bz * q4 * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
+          + (_4bx * q3 + _4bz * q1) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
+          + (_4bx * q4 - _8bz * q2) * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
+        double s3 =
+          - _2q1 * (2.0 * q2q4 - _2q1q3 - ax)
+          + _2q4 * (2.0 * q1q2 + _2q3q4 - ay)
+          - 4.0 * q3 * (1.0 - 2.0 * q2q2 - 2.0 * q3q3 - az)
+          + (-_8bx * q3 - _4bz * q1) * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
+          + (_4bx * q2 + _4bz * q4) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
+          + (_4bx * q1 - _8bz * q3) * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
+        double s4 =
+            _2q2 * (2.0 * q2q4 - _2q1q3 - ax)
+          + _2q3 * (2.0 * q1q2 + _2q3q4 - ay)
+          + (-_8bx * q4 + _4bz * q2) * (_4bx * (0.5 - q3q3 - q4q4) + _4bz * (q2q4 - q1q3) - mx)
+          + (-_4bx * q1 + _4bz * q3) * (_4bx * (q2q3 - q1q4) + _4bz * (q1q2 + q3q4) - my)
+          + _4bx * q2 * (_4bx * (q1q3 + q2q4) + _4bz * (0.5 - q2q2 - q3q3) - mz);
+
+        norm = Math.sqrt(s1 * s1 + s2 * s2 + s3 * s3 + s4 * s4);
+        if (norm > 0.0) {
+          norm = 1.0 / norm;  //normalise gradient step
+          s1 *= norm;
+          s2 *= norm;
+          s3 *= norm;
+          s4 *= norm;
+        } else {
+          break;
+        }
+
+        // Convert gyro units to rad/sec
+        double gx = sample.gyro_x * kGyroScale;
+        double gy = sample.gyro_y * kGyroScale;
+        double gz = sample.gyro_z * kGyroScale;
+
+        // Compute rate of change of quaternion
+        double qDot1 = 0.5 * (-q2 * gx - q3 * gy - q4 * gz) - kBeta * s1;
+        double qDot2 = 0.5 * ( q1 * gx + q3 * gz - q4 * gy) - kBeta * s2;
+        double qDot3 = 0.5 * ( q1 * gy - q2 * gz + q4 * gx) - kBeta * s3;
+        double qDot4 = 0.5 * ( q1 * gz + q2 * gy - q3 * gx) - kBeta * s4;
+
+        // Integrate to yield quaternion
+        q1 += qDot1 * sample.dt;
+        q2 += qDot2 * sample.dt;
+        q3 += qDot3 * sample.dt;
+        q4 += qDot4 * sample.dt;
+
+        norm = Math.sqrt(q1 * q1 + q2 * q2 + q3 * q3 + q4 * q4);
+        if (norm > 0.0) {
+          norm = 1.0 / norm;  // normalise quaternion
+          q1 = q1 * norm;
+          q2 = q2 * norm;
+          q3 = q3 * norm;
+          q4 = q4 * norm;
+        }
+      } while(false);
+
+      setQuaternion(q1, q2, q3, q4);
+    }
+
+    private void setQuaternion(double q1, double q2, double q3, double q4) {
+      m_q1 = q1;
+      m_q2 = q2;
+      m_q3 = q3;
+      m_q4 = q4;
+
+      double xi = -Math.atan2(2*q2*q3 - 2*q1*q4, 2*(q1*q1) + 2*(q2*q2) - 1);
+      double theta = -Math.asin(2*q2*q4 + 2*q1*q3);
+      double rho = Math.atan2(2*q3*q4 - 2*q1*q2, 2*(q1*q1) + 2*(q4*q4) - 1);
+      xi = xi / Math.PI * 180.0;
+      theta = theta / Math.PI * 180.0;
+      rho = rho / Math.PI * 180.0;
+      theta = -theta;
+      if (rho < 0)
+        rho = 180 - Math.abs(rho);
+      else
+        rho = Math.abs(rho) - 180;
+
+      m_yaw = xi;
+      m_roll = theta;
+      m_pitch = rho;
+    }
+
+    @Override
+    public double getYaw() {
+      return m_yaw;
+    }
+
+    @Override
+    public double getPitch() {
+      return m_pitch;
+    }
+
+    @Override
+    public double getRoll() {
+      return m_roll;
+    }
+
+    @Override
+    public double getQuaternionW() {
+      return m_q1;
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+import org.junit.Test;
+
+import edu.wpi.first.wpilibj.smartdashboard.SendableBuilder;
+
+public class ADIS16448_MetricsTest {
+  private static final long kSecond = 1000000000L;
+
+  @Test
+  public void bucketEdges() {
+    // One bucket per value below the first octave with sub-buckets
+    for (int value = 0; value < 4; value++) {
+      assertEquals(value, ADIS16448_Metrics.Histogram.bucket(value));
+      assertEquals(value, ADIS16448_Metrics.Histogram.upperEdge(value));
+    }
+    // Four sub-buckets per octave from there: 4, 5, 6, 7 | 8-9, 10-11, ...
+    assertEquals(4, ADIS16448_Metrics.Histogram.bucket(4));
+    assertEquals(7, ADIS16448_Metrics.Histogram.bucket(7));
+    assertEquals(8, ADIS16448_Metrics.Histogram.bucket(8));
+    assertEquals(8, ADIS16448_Metrics.Histogram.bucket(9));
+    assertEquals(9, ADIS16448_Metrics.Histogram.bucket(10));
+    assertEquals(9, ADIS16448_Metrics.Histogram.upperEdge(8));
+    assertEquals(55, ADIS16448_Metrics.Histogram.upperEdge(ADIS16448_Metrics.Histogram.bucket(48)));
+
+    // Every edge is the last value of its bucket, up to the largest long
+    int last = ADIS16448_Metrics.Histogram.bucket(Long.MAX_VALUE);
+    assertTrue(last < ADIS16448_Metrics.Histogram.kBuckets);
+    assertEquals(Long.MAX_VALUE, ADIS16448_Metrics.Histogram.upperEdge(last));
+    for (int bucket = 0; bucket < last; bucket++) {
+      long edge = ADIS16448_Metrics.Histogram.upperEdge(bucket);
+      assertEquals("edge " + edge, bucket, ADIS16448_Metrics.Histogram.bucket(edge));
+      assertEquals("edge " + edge, bucket + 1, ADIS16448_Metrics.Histogram.bucket(edge + 1));
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    ADIS16448_Metrics.Histogram histogram = new ADIS16448_Metrics.Histogram();
+    assertEquals("empty", 0, histogram.getPercentile(0.99));
+    assertEquals(0.0, histogram.getMean(), 0.0);
+
+    histogram.record(0);
+    assertEquals(0, histogram.getPercentile(1.0));
+    histogram.reset();
+
+    for (int value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(50.5, histogram.getMean(), 1e-12);
+    assertEquals(100, histogram.getMax());
+    assertEquals("smallest", 1, histogram.getPercentile(0.0));
+    // The 50th value is in the 48-55 bucket
+    assertEquals(55, histogram.getPercentile(0.5));
+    // 100 is in the 96-111 bucket, capped at the largest value seen
+    assertEquals(100, histogram.getPercentile(0.99));
+    assertEquals(100, histogram.getPercentile(1.0));
+
+    // Negative values count as 0
+    histogram.reset();
+    histogram.record(-5);
+    assertEquals(1, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void overflow() {
+    ADIS16448_Metrics.Histogram histogram = new ADIS16448_Metrics.Histogram();
+    histogram.record(Long.MAX_VALUE);
+    histogram.record(Long.MAX_VALUE);
+    histogram.record(1);
+    assertEquals(Long.MAX_VALUE, histogram.getMax());
+    assertEquals(Long.MAX_VALUE, histogram.getPercentile(0.99));
+    assertEquals(1, histogram.getPercentile(0.2));
+    // The sum saturates instead of wrapping negative
+    assertTrue(histogram.getMean() > 0.0);
+  }
+
+  @Test
+  public void drainCounters() {
+    ADIS16448_Metrics metrics = new ADIS16448_Metrics();
+    long start = 5 * kSecond;
+    metrics.recordDrain(10, 0, 0, 0, 1, start);
+    assertEquals("one drain isn't a rate", 0.0, metrics.getPacketsPerSecond(), 0.0);
+    metrics.recordDrain(20, 2, 1, 0, 3, start + kSecond / 2);
+    assertEquals("under a second", 0.0, metrics.getPacketsPerSecond(), 0.0);
+    metrics.recordDrain(30, 1, 4, 2, 2, start + kSecond);
+
+    assertEquals(60, metrics.getPacketCount());
+    assertEquals(50.0, metrics.getPacketsPerSecond(), 1e-9);
+    assertEquals(3, metrics.getCrcFailureCount());
+    // The DMA and FIFO values are the latest totals, not sums
+    assertEquals(4, metrics.getDmaDroppedCount());
+    assertEquals(2, metrics.getFifoDroppedCount());
+    assertEquals(2, metrics.getFifoHighWaterMark());
+    assertEquals(3, metrics.getDrainBytes().getCount());
+    assertEquals(30 * ADIS16448_PacketDecoder.kPacketBytes, metrics.getDrainBytes().getMax());
+    assertEquals(20.0 * ADIS16448_PacketDecoder.kPacketBytes, metrics.getDrainBytes().getMean(), 1e-9);
+
+    // Next rate over the following second
+    metrics.recordDrain(100, 0, 4, 2, 2, start + 3 * kSecond);
+    assertEquals(50.0, metrics.getPacketsPerSecond(), 1e-9);
+
+    metrics.recordBadInterval();
+    assertEquals(1, metrics.getBadIntervalCount());
+    metrics.resetHistograms();
+    assertEquals(0, metrics.getDrainBytes().getCount());
+    assertEquals("counters keep running", 160, metrics.getPacketCount());
+  }
+
+  @Test
+  public void wakeJitter() {
+    ADIS16448_Metrics metrics = new ADIS16448_Metrics();
+    long start = kSecond;
+    // Intervals 1000, 1500, 1000, 1000: jitter is only known from the
+    // second interval on
+    metrics.recordWake(start);
+    metrics.recordWake(start + 1000);
+    assertEquals(0, metrics.getWakeJitter().getCount());
+    metrics.recordWake(start + 2500);
+    metrics.recordWake(start + 3500);
+    metrics.recordWake(start + 4500);
+    ADIS16448_Metrics.Histogram jitter = metrics.getWakeJitter();
+    assertEquals(3, jitter.getCount());
+    assertEquals(500, jitter.getMax());
+    assertEquals(1000.0 / 3.0, jitter.getMean(), 1e-9);
+    assertEquals(0, jitter.getPercentile(0.3));
+  }
+
+  @Test
+  public void dashboardProperties() {
+    ADIS16448_Metrics metrics = new ADIS16448_Metrics();
+    metrics.recordDrain(10, 1, 0, 0, 1, kSecond);
+    metrics.recordDrain(30, 0, 2, 3, 4, 2 * kSecond);
+    metrics.recordWake(kSecond);
+    metrics.recordWake(kSecond + 1000000);
+    metrics.recordWake(kSecond + 3000000);
+    metrics.recordBadInterval();
+    metrics.recordSample(2000, 7000);
+    metrics.recordSample(3000, 9000);
+
+    Map<String, DoubleSupplier> properties = new LinkedHashMap<>();
+    SendableBuilder builder = (SendableBuilder) Proxy.newProxyInstance(
+        SendableBuilder.class.getClassLoader(), new Class<?>[] {SendableBuilder.class},
+        (proxy, method, args) -> {
+          assertEquals("only numbers", "addDoubleProperty", method.getName());
+          assertNull("read only", args[2]);
+          properties.put((String) args[0], (DoubleSupplier) args[1]);
+          return null;
+        });
+    metrics.addProperties(builder);
+
+    assertEquals(List.of("PacketsPerSecond", "CrcFailures", "BadIntervals", "DmaDropped", "FifoDropped",
+        "FifoHighWater", "DrainBytesMean", "DrainBytesMax", "WakeJitterP99Us", "WakeJitterMaxUs",
+        "LatencyP50Ms", "LatencyP99Ms", "LatencyMaxMs", "CalculateMeanUs", "CalculateP99Us"),
+        List.copyOf(properties.keySet()));
+    assertEquals(30.0, properties.get("PacketsPerSecond").getAsDouble(), 1e-9);
+    assertEquals(1.0, properties.get("CrcFailures").getAsDouble(), 0.0);
+    assertEquals(1.0, properties.get("BadIntervals").getAsDouble(), 0.0);
+    assertEquals(2.0, properties.get("DmaDropped").getAsDouble(), 0.0);
+    assertEquals(3.0, properties.get("FifoDropped").getAsDouble(), 0.0);
+    assertEquals(4.0, properties.get("FifoHighWater").getAsDouble(), 0.0);
+    assertEquals(20.0 * ADIS16448_PacketDecoder.kPacketBytes, properties.get("DrainBytesMean").getAsDouble(), 1e-9);
+    assertEquals(30.0 * ADIS16448_PacketDecoder.kPacketBytes, properties.get("DrainBytesMax").getAsDouble(), 0.0);
+    // Nanoseconds and microseconds scaled to the dashboard units
+    assertEquals(1000.0, properties.get("WakeJitterMaxUs").getAsDouble(), 0.0);
+    assertEquals(1000.0, properties.get("WakeJitterP99Us").getAsDouble(), 0.0);
+    assertEquals(3.0, properties.get("LatencyMaxMs").getAsDouble(), 0.0);
+    assertEquals(3.0, properties.get("LatencyP99Ms").getAsDouble(), 0.0);
+    assertEquals(8.0, properties.get("CalculateMeanUs").getAsDouble(), 1e-9);
+    assertEquals(9.0, properties.get("CalculateP99Us").getAsDouble(), 0.0);
+
+    // The values are read when the dashboard polls, not when registered
+    metrics.recordBadInterval();
+    assertEquals(2.0, properties.get("BadIntervals").getAsDouble(), 0.0);
+  }
+}
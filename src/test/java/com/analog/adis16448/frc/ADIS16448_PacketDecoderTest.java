@@ -0,0 +1,247 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ADIS16448_PacketDecoderTest {
+  private static final long kWrap = 1L << 32;
+  private static final double kPeriod = 1.0 / 102.4;
+  // Packets per simulated DMA drain
+  private static final int kDrainPackets = 64;
+
+  /**
+   * Timestamps keep counting up across the 32-bit wrap, and a time
+   * reference places the first packet in the right wrap period.
+   */
+  @Test
+  public void timestampsExtendAcrossWrap() {
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(2);
+    ADIS16448_TestPackets.put(buf, 0, kWrap - 4000, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 25.0);
+    ADIS16448_TestPackets.put(buf, 1, 5766, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 25.0);
+    ADIS16448_PacketDecoder decoder = new ADIS16448_PacketDecoder();
+    assertTrue(decoder.decode(buf, 0));
+    assertEquals(kWrap - 4000, decoder.timestamp);
+    assertTrue(decoder.decode(buf, ADIS16448_PacketDecoder.kPacketBytes));
+    assertEquals(kWrap + 5766, decoder.timestamp);
+
+    decoder = new ADIS16448_PacketDecoder();
+    decoder.setTimeReference(3 * kWrap + 1000);
+    assertTrue(decoder.decode(buf, 0));
+    assertEquals(3 * kWrap - 4000, decoder.timestamp);
+    assertTrue(decoder.decode(buf, ADIS16448_PacketDecoder.kPacketBytes));
+    assertEquals(3 * kWrap + 5766, decoder.timestamp);
+  }
+
+  /**
+   * dt stays one sample period across the 32-bit timestamp wrap.
+   */
+  @Test
+  public void intervalAcrossWrap() {
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(2);
+    ADIS16448_TestPackets.put(buf, 0, kWrap - 4000, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 25.0);
+    ADIS16448_TestPackets.put(buf, 1, 5766, 0.0, 0.0, 0.0, 0.0, 0.0, 1.0, 25.0);
+    ADIS16448_PacketDecoder decoder = new ADIS16448_PacketDecoder();
+    assertTrue(decoder.decode(buf, 0));
+    long previous = decoder.timestamp;
+    assertTrue(decoder.decode(buf, ADIS16448_PacketDecoder.kPacketBytes));
+    assertEquals(0.009766, ADIS16448_PacketDecoder.interval(decoder.timestamp - previous, kPeriod), 1e-9);
+  }
+
+  @Test
+  public void badIntervalsAreNotIntegrated() {
+    assertEquals(0.0, ADIS16448_PacketDecoder.interval(0, kPeriod), 0.0);
+    assertEquals(0.0, ADIS16448_PacketDecoder.interval(-9766, kPeriod), 0.0);
+    assertEquals(0.0, ADIS16448_PacketDecoder.interval(-kWrap + 9766, kPeriod), 0.0);
+    assertEquals(0.0, ADIS16448_PacketDecoder.interval(2000000, kPeriod), 0.0);
+    // A few lost packets are still integrated over
+    assertEquals(0.039064, ADIS16448_PacketDecoder.interval(39064, kPeriod), 1e-9);
+  }
+
+  @Test
+  public void decodesScaledValues() {
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(1);
+    ADIS16448_TestPackets.put(buf, 0, 1000, 1.0, -2.0, 30.0, 0.1, -0.2, 1.0, 40.0);
+    ADIS16448_PacketDecoder decoder = new ADIS16448_PacketDecoder();
+    assertTrue(decoder.decode(buf, 0));
+    assertEquals(1000, decoder.timestamp);
+    assertEquals(1.0, decoder.gyro_x, 0.04);
+    assertEquals(-2.0, decoder.gyro_y, 0.04);
+    assertEquals(30.0, decoder.gyro_z, 0.04);
+    assertEquals(0.1, decoder.accel_x, 0.001);
+    assertEquals(-0.2, decoder.accel_y, 0.001);
+    assertEquals(1.0, decoder.accel_z, 0.001);
+    assertEquals(40.0, decoder.getTemp(), 0.04);
+    // A corrupted byte fails the CRC
+    buf.putInt(4 * ADIS16448_PacketDecoder.kGyroZWord, buf.getInt(4 * ADIS16448_PacketDecoder.kGyroZWord) ^ 1);
+    assertFalse(decoder.decode(buf, 0));
+  }
+
+  @Test
+  public void validateFlagsCorruptedPackets() {
+    ByteBuffer buf = drainBuffer(kDrainPackets);
+    for (int n = 5; n < kDrainPackets; n += 16) {
+      corrupt(buf, n);
+    }
+    boolean[] valid = new boolean[kDrainPackets];
+    assertEquals(4, ADIS16448_PacketDecoder.validate(buf, kDrainPackets, valid));
+    for (int n = 0; n < kDrainPackets; n++) {
+      assertEquals(n % 16 != 5, valid[n]);
+    }
+  }
+
+  /**
+   * The batched validate() agrees with the per-packet check it replaced.
+   */
+  @Test
+  public void validateMatchesPerPacketCheck() {
+    final int packets = 1024;
+    ByteBuffer buf = benchmarkBuffer(packets);
+    boolean[] valid = new boolean[packets];
+    int[] data_subset = new int[28];
+    assertEquals(packets / 64, ADIS16448_PacketDecoder.validate(buf, packets, valid));
+    for (int n = 0; n < packets; n++) {
+      assertEquals(valid[n], copyAndCheck(buf, n * ADIS16448_PacketDecoder.kPacketBytes, data_subset));
+    }
+  }
+
+  /**
+   * Packets/second through the batched validate(), against the per-packet
+   * copy and byte loop it replaced.  One packet in 64 has a bad CRC.
+   */
+  @Test
+  public void benchmarkValidate() {
+    ADIS16448_Timing.assumeBenchmarks();
+    final int packets = 1024;
+    ByteBuffer buf = benchmarkBuffer(packets);
+    boolean[] valid = new boolean[packets];
+    double batched = ADIS16448_Timing.nanosPerOp("CRC validate, batched", packets,
+        ops -> ADIS16448_PacketDecoder.validate(buf, ops, valid));
+    int[] data_subset = new int[28];
+    double copied = ADIS16448_Timing.nanosPerOp("CRC validate, copy per packet", packets, ops -> {
+      int failures = 0;
+      for (int n = 0; n < ops; n++) {
+        if (!copyAndCheck(buf, n * ADIS16448_PacketDecoder.kPacketBytes, data_subset)) {
+          failures++;
+        }
+      }
+      return failures;
+    });
+    System.out.printf("%-40s %10.0f packets/s%n", "CRC validate, batched", 1e9 / batched);
+    System.out.printf("%-40s %10.0f packets/s%n", "CRC validate, copy per packet", 1e9 / copied);
+  }
+
+  // A drain with one packet in 64 corrupted
+  private static ByteBuffer benchmarkBuffer(int packets) {
+    ByteBuffer buf = drainBuffer(packets);
+    for (int n = 0; n < packets; n += 64) {
+      corrupt(buf, n);
+    }
+    return buf;
+  }
+
+  // The check validate() replaced: copy the 28 data bytes, run the CRC over
+  // the copy and read the packet's CRC through a new buffer
+  private static boolean copyAndCheck(ByteBuffer buf, int offset, int[] data_subset) {
+    for (int j = 1; j < 29; j++) {
+      data_subset[j - 1] = buf.getInt(offset + 4 * j);
+    }
+    int calc_crc = 0x0000FFFF;
+    for (int k = 4; k < 26; k += 2) {
+      calc_crc = (calc_crc >>> 8) ^ ADIS16448_PacketDecoder.kCRCTable[(calc_crc & 0xFF) ^ data_subset[k + 1]];
+      calc_crc = (calc_crc >>> 8) ^ ADIS16448_PacketDecoder.kCRCTable[(calc_crc & 0xFF) ^ data_subset[k]];
+    }
+    calc_crc = ~calc_crc & 0xFFFF;
+    calc_crc = ((calc_crc << 8) | (calc_crc >> 8)) & 0xFFFF;
+    ByteBuffer crc = ByteBuffer.allocateDirect(2);
+    crc.put((byte) data_subset[26]);
+    crc.put((byte) data_subset[27]);
+    return calc_crc == (crc.getShort(0) & 0xFFFF);
+  }
+
+  private static ByteBuffer drainBuffer(int packets) {
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(packets);
+    for (int n = 0; n < packets; n++) {
+      ADIS16448_TestPackets.put(buf, n, 1000 + n * 9766L, 0.1 * n, -0.2, 3.0, 0.01, 0.0, 1.0, 30.0);
+    }
+    return buf;
+  }
+
+  // Flip one bit of a packet's gyro Z so its CRC no longer matches
+  private static void corrupt(ByteBuffer buf, int packet) {
+    int at = packet * ADIS16448_PacketDecoder.kPacketBytes + 4 * ADIS16448_PacketDecoder.kGyroZWord;
+    buf.putInt(at, buf.getInt(at) ^ 1);
+  }
+
+  /**
+   * Validating, decoding and handing packets to the sample FIFO allocates
+   * nothing once the code is warmed up.
+   */
+  @Test
+  public void decodeAndRingDoNotAllocate() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    assumeTrue(allocations.isThreadAllocatedMemorySupported());
+    allocations.setThreadAllocatedMemoryEnabled(true);
+
+    ByteBuffer buf = drainBuffer(kDrainPackets);
+    ADIS16448_PacketDecoder decoder = new ADIS16448_PacketDecoder();
+    ADIS16448_SampleRing ring = new ADIS16448_SampleRing(kDrainPackets);
+    boolean[] valid = new boolean[kDrainPackets];
+    double[] sum = new double[1];
+
+    // Warm up so the JIT has compiled the path (and any lazy class setup is done)
+    for (int i = 0; i < 20000; i++) {
+      drain(buf, decoder, ring, valid, sum);
+    }
+
+    long thread = Thread.currentThread().getId();
+    final int drains = 1000;
+    long before = allocations.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < drains; i++) {
+      drain(buf, decoder, ring, valid, sum);
+    }
+    long allocated = allocations.getThreadAllocatedBytes(thread) - before;
+    assertTrue(sum[0] != 0.0);
+    assertEquals("bytes allocated per packet", 0.0, (double) allocated / (drains * kDrainPackets), 0.0);
+  }
+
+  // One acquire drain followed by the calculate thread taking the samples
+  private static void drain(ByteBuffer buf, ADIS16448_PacketDecoder decoder,
+                            ADIS16448_SampleRing ring, boolean[] valid, double[] sum) {
+    ADIS16448_PacketDecoder.validate(buf, kDrainPackets, valid);
+    for (int n = 0; n < kDrainPackets; n++) {
+      if (valid[n]) {
+        decoder.extract(buf, n * ADIS16448_PacketDecoder.kPacketBytes);
+        int slot = ring.claim();
+        if (slot >= 0) {
+          ring.set(slot, ADIS16448_SampleRing.kGyroX, decoder.gyro_x);
+          ring.set(slot, ADIS16448_SampleRing.kGyroZ, decoder.gyro_z);
+          ring.set(slot, ADIS16448_SampleRing.kTemp, decoder.temp_raw);
+          ring.set(slot, ADIS16448_SampleRing.kTimestamp, decoder.timestamp / 1000000.0);
+          ring.publish();
+        }
+      }
+    }
+    int count = ring.available();
+    for (int i = 0; i < count; i++) {
+      int slot = ring.peek(i);
+      sum[0] += ring.get(slot, ADIS16448_SampleRing.kGyroX) + ring.get(slot, ADIS16448_SampleRing.kTimestamp);
+    }
+    ring.release(count);
+  }
+}
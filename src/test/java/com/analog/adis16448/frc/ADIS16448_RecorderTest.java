@@ -0,0 +1,112 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records DMA packets with {@link ADIS16448_Recorder} and reads them back
+ * with {@link ADIS16448_FileTransport}.
+ */
+public class ADIS16448_RecorderTest {
+  private static final int kSmplPrd = 0x0301;
+  private static final int kSensAvg = 0x0402;
+  private static final long kPeriodUs = 9766;
+
+  private Path m_log;
+
+  @Before
+  public void createLog() throws IOException {
+    m_log = Files.createTempFile("adis16448", ".bin");
+  }
+
+  @After
+  public void deleteLog() throws IOException {
+    Files.deleteIfExists(m_log);
+  }
+
+  // Packets with a different value in every field
+  private static ByteBuffer packets(int count) {
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(count);
+    for (int n = 0; n < count; n++) {
+      ADIS16448_TestPackets.put(buf, n, 0xFFFF0000L + n * kPeriodUs,
+          0.1 * n, -0.2 * n, 0.3 * n, 0.001 * n, -0.002 * n, 1.0, 25.0 + 0.01 * n);
+    }
+    return buf;
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    final int count = 3000;
+    final int chunk = 64;
+    ByteBuffer buf = packets(count);
+    ADIS16448_Recorder recorder = new ADIS16448_Recorder(m_log.toString(), count, kSmplPrd, kSensAvg);
+    // Several calls, as the acquire thread makes them
+    for (int start = 0; start < count; start += chunk) {
+      buf.position(start * ADIS16448_PacketDecoder.kPacketBytes);
+      recorder.record(buf.slice().order(buf.order()), Math.min(chunk, count - start));
+    }
+    recorder.close();
+    assertEquals(0, recorder.getDroppedFrames());
+    assertEquals(ADIS16448_Recorder.kHeaderBytes + count * ADIS16448_Recorder.kFrameBytes,
+        recorder.getBytesWritten());
+    assertEquals(recorder.getBytesWritten(), Files.size(m_log));
+
+    try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(m_log.toString())) {
+      assertEquals(kSmplPrd, source.getSmplPrd());
+      assertEquals(kSensAvg, source.getSensAvg());
+      assertEquals(1.0 / 102.4, source.getSamplePeriod(), 1e-12);
+      assertReadBack(source, buf, count);
+    }
+  }
+
+  @Test
+  public void fullRingDropsAndCounts() throws IOException {
+    final int count = 10;
+    ByteBuffer buf = packets(count);
+    // Room for 4 frames; one call can't wait for the writer to make more
+    ADIS16448_Recorder recorder = new ADIS16448_Recorder(m_log.toString(), 4, kSmplPrd, kSensAvg);
+    recorder.record(buf, count);
+    assertEquals(count - 4, recorder.getDroppedFrames());
+    recorder.close();
+
+    // The first packets are kept, the rest are missing rather than corrupt
+    try (ADIS16448_FileTransport source = new ADIS16448_FileTransport(m_log.toString())) {
+      assertReadBack(source, buf, 4);
+    }
+  }
+
+  // Read the file to its end and compare every word with the originals
+  private static void assertReadBack(ADIS16448_FileTransport source, ByteBuffer expected, int count) {
+    ByteBuffer read = ADIS16448_TestPackets.allocate(100);
+    int total = 0;
+    int packets;
+    while ((packets = source.read(read, 100)) > 0) {
+      for (int n = 0; n < packets; n++) {
+        for (int word = 0; word < ADIS16448_PacketDecoder.kPacketWords; word++) {
+          int offset = 4 * word;
+          assertEquals("packet " + (total + n) + " word " + word,
+              expected.getInt((total + n) * ADIS16448_PacketDecoder.kPacketBytes + offset),
+              read.getInt(n * ADIS16448_PacketDecoder.kPacketBytes + offset));
+        }
+      }
+      total += packets;
+    }
+    assertEquals(-1, packets);
+    assertEquals(count, total);
+  }
+}
@@ -0,0 +1,131 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ADIS16448_SampleListenersTest {
+  private final ADIS16448_SampleListeners m_listeners = new ADIS16448_SampleListeners();
+  private final double[] m_state = new ImuSnapshot().m_values;
+  private final ImuSnapshot m_sample = new ImuSnapshot();
+
+  private void dispatch(double timestamp) {
+    m_state[ImuSnapshot.kTimestamp] = timestamp;
+    m_listeners.dispatch(m_state, m_sample);
+  }
+
+  @Test
+  public void addAndRemoveDuringDispatch() {
+    List<String> calls = new ArrayList<>();
+    ImuSampleListener late = sample -> calls.add("late " + sample.getTimestamp());
+    ImuSampleListener second = sample -> calls.add("second " + sample.getTimestamp());
+    ImuSampleListener first = new ImuSampleListener() {
+      @Override
+      public void onSample(ImuSnapshot sample) {
+        calls.add("first " + sample.getTimestamp());
+        // Changes made mid-dispatch only apply to the next sample
+        m_listeners.remove(this);
+        m_listeners.remove(second);
+        m_listeners.add(late);
+      }
+    };
+    m_listeners.add(first);
+    m_listeners.add(second);
+    m_listeners.add(second);
+
+    dispatch(1.0);
+    dispatch(2.0);
+    assertEquals(List.of("first 1.0", "second 1.0", "late 2.0"), calls);
+  }
+
+  @Test
+  public void waitersWokenBeforeListenersRun() throws InterruptedException {
+    CountDownLatch woken = new CountDownLatch(1);
+    Thread waiter = new Thread(() -> {
+      if (m_listeners.awaitNext(5.0)) {
+        woken.countDown();
+      }
+    });
+    // The listener blocks until the waiter has returned, which can only
+    // happen if it was woken first
+    boolean[] saw_waiter = new boolean[1];
+    m_listeners.add(sample -> {
+      try {
+        saw_waiter[0] = woken.await(2, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    waiter.start();
+    while (waiter.getState() != Thread.State.TIMED_WAITING) {
+      Thread.yield();
+    }
+    dispatch(1.0);
+    waiter.join();
+    assertTrue(saw_waiter[0]);
+  }
+
+  @Test
+  public void awaitTimesOut() {
+    long start = System.nanoTime();
+    assertFalse(m_listeners.awaitNext(0.05));
+    assertTrue(System.nanoTime() - start >= 50000000L);
+  }
+
+  @Test
+  public void awaitInterrupted() {
+    Thread.currentThread().interrupt();
+    assertFalse(m_listeners.awaitNext(5.0));
+    // The interrupt is kept for the caller
+    assertTrue(Thread.interrupted());
+  }
+
+  @Test
+  public void timingPerListener() {
+    int[] fast_calls = new int[1];
+    ImuSampleListener fast = sample -> fast_calls[0]++;
+    ImuSampleListener slow = sample -> {
+      long end = System.nanoTime() + 2000000L;
+      while (System.nanoTime() < end) {
+        Thread.onSpinWait();
+      }
+    };
+    ImuSampleListener failing = sample -> {
+      throw new IllegalStateException("listener bug");
+    };
+    assertEquals(0.0, m_listeners.getTime(fast), 0.0);
+    m_listeners.add(fast);
+    m_listeners.add(slow);
+    assertEquals("not run yet", 0.0, m_listeners.getTime(slow), 0.0);
+    for (int i = 0; i < 5; i++) {
+      dispatch(i);
+    }
+
+    // Each listener is timed on its own
+    assertTrue(m_listeners.getTime(slow) >= 0.002);
+    assertTrue(m_listeners.getMaxTime(slow) >= m_listeners.getTime(slow));
+    assertTrue(m_listeners.getTime(fast) < m_listeners.getTime(slow));
+    // A listener that throws is reported and the next still runs
+    m_listeners.remove(fast);
+    m_listeners.add(failing);
+    m_listeners.add(fast);
+    dispatch(5.0);
+    assertEquals(6, fast_calls[0]);
+    m_listeners.remove(slow);
+    assertEquals("removed", 0.0, m_listeners.getMaxTime(slow), 0.0);
+  }
+}
@@ -0,0 +1,319 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+public class ADIS16448_SampleRingTest {
+  // Depth of the FIFO the ring replaced
+  private static final int kDepth = 12;
+  private static final int kThroughputSamples = 200000;
+  private static final int kLatencySamples = 2000;
+  // Gap between samples in the latency runs, so the consumer is parked
+  private static final long kLatencyGapNanos = 200000;
+  private static final long kAwaitNanos = 10000000;
+  // Fastest-rate pipeline run: length, and the time between drains of the
+  // polling drain mode (the burstiest hand-off)
+  private static final double kPipelineSeconds = 2.0;
+  private static final long kDrainNanos = 20000000;
+
+  /**
+   * The locked FIFO the ring replaced: a ReentrantLock and Condition around
+   * a fixed array, taken by both threads for every sample.
+   */
+  private static final class LockedFifo {
+    private final double[][] m_slots = new double[kDepth][ADIS16448_SampleRing.kFields];
+    private final ReentrantLock m_mutex = new ReentrantLock();
+    private final Condition m_not_empty = m_mutex.newCondition();
+    private int m_head = 0;
+    private int m_count = 0;
+
+    boolean offer(double sequence, double stamp) {
+      m_mutex.lock();
+      try {
+        if (m_count == kDepth) {
+          return false;
+        }
+        double[] slot = m_slots[(m_head + m_count) % kDepth];
+        slot[ADIS16448_SampleRing.kGyroX] = sequence;
+        slot[ADIS16448_SampleRing.kTimestamp] = stamp;
+        m_count++;
+        m_not_empty.signal();
+        return true;
+      } finally {
+        m_mutex.unlock();
+      }
+    }
+
+    // Wait for a sample and store its values in {@code out}
+    boolean take(double[] out) throws InterruptedException {
+      m_mutex.lock();
+      try {
+        while (m_count == 0) {
+          if (!m_not_empty.await(kAwaitNanos, TimeUnit.NANOSECONDS)) {
+            return false;
+          }
+        }
+        double[] slot = m_slots[m_head];
+        out[ADIS16448_SampleRing.kGyroX] = slot[ADIS16448_SampleRing.kGyroX];
+        out[ADIS16448_SampleRing.kTimestamp] = slot[ADIS16448_SampleRing.kTimestamp];
+        m_head = (m_head + 1) % kDepth;
+        m_count--;
+        return true;
+      } finally {
+        m_mutex.unlock();
+      }
+    }
+  }
+
+  // Producer side of one hand-off; yields while the FIFO is full, so the
+  // benchmark also works on a single core
+  private interface Producer {
+    void send(double sequence, double stamp);
+  }
+
+  @Test
+  public void handsOverEverySampleInOrder() throws InterruptedException {
+    ADIS16448_SampleRing ring = new ADIS16448_SampleRing(kDepth);
+    Thread producer = startRingProducer(ring, 100000, 0);
+    double expected = 0;
+    while (expected < 100000) {
+      int available = ring.await(kAwaitNanos);
+      for (int i = 0; i < available; i++) {
+        assertEquals(expected++, ring.get(ring.peek(i), ADIS16448_SampleRing.kGyroX), 0.0);
+      }
+      ring.release(available);
+    }
+    producer.join();
+    assertTrue(ring.getHighWaterMark() <= ring.capacity());
+  }
+
+  @Test
+  public void fullRingDropsAndCounts() {
+    ADIS16448_SampleRing ring = new ADIS16448_SampleRing(kDepth);
+    for (int i = 0; i < ring.capacity(); i++) {
+      ring.set(ring.claim(), ADIS16448_SampleRing.kGyroX, i);
+      ring.publish();
+    }
+    assertEquals(-1, ring.claim());
+    assertEquals(1, ring.getOverflowCount());
+    assertEquals(ring.capacity(), ring.getHighWaterMark());
+  }
+
+  /**
+   * At 819.2 SPS the calculate stage keeps up through a FIFO of the depth
+   * the IMU picks for that rate, so getDroppedSampleCount() (the ring's
+   * overflow count) stays 0.  Samples arrive in 20 ms drains and each one
+   * gets the per-sample work of calculate() with the slowest filter.
+   */
+  @Test
+  public void keepsUpAtFastestSampleRate() throws InterruptedException {
+    ADIS16448_IMU.SampleRate rate = ADIS16448_IMU.SampleRate.k819_2SPS;
+    ADIS16448_SampleRing ring = new ADIS16448_SampleRing(ADIS16448_IMU.defaultFifoDepth(rate));
+    final int samples = (int) (kPipelineSeconds * rate.getSamplesPerSecond());
+    final double period = 1.0 / rate.getSamplesPerSecond();
+
+    Thread producer = new Thread(() -> {
+      long start = System.nanoTime();
+      int sent = 0;
+      while (sent < samples) {
+        LockSupport.parkNanos(kDrainNanos);
+        // Every packet the IMU has sent since the last drain
+        int due = (int) Math.min(samples, (System.nanoTime() - start) / 1e9 / period);
+        for (; sent < due; sent++) {
+          int slot = ring.claim();
+          if (slot >= 0) {
+            ring.set(slot, ADIS16448_SampleRing.kGyroZ, 10.0);
+            ring.set(slot, ADIS16448_SampleRing.kAccelZ, 1.0);
+            ring.set(slot, ADIS16448_SampleRing.kMagX, 200.0);
+            ring.set(slot, ADIS16448_SampleRing.kDt, period);
+            ring.set(slot, ADIS16448_SampleRing.kTimestamp, sent * period);
+            ring.publish();
+          }
+        }
+      }
+    }, "IMU acquire test");
+    producer.setDaemon(true);
+    producer.start();
+
+    FusionFilter filter = ADIS16448_IMU.createFilter(ADIS16448_IMU.AHRSAlgorithm.kKalman, ADIS16448_IMU.Axis.kZ);
+    ADIS16448_History history = new ADIS16448_History((int) Math.ceil(rate.getSamplesPerSecond() * 2.0) + 1);
+    ADIS16448_IMU.Sample sample = new ADIS16448_IMU.Sample();
+    double[] state = new ImuSnapshot().m_values;
+    double[] published = new ImuSnapshot().m_values;
+    int received = 0;
+    while (received < samples && (producer.isAlive() || ring.available() > 0)) {
+      int available = ring.await(kAwaitNanos);
+      for (int i = 0; i < available; i++) {
+        int slot = ring.peek(i);
+        sample.gyro_z = ring.get(slot, ADIS16448_SampleRing.kGyroZ);
+        sample.accel_z = ring.get(slot, ADIS16448_SampleRing.kAccelZ);
+        sample.mag_x = ring.get(slot, ADIS16448_SampleRing.kMagX);
+        sample.dt = ring.get(slot, ADIS16448_SampleRing.kDt);
+        state[ImuSnapshot.kRateZ] = sample.gyro_z;
+        state[ImuSnapshot.kTimestamp] = ring.get(slot, ADIS16448_SampleRing.kTimestamp);
+        filter.update(sample);
+        state[ImuSnapshot.kYaw] = filter.getYaw();
+        state[ImuSnapshot.kPitch] = filter.getPitch();
+        state[ImuSnapshot.kRoll] = filter.getRoll();
+        state[ImuSnapshot.kQuaternionW] = filter.getQuaternionW();
+        System.arraycopy(state, 0, published, 0, ImuSnapshot.kValues);
+        history.add(state);
+      }
+      ring.release(available);
+      received += available;
+    }
+    producer.join();
+    assertEquals(0, ring.getOverflowCount());
+    assertEquals(samples, received);
+  }
+
+  /**
+   * Time per sample through each FIFO with the producer sending as fast as
+   * the consumer drains.  The first two rounds are warm-up.
+   */
+  @Test
+  public void benchmarkThroughput() throws InterruptedException {
+    ADIS16448_Timing.assumeBenchmarks();
+    for (int round = 0; round < 3; round++) {
+      double ring = ringThroughput();
+      double locked = lockedThroughput();
+      if (round == 2) {
+        System.out.printf("%-40s %10.1f ns/sample%n", "SPSC ring throughput", ring);
+        System.out.printf("%-40s %10.1f ns/sample%n", "Locked FIFO throughput", locked);
+      }
+    }
+  }
+
+  /**
+   * Time from publishing a sample to the parked consumer having it, with
+   * samples far enough apart that the consumer parks between them.
+   */
+  @Test
+  public void benchmarkHandOffLatency() throws InterruptedException {
+    ADIS16448_Timing.assumeBenchmarks();
+    ADIS16448_Metrics.Histogram ring = ringLatency();
+    ADIS16448_Metrics.Histogram locked = lockedLatency();
+    System.out.printf("%-40s %10.1f us p50 %8.1f us p99%n", "SPSC ring hand-off",
+        ring.getPercentile(0.5) / 1000.0, ring.getPercentile(0.99) / 1000.0);
+    System.out.printf("%-40s %10.1f us p50 %8.1f us p99%n", "Locked FIFO hand-off",
+        locked.getPercentile(0.5) / 1000.0, locked.getPercentile(0.99) / 1000.0);
+    assertEquals(kLatencySamples, ring.getCount());
+    assertEquals(kLatencySamples, locked.getCount());
+  }
+
+  private static double ringThroughput() throws InterruptedException {
+    ADIS16448_SampleRing ring = new ADIS16448_SampleRing(kDepth);
+    long start = System.nanoTime();
+    Thread producer = startRingProducer(ring, kThroughputSamples, 0);
+    int received = 0;
+    while (received < kThroughputSamples) {
+      int available = ring.await(kAwaitNanos);
+      for (int i = 0; i < available; i++) {
+        ADIS16448_Timing.s_sink = ring.get(ring.peek(i), ADIS16448_SampleRing.kGyroX);
+      }
+      ring.release(available);
+      received += available;
+    }
+    producer.join();
+    return (double) (System.nanoTime() - start) / kThroughputSamples;
+  }
+
+  private static double lockedThroughput() throws InterruptedException {
+    LockedFifo fifo = new LockedFifo();
+    double[] out = new double[ADIS16448_SampleRing.kFields];
+    long start = System.nanoTime();
+    Thread producer = startLockedProducer(fifo, kThroughputSamples, 0);
+    int received = 0;
+    while (received < kThroughputSamples) {
+      if (fifo.take(out)) {
+        ADIS16448_Timing.s_sink = out[ADIS16448_SampleRing.kGyroX];
+        received++;
+      }
+    }
+    producer.join();
+    return (double) (System.nanoTime() - start) / kThroughputSamples;
+  }
+
+  private static ADIS16448_Metrics.Histogram ringLatency() throws InterruptedException {
+    ADIS16448_SampleRing ring = new ADIS16448_SampleRing(kDepth);
+    ADIS16448_Metrics.Histogram latency = new ADIS16448_Metrics.Histogram();
+    Thread producer = startRingProducer(ring, kLatencySamples, kLatencyGapNanos);
+    int received = 0;
+    while (received < kLatencySamples) {
+      int available = ring.await(kAwaitNanos);
+      long now = System.nanoTime();
+      for (int i = 0; i < available; i++) {
+        latency.record(now - (long) ring.get(ring.peek(i), ADIS16448_SampleRing.kTimestamp));
+      }
+      ring.release(available);
+      received += available;
+    }
+    producer.join();
+    return latency;
+  }
+
+  private static ADIS16448_Metrics.Histogram lockedLatency() throws InterruptedException {
+    LockedFifo fifo = new LockedFifo();
+    ADIS16448_Metrics.Histogram latency = new ADIS16448_Metrics.Histogram();
+    double[] out = new double[ADIS16448_SampleRing.kFields];
+    Thread producer = startLockedProducer(fifo, kLatencySamples, kLatencyGapNanos);
+    int received = 0;
+    while (received < kLatencySamples) {
+      if (fifo.take(out)) {
+        latency.record(System.nanoTime() - (long) out[ADIS16448_SampleRing.kTimestamp]);
+        received++;
+      }
+    }
+    producer.join();
+    return latency;
+  }
+
+  private static Thread startRingProducer(ADIS16448_SampleRing ring, int samples, long gap_nanos) {
+    return startProducer(samples, gap_nanos, (sequence, stamp) -> {
+      int slot;
+      while ((slot = ring.claim()) < 0) {
+        Thread.yield();
+      }
+      ring.set(slot, ADIS16448_SampleRing.kGyroX, sequence);
+      ring.set(slot, ADIS16448_SampleRing.kTimestamp, stamp);
+      ring.publish();
+    });
+  }
+
+  private static Thread startLockedProducer(LockedFifo fifo, int samples, long gap_nanos) {
+    return startProducer(samples, gap_nanos, (sequence, stamp) -> {
+      while (!fifo.offer(sequence, stamp)) {
+        Thread.yield();
+      }
+    });
+  }
+
+  // Timestamps are System.nanoTime() values, exact in a double for ~100 days
+  private static Thread startProducer(int samples, long gap_nanos, Producer producer) {
+    Thread thread = new Thread(() -> {
+      for (int i = 0; i < samples; i++) {
+        if (gap_nanos > 0) {
+          LockSupport.parkNanos(gap_nanos);
+        }
+        producer.send(i, System.nanoTime());
+      }
+    }, "FIFO test producer");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+}
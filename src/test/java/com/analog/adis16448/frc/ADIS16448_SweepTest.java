@@ -0,0 +1,164 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Sweeps a synthetic corpus: recordings of an IMU yawing back and forth
+ * under a steady earth field, with a biased, noisy z gyro.
+ */
+public class ADIS16448_SweepTest {
+  private static final int kSmplPrd = 0x0301;
+  private static final int kSensAvg = 0x0402;
+  private static final double kPeriod = 1.0 / 102.4;
+  private static final long kPeriodUs = 9766;
+  private static final double kDuration = 30.0;
+  private static final double kGyroBias = 0.5;
+
+  // Record each log and load it back
+  private static List<ADIS16448_Sweep.Log> corpus() throws IOException {
+    List<ADIS16448_Sweep.Log> logs = new ArrayList<>();
+    for (int seed = 1; seed <= 2; seed++) {
+      Path path = Files.createTempFile("adis16448", ".bin");
+      try {
+        writeLog(path, seed);
+        logs.add(new ADIS16448_Sweep.Log(path));
+      } finally {
+        Files.deleteIfExists(path);
+      }
+    }
+    return logs;
+  }
+
+  // Yaw = 30 sin(2 pi t / period) degrees; the field turns with it
+  private static void writeLog(Path path, int seed) throws IOException {
+    Random random = new Random(seed);
+    int total = (int) (kDuration / kPeriod);
+    double swing = 3.0 + seed;
+    ByteBuffer buf = ADIS16448_TestPackets.allocate(1);
+    ADIS16448_Recorder recorder = new ADIS16448_Recorder(path.toString(), total, kSmplPrd, kSensAvg);
+    try {
+      for (int n = 0; n < total; n++) {
+        double t = n * kPeriod;
+        double w = 2.0 * Math.PI / swing;
+        double yaw = Math.toRadians(30.0 * Math.sin(w * t));
+        double rate = 30.0 * w * Math.cos(w * t);
+        ADIS16448_TestPackets.put(buf, 0, 1000000 + n * kPeriodUs,
+            0.1 * random.nextGaussian(), 0.1 * random.nextGaussian(),
+            rate + kGyroBias + 0.1 * random.nextGaussian(),
+            0.002 * random.nextGaussian(), 0.002 * random.nextGaussian(), 1.0,
+            200.0 * Math.cos(yaw), -200.0 * Math.sin(yaw), 400.0, 25.0);
+        recorder.record(buf, 1);
+      }
+    } finally {
+      recorder.close();
+    }
+    assertEquals(0, recorder.getDroppedFrames());
+  }
+
+  private static ADIS16448_Sweep.Setting madgwick(double beta) {
+    return new ADIS16448_Sweep.Setting(ADIS16448_IMU.AHRSAlgorithm.kMadgwick, beta, 0.0);
+  }
+
+  private static ADIS16448_Sweep.Setting complementary(double tau_acc, double tau_mag) {
+    return new ADIS16448_Sweep.Setting(ADIS16448_IMU.AHRSAlgorithm.kComplementary, tau_acc, tau_mag);
+  }
+
+  private static List<ADIS16448_Sweep.Setting> sweep(List<ADIS16448_Sweep.Log> logs,
+                                                     List<ADIS16448_Sweep.Setting> settings, int threads) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      return new ADIS16448_Sweep(logs, settings).run(pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void ranking() throws IOException {
+    ADIS16448_Sweep.Setting gyro_only = madgwick(0.0);
+    ADIS16448_Sweep.Setting slow = madgwick(0.01);
+    ADIS16448_Sweep.Setting medium = madgwick(0.1);
+    List<ADIS16448_Sweep.Setting> settings = List.of(
+        gyro_only, medium, complementary(0.5, 2.0), slow, madgwick(0.4), complementary(0.5, 20.0));
+    List<ADIS16448_Sweep.Setting> ranked = sweep(corpus(), settings, 2);
+
+    assertEquals(settings.size(), ranked.size());
+    for (int i = 1; i < ranked.size(); i++) {
+      assertTrue("sorted by score", ranked.get(i - 1).score <= ranked.get(i).score);
+    }
+    // Gyro only drifts with the whole bias; the field holds the others
+    assertEquals(kGyroBias * 60.0, gyro_only.drift, 0.1 * kGyroBias * 60.0);
+    assertTrue(slow.drift < 0.05 * gyro_only.drift);
+    // A light correction keeps the gyro's smoothness as well
+    assertSame(slow, ranked.get(0));
+    assertTrue(ranked.indexOf(medium) < ranked.indexOf(gyro_only));
+  }
+
+  @Test
+  public void workersReusedAcrossRuns() throws IOException {
+    List<ADIS16448_Sweep.Log> logs = corpus();
+    List<ADIS16448_Sweep.Setting> one_thread = new ArrayList<>();
+    List<ADIS16448_Sweep.Setting> three_threads = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      double beta = 0.02 * (i + 1);
+      one_thread.add(madgwick(beta));
+      three_threads.add(madgwick(beta));
+      one_thread.add(complementary(0.2 * (i + 1), 5.0));
+      three_threads.add(complementary(0.2 * (i + 1), 5.0));
+    }
+
+    int workers = ADIS16448_Sweep.getWorkerCount();
+    sweep(logs, one_thread, 1);
+    sweep(logs, three_threads, 3);
+    // One Worker per pool thread (plus the caller, which may help), not
+    // one per run
+    int created = ADIS16448_Sweep.getWorkerCount() - workers;
+    assertTrue("created " + created, created >= 1 && created <= (1 + 1) + (3 + 1));
+
+    // A reused Worker starts every run afresh: the split of runs between
+    // threads doesn't change any result
+    for (int i = 0; i < one_thread.size(); i++) {
+      assertEquals(one_thread.get(i).toString(), one_thread.get(i).drift, three_threads.get(i).drift, 0.0);
+      assertEquals(one_thread.get(i).noise, three_threads.get(i).noise, 0.0);
+      assertEquals(one_thread.get(i).lag, three_threads.get(i).lag, 0.0);
+    }
+  }
+
+  @Test
+  public void bestLagBothWays() {
+    double[] reference = new double[1000];
+    for (int i = 0; i < reference.length; i++) {
+      reference[i] = 40.0 * Math.sin(i * 0.05) + 5.0 * Math.sin(i * 0.31);
+    }
+    for (int shift : new int[] {-7, -1, 0, 3, 12}) {
+      double[] yaw = new double[reference.length];
+      for (int i = 0; i < yaw.length; i++) {
+        int j = Math.min(Math.max(i - shift, 0), yaw.length - 1);
+        yaw[i] = -reference[j];
+      }
+      assertEquals("shift " + shift, shift, ADIS16448_Sweep.bestLag(yaw, -1.0, reference, 100, yaw.length, 20));
+    }
+    // Too short to search
+    assertEquals(0, ADIS16448_Sweep.bestLag(reference, 1.0, reference, 0, 30, 20));
+  }
+}
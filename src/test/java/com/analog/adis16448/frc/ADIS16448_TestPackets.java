@@ -0,0 +1,81 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Builds synthetic DMA buffers in the layout described in
+ * {@link ADIS16448_PacketDecoder}, with valid CRCs.
+ */
+final class ADIS16448_TestPackets {
+  // Default magnetometer and barometer values (earth field, sea level)
+  private static final double kMagX = 200.0;
+  private static final double kMagY = 0.0;
+  private static final double kMagZ = 400.0;
+  private static final double kBaro = 1013.0;
+
+  private ADIS16448_TestPackets() {
+  }
+
+  static ByteBuffer allocate(int packets) {
+    return ByteBuffer.allocateDirect(packets * ADIS16448_PacketDecoder.kPacketBytes)
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Write packet {@code index} of {@code buf}.
+   *
+   * @param timestamp Raw 32-bit FPGA timestamp in microseconds
+   */
+  static void put(ByteBuffer buf, int index, long timestamp,
+                  double gyro_x, double gyro_y, double gyro_z,
+                  double accel_x, double accel_y, double accel_z, double temp) {
+    put(buf, index, timestamp, gyro_x, gyro_y, gyro_z, accel_x, accel_y, accel_z, kMagX, kMagY, kMagZ, temp);
+  }
+
+  /**
+   * Write packet {@code index} of {@code buf} with the given magnetometer
+   * values in milligauss.
+   */
+  static void put(ByteBuffer buf, int index, long timestamp,
+                  double gyro_x, double gyro_y, double gyro_z,
+                  double accel_x, double accel_y, double accel_z,
+                  double mag_x, double mag_y, double mag_z, double temp) {
+    int offset = index * ADIS16448_PacketDecoder.kPacketBytes;
+    for (int word = 0; word < ADIS16448_PacketDecoder.kPacketWords; word++) {
+      buf.putInt(offset + 4 * word, 0);
+    }
+    buf.putInt(offset, (int) timestamp);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kGyroXWord, gyro_x / ADIS16448_PacketDecoder.kDegreePerSecondPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kGyroYWord, gyro_y / ADIS16448_PacketDecoder.kDegreePerSecondPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kGyroZWord, gyro_z / ADIS16448_PacketDecoder.kDegreePerSecondPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kAccelXWord, accel_x / ADIS16448_PacketDecoder.kGPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kAccelYWord, accel_y / ADIS16448_PacketDecoder.kGPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kAccelZWord, accel_z / ADIS16448_PacketDecoder.kGPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kMagXWord, mag_x / ADIS16448_PacketDecoder.kMilligaussPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kMagYWord, mag_y / ADIS16448_PacketDecoder.kMilligaussPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kMagZWord, mag_z / ADIS16448_PacketDecoder.kMilligaussPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kBaroWord, kBaro / ADIS16448_PacketDecoder.kMillibarPerLSB);
+    putShort(buf, offset, ADIS16448_PacketDecoder.kTempWord,
+        (temp - ADIS16448_PacketDecoder.kDegCOffset) / ADIS16448_PacketDecoder.kDegCPerLSB);
+    int crc = ADIS16448_PacketDecoder.computeCRC(buf, offset);
+    putWord(buf, offset, ADIS16448_PacketDecoder.kCRCWord, crc);
+  }
+
+  private static void putShort(ByteBuffer buf, int offset, int word, double value) {
+    putWord(buf, offset, word, (int) Math.round(value) & 0xFFFF);
+  }
+
+  // One byte per 32-bit word, MSB first
+  private static void putWord(ByteBuffer buf, int offset, int word, int value) {
+    buf.putInt(offset + 4 * word, (value >> 8) & 0xFF);
+    buf.putInt(offset + 4 * (word + 1), value & 0xFF);
+  }
+}
@@ -0,0 +1,67 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) FIRST 2016. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+package com.analog.adis16448.frc;
+
+import org.junit.Assume;
+
+/**
+ * Plain timing harness for the benchmark tests (there is no JMH setup).
+ *
+ * <p>Runs a body until the JIT has had a chance to compile it, then times
+ * several rounds and keeps the fastest, which is the least disturbed by GC
+ * and other processes.  Numbers are printed so a run on the desktop or the
+ * roboRIO can be compared with the ones quoted in the commit history.
+ *
+ * <p>Benchmarks only run when the {@value #kBenchmarkProperty} system
+ * property is true, as in {@code ./gradlew benchmark}.
+ */
+final class ADIS16448_Timing {
+  interface Body {
+    // Run {@code ops} operations; return something so the work isn't
+    // optimised away
+    double run(int ops);
+  }
+
+  private static final int kWarmUpRounds = 10;
+  private static final int kRounds = 7;
+
+  static final String kBenchmarkProperty = "adis16448.benchmarks";
+
+  // Keeps the results live
+  static volatile double s_sink;
+
+  private ADIS16448_Timing() {
+  }
+
+  /**
+   * Skip the calling test unless benchmarks were asked for.  Their timings
+   * depend on the machine and its load, so the default test run leaves them
+   * out.
+   */
+  static void assumeBenchmarks() {
+    Assume.assumeTrue(Boolean.getBoolean(kBenchmarkProperty));
+  }
+
+  /**
+   * @return nanoseconds per operation of the fastest round
+   */
+  static double nanosPerOp(String name, int ops, Body body) {
+    for (int i = 0; i < kWarmUpRounds; i++) {
+      s_sink = body.run(ops);
+    }
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < kRounds; i++) {
+      long start = System.nanoTime();
+      s_sink = body.run(ops);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    double nanos = (double) best / ops;
+    System.out.printf("%-40s %10.1f ns/op%n", name, nanos);
+    return nanos;
+  }
+}